@@ -0,0 +1,276 @@
+package home.work.system;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking client for access to file system. Every operation of the wrapped
+ * {@link FileSystemDriver} is run by a bounded pool of I/O threads (see {@link AsyncOptions}),
+ * and the returned future is completed with its result or exception. Blocking
+ * driver stays usable beside this one.
+ * <p>Driver counts completed, failed and rejected operations, and the time from
+ * submission to completion, which includes the time an operation waited in the queue.</p>
+ */
+public class AsyncFileSystemDriver implements Closeable {
+    private static final AtomicInteger DRIVERS = new AtomicInteger();
+
+    private final FileSystemDriver driver;
+    private final AsyncOptions options;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    public AsyncFileSystemDriver(FileSystemDriver driver) {
+        this(driver, AsyncOptions.DEFAULT);
+    }
+
+    public AsyncFileSystemDriver(FileSystemDriver driver, AsyncOptions options) {
+        this.driver = driver;
+        this.options = options;
+        String prefix = "async-driver-" + DRIVERS.incrementAndGet() + "-";
+        AtomicInteger threads = new AtomicInteger();
+        executor = new ThreadPoolExecutor(options.getThreads(), options.getThreads(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(options.getQueueCapacity()), runnable -> {
+                    Thread thread = new Thread(runnable, prefix + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * See {@link FileSystemDriver#createFile(String)}
+     */
+    public CompletableFuture<Void> createFileAsync(String filename) {
+        return submit(() -> {
+            driver.createFile(filename);
+            return null;
+        });
+    }
+
+    /**
+     * See {@link FileSystemDriver#createFile(String, byte[])}
+     */
+    public CompletableFuture<Void> createFileAsync(String filename, byte[] content) {
+        return submit(() -> {
+            driver.createFile(filename, content);
+            return null;
+        });
+    }
+
+    /**
+     * See {@link FileSystemDriver#copyExistingFile(String)}
+     */
+    public CompletableFuture<Void> copyExistingFileAsync(String pathToFile) {
+        return submit(() -> {
+            driver.copyExistingFile(pathToFile);
+            return null;
+        });
+    }
+
+    /**
+     * See {@link FileSystemDriver#createFiles(Map, boolean)}
+     */
+    public CompletableFuture<Map<String, Exception>> createFilesAsync(Map<String, byte[]> files, boolean atomic) {
+        return submit(() -> driver.createFiles(files, atomic));
+    }
+
+    /**
+     * See {@link FileSystemDriver#copyExistingFiles(Collection)}
+     */
+    public CompletableFuture<Void> copyExistingFilesAsync(Collection<Path> paths) {
+        return submit(() -> {
+            driver.copyExistingFiles(paths);
+            return null;
+        });
+    }
+
+    /**
+     * See {@link FileSystemDriver#downloadAndSaveFile(String)}
+     */
+    public CompletableFuture<Void> downloadAndSaveFileAsync(String uri) {
+        return submit(() -> {
+            driver.downloadAndSaveFile(uri);
+            return null;
+        });
+    }
+
+    /**
+     * See {@link FileSystemDriver#overwriteFile(String, byte[])}
+     */
+    public CompletableFuture<Void> overwriteFileAsync(String filename, byte[] content) {
+        return submit(() -> {
+            driver.overwriteFile(filename, content);
+            return null;
+        });
+    }
+
+    /**
+     * See {@link FileSystemDriver#deleteFile(String)}
+     */
+    public CompletableFuture<Void> deleteFileAsync(String filename) {
+        return submit(() -> {
+            driver.deleteFile(filename);
+            return null;
+        });
+    }
+
+    /**
+     * See {@link FileSystemDriver#readFromFile(String)}
+     */
+    public CompletableFuture<byte[]> readFromFileAsync(String filename) {
+        return submit(() -> driver.readFromFile(filename));
+    }
+
+    /**
+     * See {@link FileSystemDriver#readRange(String, long, int)}
+     */
+    public CompletableFuture<byte[]> readRangeAsync(String filename, long position, int length) {
+        return submit(() -> driver.readRange(filename, position, length));
+    }
+
+    /**
+     * See {@link FileSystemDriver#readFromFiles(Collection)}
+     */
+    public CompletableFuture<Map<String, byte[]>> readFromFilesAsync(Collection<String> filenames) {
+        return submit(() -> driver.readFromFiles(filenames));
+    }
+
+    /**
+     * See {@link FileSystemDriver#transferFile(String, WritableByteChannel)}
+     */
+    public CompletableFuture<Long> transferFileAsync(String filename, WritableByteChannel target) {
+        return submit(() -> driver.transferFile(filename, target));
+    }
+
+    /**
+     * @return  blocking driver which runs the operations
+     */
+    public FileSystemDriver getDriver() {
+        return driver;
+    }
+
+    /**
+     * @return  number of operations waiting for an I/O thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return  number of operations being run by I/O threads
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return  number of operations completed successfully or exceptionally
+     */
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    /**
+     * @return  number of operations completed exceptionally, rejected ones are not counted
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return  number of operations rejected because the queue was full,
+     *          always 0 with {@link AsyncOptions.Rejection#CALLER_RUNS}
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return  average time from submission to completion of an operation in nanoseconds
+     */
+    public long getAverageLatencyNanos() {
+        long count = completed.sum();
+        return count == 0 ? 0 : totalLatencyNanos.sum() / count;
+    }
+
+    /**
+     * @return  max time from submission to completion of an operation in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    /**
+     * Stops accepting operations and waits for the submitted ones to complete
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Operation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long submitted = System.nanoTime();
+        Runnable task = () -> run(operation, future, submitted);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (options.getRejection() == AsyncOptions.Rejection.CALLER_RUNS && !executor.isShutdown()) {
+                task.run();
+            } else {
+                rejected.increment();
+                future.completeExceptionally(e);
+            }
+        }
+        return future;
+    }
+
+    private <T> void run(Operation<T> operation, CompletableFuture<T> future, long submitted) {
+        T result;
+        try {
+            result = operation.run();
+        } catch (Throwable e) {
+            //errors fail the future too, otherwise callers waiting on it would hang
+            record(submitted);
+            failed.increment();
+            future.completeExceptionally(e);
+            return;
+        }
+        record(submitted);
+        future.complete(result);
+    }
+
+    private void record(long submitted) {
+        long latency = System.nanoTime() - submitted;
+        totalLatencyNanos.add(latency);
+        maxLatencyNanos.accumulate(latency);
+        completed.increment();
+    }
+
+    /**
+     * Blocking operation of the {@link FileSystemDriver}
+     */
+    private interface Operation<T> {
+        T run() throws IOException;
+    }
+}
@@ -0,0 +1,62 @@
+package home.work.system;
+
+/**
+ * Executor settings of the {@link AsyncFileSystemDriver}. Operations are run by
+ * {@link #threads} I/O threads, and at most {@link #queueCapacity} operations wait
+ * for a free thread. When the queue is full, {@link #rejection} policy decides
+ * what happens to the next operation:
+ * <ul>
+ *     <li>{@link Rejection#CALLER_RUNS} - operation is run by the calling thread, which
+ *     slows submitters down until the queue drains</li>
+ *     <li>{@link Rejection#ABORT} - returned future is completed exceptionally with
+ *     {@link java.util.concurrent.RejectedExecutionException}</li>
+ * </ul>
+ */
+public class AsyncOptions {
+    public enum Rejection {
+        CALLER_RUNS, ABORT
+    }
+
+    /**
+     * 4 threads, 1024 queued operations, caller runs the operation when the queue is full
+     */
+    public static final AsyncOptions DEFAULT = new AsyncOptions(4, 1024, Rejection.CALLER_RUNS);
+
+    private final int threads;
+    private final int queueCapacity;
+    private final Rejection rejection;
+
+    /**
+     * @param  threads
+     *         Number of I/O threads
+     *
+     * @param  queueCapacity
+     *         Max number of operations waiting for a thread
+     *
+     * @param  rejection
+     *         What happens to an operation when the queue is full
+     *
+     * @throws  IllegalArgumentException
+     *          If number of threads or queue capacity is not positive
+     */
+    public AsyncOptions(int threads, int queueCapacity, Rejection rejection) {
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Number of threads and queue capacity must be positive");
+        }
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        this.rejection = rejection;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public Rejection getRejection() {
+        return rejection;
+    }
+}
@@ -0,0 +1,49 @@
+package home.work.system;
+
+/**
+ * Settings of the {@link ContentCache} of the {@link FileSystem}. Cache keeps content
+ * of at most {@link #maxBytes} bytes in total, and only files not larger than
+ * {@link #maxEntryBytes} are cached, so a few large files don't push out many small ones.
+ */
+public class CacheOptions {
+    /**
+     * Content is not cached
+     */
+    public static final CacheOptions DISABLED = new CacheOptions(0, 0);
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+
+    /**
+     * @param  maxBytes
+     *         Max total length of cached content, 0 disables the cache
+     *
+     * @param  maxEntryBytes
+     *         Max length of content of one cached file
+     *
+     * @throws  IllegalArgumentException
+     *          If max total length or max entry length is negative
+     */
+    public CacheOptions(long maxBytes, int maxEntryBytes) {
+        if (maxBytes < 0 || maxEntryBytes < 0) {
+            throw new IllegalArgumentException("Max total length and max entry length must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * @return  true if content is cached
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0 && maxEntryBytes > 0;
+    }
+}
@@ -0,0 +1,148 @@
+package home.work.system;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of the background compaction of the {@link FileSystem}. Reports progress,
+ * allows to cancel compaction and to wait for its completion.
+ * <p>Compaction scans records from the header to the current position and slides
+ * live records towards the header. {@link #scanPosition} is the position of the
+ * next record to scan, and {@link #compactedEnd} is the end of already compacted records.</p>
+ */
+public class Compaction {
+    private final CompletableFuture<Compaction> completion = new CompletableFuture<>();
+    private final CountDownLatch cancellation = new CountDownLatch(1);
+    private final long startPosition;
+    private volatile long targetPosition;
+    private volatile long scanPosition;
+    private volatile long compactedEnd;
+    private volatile long movedRecords;
+    private volatile long movedBytes;
+    private volatile long reclaimedBytes;
+    private volatile boolean cancelled;
+
+    Compaction(long startPosition, long targetPosition) {
+        this.startPosition = startPosition;
+        this.targetPosition = targetPosition;
+        this.scanPosition = startPosition;
+        this.compactedEnd = startPosition;
+    }
+
+    long getScanPosition() {
+        return scanPosition;
+    }
+
+    long getCompactedEnd() {
+        return compactedEnd;
+    }
+
+    /**
+     * Updates progress after a batch. Called under the file system lock.
+     */
+    void update(long scanPosition, long compactedEnd, long targetPosition) {
+        this.scanPosition = scanPosition;
+        this.compactedEnd = compactedEnd;
+        this.targetPosition = targetPosition;
+    }
+
+    /**
+     * Pauses between batches, until the pause is over or compaction is cancelled
+     */
+    void pause(long millis) throws InterruptedException {
+        cancellation.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    void recordMoved(long length) {
+        movedRecords++;
+        movedBytes += length;
+    }
+
+    void recordReclaimed(long length) {
+        reclaimedBytes += length;
+    }
+
+    void complete() {
+        completion.complete(this);
+    }
+
+    void fail(Throwable e) {
+        completion.completeExceptionally(e);
+    }
+
+    /**
+     * @return  number of records moved towards the header
+     */
+    public long getMovedRecords() {
+        return movedRecords;
+    }
+
+    /**
+     * @return  number of bytes of moved records
+     */
+    public long getMovedBytes() {
+        return movedBytes;
+    }
+
+    /**
+     * @return  number of bytes of removed records found so far
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    /**
+     * @return  scanned part of the file system, from 0 to 1
+     */
+    public double getProgress() {
+        if (isDone()) {
+            return 1;
+        }
+        long total = targetPosition - startPosition;
+        return total <= 0 ? 1 : Math.min(1, (double) (scanPosition - startPosition) / total);
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops compaction after the current batch. Records moved before
+     * cancellation stay at their new positions.
+     */
+    public void cancel() {
+        cancelled = true;
+        cancellation.countDown();
+    }
+
+    /**
+     * @return  future which is completed when compaction is over or cancelled
+     */
+    public CompletableFuture<Compaction> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Blocks until compaction is over or cancelled
+     *
+     * @throws  IOException
+     *          If compaction failed
+     */
+    public void await() throws IOException {
+        try {
+            completion.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for compaction", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compaction failed", e.getCause());
+        }
+    }
+}
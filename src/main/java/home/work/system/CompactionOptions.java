@@ -0,0 +1,44 @@
+package home.work.system;
+
+/**
+ * Throttling settings of the background compaction started by
+ * {@link FileSystem#startCompaction(CompactionOptions)}. Compaction moves
+ * records in batches of about {@link #batchSize} bytes, holding the file system
+ * lock only for one batch, and pauses for {@link #pauseMillis} between batches,
+ * so reads and writes can proceed.
+ */
+public class CompactionOptions {
+    /**
+     * 1MB batches with 10ms pause between them
+     */
+    public static final CompactionOptions DEFAULT = new CompactionOptions(1024 * 1024, 10);
+
+    private final long batchSize;
+    private final long pauseMillis;
+
+    /**
+     * @param  batchSize
+     *         Approximate number of bytes moved while the lock is held, at least one record is moved
+     *
+     * @param  pauseMillis
+     *         Pause between batches in milliseconds
+     *
+     * @throws  IllegalArgumentException
+     *          If batch size is not positive, or pause is negative
+     */
+    public CompactionOptions(long batchSize, long pauseMillis) {
+        if (batchSize <= 0 || pauseMillis < 0) {
+            throw new IllegalArgumentException("Batch size must be positive and pause must not be negative");
+        }
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    public long getBatchSize() {
+        return batchSize;
+    }
+
+    public long getPauseMillis() {
+        return pauseMillis;
+    }
+}
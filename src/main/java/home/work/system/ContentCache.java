@@ -0,0 +1,160 @@
+package home.work.system;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of file content by filename, which serves repeated reads of hot small
+ * files without the {@link FileSystem} lock and the copy from the mapping.
+ * <p>Eviction policy is segmented LRU. New entries go to the probation segment; an entry
+ * read again is promoted to the protected segment, which takes up to 80% of the cache.
+ * Entries are evicted from the probation segment first, so a scan of many files which
+ * are read only once can't push hot files out of the cache.</p>
+ * <p>Entries hold content, not positions, so they stay valid while compaction moves records.
+ * {@link FileSystem} invalidates the entry when the file is removed or replaced, and clears
+ * the cache when the file system is formatted.</p>
+ */
+public class ContentCache {
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final long protectedMaxBytes;
+    private final LinkedHashMap<String, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, byte[]> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ContentCache(CacheOptions options) {
+        this.maxBytes = options.isEnabled() ? options.getMaxBytes() : 0;
+        this.maxEntryBytes = options.getMaxEntryBytes();
+        this.protectedMaxBytes = maxBytes / 5 * 4;
+    }
+
+    /**
+     * @return  cached content, which must not be modified, or null if it is not cached
+     */
+    synchronized byte[] get(String filename) {
+        if (maxBytes == 0) {
+            return null;
+        }
+        byte[] content = protectedSegment.get(filename);
+        if (content == null) {
+            content = probation.remove(filename);
+            if (content == null) {
+                misses++;
+                return null;
+            }
+            probationBytes -= content.length;
+            promote(filename, content);
+        }
+        hits++;
+        return content;
+    }
+
+    /**
+     * Caches content of the file if it is small enough. Content must not be modified
+     * afterwards. Must be called while the file can't be removed or replaced.
+     */
+    synchronized void put(String filename, byte[] content) {
+        if (!admits(content.length) || probation.containsKey(filename) || protectedSegment.containsKey(filename)) {
+            return;
+        }
+        probation.put(filename, content);
+        probationBytes += content.length;
+        evict();
+    }
+
+    synchronized void invalidate(String filename) {
+        byte[] content = probation.remove(filename);
+        if (content != null) {
+            probationBytes -= content.length;
+        }
+        content = protectedSegment.remove(filename);
+        if (content != null) {
+            protectedBytes -= content.length;
+        }
+    }
+
+    synchronized void clear() {
+        probation.clear();
+        protectedSegment.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    /**
+     * @return  true if content of the {@code length} can be cached
+     */
+    boolean admits(long length) {
+        return length <= maxEntryBytes && length <= maxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return  number of cached files
+     */
+    public synchronized int getSize() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    /**
+     * @return  total length of cached content
+     */
+    public synchronized long getBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    /**
+     * Moves the entry to the protected segment. Least recently used entries of
+     * the protected segment, which doesn't fit anymore, go back to probation.
+     */
+    private void promote(String filename, byte[] content) {
+        protectedSegment.put(filename, content);
+        protectedBytes += content.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedMaxBytes && eldest.hasNext()) {
+            Map.Entry<String, byte[]> demoted = eldest.next();
+            if (demoted.getKey().equals(filename)) {
+                break;
+            }
+            eldest.remove();
+            protectedBytes -= demoted.getValue().length;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().length;
+        }
+        evict();
+    }
+
+    /**
+     * Evicts least recently used entries of probation, and then of the
+     * protected segment, until the cache fits {@link #maxBytes}
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, byte[]>> eldest = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && eldest.hasNext()) {
+            probationBytes -= eldest.next().getValue().length;
+            eldest.remove();
+            evictions++;
+        }
+        eldest = protectedSegment.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && eldest.hasNext()) {
+            protectedBytes -= eldest.next().getValue().length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+}
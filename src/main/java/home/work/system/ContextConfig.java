@@ -7,15 +7,85 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 
 @Configuration
 @PropertySource("classpath:application.properties")
 public class ContextConfig {
+    @Value("${file.system.path:fileSystem}")
+    private String path;
+
+    @Value("${file.system.volumes:}")
+    private String[] volumes;
+
     @Value("${file.system.size}")
-    private int fileSystemSize;
+    private long fileSystemSize;
+
+    @Value("${file.system.durability:SYNC}")
+    private DurabilityOptions.Mode durability;
+
+    @Value("${file.system.flush.interval.millis:1000}")
+    private long flushIntervalMillis;
+
+    @Value("${file.system.flush.interval.bytes:16777216}")
+    private long flushIntervalBytes;
+
+    @Value("${file.system.growth.increment:0}")
+    private long growthIncrement;
+
+    @Value("${file.system.max.size:0}")
+    private long maxSize;
+
+    @Value("${file.system.cache.max.bytes:0}")
+    private long cacheMaxBytes;
+
+    @Value("${file.system.cache.max.entry.bytes:65536}")
+    private int cacheMaxEntryBytes;
+
+    @Value("${file.system.async.threads:4}")
+    private int asyncThreads;
+
+    @Value("${file.system.async.queue.capacity:1024}")
+    private int asyncQueueCapacity;
+
+    @Value("${file.system.async.rejection:CALLER_RUNS}")
+    private AsyncOptions.Rejection asyncRejection;
+
+    /**
+     * Opens the default volume and additional volumes, all of them with the same settings
+     */
+    @Bean(destroyMethod = "close")
+    public FileSystemRegistry fileSystemRegistry() throws IOException {
+        FileSystemRegistry registry = new FileSystemRegistry();
+        open(registry, path);
+        for (String volume : volumes) {
+            if (!volume.trim().isEmpty()) {
+                open(registry, volume.trim());
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Default volume, it is closed only by {@link FileSystemRegistry}, which owns it
+     */
+    @Bean(destroyMethod = "")
+    public FileSystem fileSystem(FileSystemRegistry registry) {
+        return registry.get(Paths.get(path));
+    }
+
+    /**
+     * Non-blocking driver of the default volume, its I/O threads are started on first use
+     */
+    @Bean(destroyMethod = "close")
+    public AsyncFileSystemDriver asyncFileSystemDriver(FileSystem fileSystem) {
+        return new AsyncFileSystemDriver(new FileSystemDriver(fileSystem),
+                new AsyncOptions(asyncThreads, asyncQueueCapacity, asyncRejection));
+    }
 
-    @Bean
-    public FileSystem fileSystem() throws IOException {
-        return new FileSystem(fileSystemSize);
+    private void open(FileSystemRegistry registry, String volume) throws IOException {
+        registry.open(Paths.get(volume), fileSystemSize,
+                new DurabilityOptions(durability, flushIntervalMillis, flushIntervalBytes),
+                new GrowthOptions(growthIncrement, maxSize), new CacheOptions(cacheMaxBytes, cacheMaxEntryBytes));
     }
 }
@@ -0,0 +1,157 @@
+package home.work.system;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Children of every directory of the {@link FileTree}, so a directory is listed
+ * and deleted in time of its children, not of all files.
+ * <p>Names are paths separated by '/'. Name of a directory ends with '/', the root
+ * directory has the empty name. Directory exists if it has a record (which is an
+ * empty record with its name), or if it has children: writing "a/b/c" implies
+ * directories "a/" and "a/b/". Implied directory disappears with its last child,
+ * directory with a record stays until the record is removed.</p>
+ * <p>Children of a directory are kept in {@link SortedNames} by their names relative
+ * to the directory, so "c" and "b/" are children of "a/". Changes must be made under
+ * the {@link FileTree} write lock, children are read without any lock.</p>
+ */
+class Directories {
+    private final static String ROOT = "";
+
+    private final Map<String, SortedNames> children = new ConcurrentHashMap<>();
+    //true if there is a record with the name, must be called under the FileTree write lock
+    private final Predicate<String> hasRecord;
+
+    private Directories(Predicate<String> hasRecord) {
+        this.hasRecord = hasRecord;
+    }
+
+    /**
+     * @param  names
+     *         All names of the tree in sorted order
+     *
+     * @param  hasRecord
+     *         Checks if there is a record with the name in the tree
+     */
+    static Directories build(Iterator<String> names, Predicate<String> hasRecord) {
+        Directories directories = new Directories(hasRecord);
+        //every directory gets its children in sorted order, because they share its prefix
+        Map<String, SortedNames.Builder> builders = new HashMap<>();
+        builders.put(ROOT, new SortedNames.Builder());
+        while (names.hasNext()) {
+            String name = names.next();
+            if (isDirectory(name)) {
+                builders.putIfAbsent(name, new SortedNames.Builder());
+            }
+            String child = name;
+            String parent = parentOf(child);
+            while (true) {
+                boolean known = builders.containsKey(parent);
+                builders.computeIfAbsent(parent, key -> new SortedNames.Builder()).add(encode(child.substring(parent.length())));
+                if (known || parent.equals(ROOT)) {
+                    break;
+                }
+                child = parent;
+                parent = parentOf(child);
+            }
+        }
+        for (Map.Entry<String, SortedNames.Builder> builder : builders.entrySet()) {
+            directories.children.put(builder.getKey(), builder.getValue().build());
+        }
+        return directories;
+    }
+
+    /**
+     * Adds the name to its parent directory, which is implied if it doesn't exist
+     */
+    void add(String name) {
+        if (isDirectory(name)) {
+            children.computeIfAbsent(name, key -> SortedNames.empty());
+        }
+        String parent = parentOf(name);
+        SortedNames siblings = children.get(parent);
+        if (siblings == null) {
+            siblings = SortedNames.empty();
+            children.put(parent, siblings);
+            add(parent);
+        }
+        siblings.add(encode(name.substring(parent.length())));
+    }
+
+    /**
+     * Removes the name from its parent directory. Directory is removed only if it
+     * has no children, and its parent is removed if it becomes empty and has no record.
+     */
+    void remove(String name) {
+        if (isDirectory(name)) {
+            SortedNames own = children.get(name);
+            if (own != null && !own.isEmpty()) {
+                //directory stays implied by its children
+                return;
+            }
+            children.remove(name);
+        }
+        String parent = parentOf(name);
+        SortedNames siblings = children.get(parent);
+        if (siblings == null) {
+            return;
+        }
+        siblings.remove(encode(name.substring(parent.length())));
+        if (!parent.equals(ROOT) && siblings.isEmpty() && !hasRecord.test(parent)) {
+            remove(parent);
+        }
+    }
+
+    boolean exists(String directory) {
+        return children.containsKey(directory);
+    }
+
+    /**
+     * @param  startAfter
+     *         Full name of the last child of the previous page, null for the first page
+     *
+     * @return  iterator of full names of children of the directory in sorted order,
+     *          or empty iterator if the directory doesn't exist
+     */
+    Iterator<String> children(String directory, String startAfter) {
+        SortedNames names = children.get(directory);
+        if (names == null) {
+            return Collections.emptyIterator();
+        }
+        String after = startAfter == null || !startAfter.startsWith(directory) ? null
+                : startAfter.substring(directory.length());
+        Iterator<String> iterator = names.iterator("", after);
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return directory + iterator.next();
+            }
+        };
+    }
+
+    static boolean isDirectory(String name) {
+        return name.isEmpty() || name.endsWith("/");
+    }
+
+    /**
+     * @return  name of the directory containing the name, the empty name for the root
+     */
+    static String parentOf(String name) {
+        int end = isDirectory(name) ? name.length() - 2 : name.length() - 1;
+        return name.substring(0, name.lastIndexOf('/', end) + 1);
+    }
+
+    private static byte[] encode(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}
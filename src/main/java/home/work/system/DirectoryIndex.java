@@ -0,0 +1,543 @@
+package home.work.system;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Persistent index of the {@link FileSystem} stored in a file next to the container,
+ * so the container doesn't have to be scanned on start.
+ * <p>Index file consists of a header (magic, version and file system size) and
+ * a write-ahead log of entries. Each entry has a type, current position of the file
+ * system after the change, offset and length of the record (or new file system size),
+ * filename and a checksum.
+ * Entry is appended to memory on every change of the file system and written to the
+ * log by {@link #commit(long, MappedRegion, boolean)}, which batches entries of concurrent writers
+ * into a single flush. The log is rewritten as a snapshot of live records when it
+ * grows too long.</p>
+ * <p>Container is forced before entries are written, so the log never refers to records
+ * which are not on the storage device. Only snapshots of {@link DurabilityOptions.Mode#SYNC}
+ * mode are forced when they are written, in other modes writers never wait for the storage device.
+ * Index is trusted only if all checksums are valid and it ends with the current position
+ * not above the one in the container header.
+ * Records after the last committed position are dropped on load, otherwise the container
+ * is scanned. Free space is not stored, it is the space between live records.</p>
+ * <p>Failure to write the index never fails the file system operation: index file
+ * is deleted instead, and the container is scanned on the next start.</p>
+ */
+class DirectoryIndex implements Closeable {
+    private final static int MAGIC = 0x1D5E_F5F5;
+    private final static int VERSION = 1;
+    private final static byte PUT = 1;
+    private final static byte REMOVE = 2;
+    private final static byte POSITION = 3;
+    private final static byte SIZE = 4;
+    //log is rewritten when it has this many entries more than twice the number of live records
+    private final static int REWRITE_SLACK = 1024;
+
+    private final Path path;
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition flushed = commitLock.newCondition();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final EntryWriter pendingWriter = new EntryWriter(new DataOutputStream(pending));
+    private FileChannel channel;
+    private long entries;
+    private long appended;
+    private long committed;
+    private boolean flushing;
+    //snapshot waits for the next forced flush to replace the log, guarded like flushing
+    private boolean snapshotPending;
+    //sequence number of the last entry which is in the log file, a snapshot counts only when it replaced the log
+    private volatile long durable;
+    private volatile boolean broken;
+
+    DirectoryIndex(Path container) {
+        this.path = pathFor(container);
+    }
+
+    /**
+     * @return  path of the index file of the {@code container}
+     */
+    static Path pathFor(Path container) {
+        return container.resolveSibling(container.getFileName() + ".index");
+    }
+
+    /**
+     * Reads the index and fills {@code tree} and {@code freeExtents}. On failure
+     * both are left empty.
+     *
+     * @param  fileSystemSize
+     *         Size of the file system stored in the container header
+     *
+     * @param  headerSize
+     *         Position of the first record
+     *
+     * @param  currentPosition
+     *         Current position stored in the container header
+     *
+     * @return  current position of the last committed entry, or -1 if the index is not
+     *          valid or doesn't match the container. It is lower than the {@code currentPosition}
+     *          if records written after the last commit reached the container.
+     */
+    long load(long fileSystemSize, long headerSize, long currentPosition,
+              FileTree tree, FreeExtents freeExtents) {
+        if (!Files.exists(path)) {
+            return -1;
+        }
+        PutEntries puts = new PutEntries();
+        long position = -1;
+        long loggedSize = -1;
+        long count = 0;
+        CRC32 crc = new CRC32();
+        try (FileChannel fc = FileChannel.open(path, READ)) {
+            if (fc.size() > Integer.MAX_VALUE) {
+                return -1;
+            }
+            ByteBuffer in = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return -1;
+            }
+            loggedSize = in.getLong();
+            while (in.hasRemaining()) {
+                int start = in.position();
+                byte type = in.get();
+                position = in.getLong();
+                long offset = in.getLong();
+                long length = in.getLong();
+                byte[] filename = new byte[in.getInt()];
+                in.get(filename);
+                ByteBuffer entry = in.duplicate();
+                entry.position(start).limit(in.position());
+                crc.reset();
+                crc.update(entry);
+                if ((in.getInt() & 0xFFFF_FFFFL) != crc.getValue()) {
+                    return -1;
+                }
+                if (type == PUT) {
+                    tree.put(new String(filename, StandardCharsets.UTF_8), offset);
+                    puts.add(offset, length);
+                } else if (type == REMOVE) {
+                    tree.remove(new String(filename, StandardCharsets.UTF_8));
+                } else if (type == SIZE) {
+                    loggedSize = offset;
+                } else if (type != POSITION) {
+                    return -1;
+                }
+                count++;
+            }
+        } catch (IOException | RuntimeException e) {
+            //torn or corrupted index, container is scanned instead
+            tree.clear();
+            return -1;
+        }
+        //container can't be behind the log, because the container is forced before the log is written
+        if (loggedSize != fileSystemSize || position < headerSize || position > currentPosition
+                || !puts.fillFreeExtents(tree, headerSize, position, freeExtents)) {
+            tree.clear();
+            freeExtents.clear();
+            return -1;
+        }
+        entries = count;
+        return position;
+    }
+
+    /**
+     * Put entries of the log in the order they were read. Lengths of live records
+     * are needed only to find free space between them.
+     */
+    private static class PutEntries {
+        private long[] offsets = new long[1024];
+        private long[] lengths = new long[1024];
+        private int size;
+
+        void add(long offset, long length) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        /**
+         * Fills {@code freeExtents} with space between live records, which are the records
+         * at offsets of the {@code tree}. Length of a live record is the one of the last put
+         * entry of its offset, because space of a live record is not reused. Snapshot is written
+         * in the order of offsets, so entries need to be sorted only if the log has entries after
+         * the snapshot. Overlapping records, or a record without a put entry, mean the index
+         * is corrupted.
+         */
+        boolean fillFreeExtents(FileTree tree, long headerSize, long currentPosition,
+                                FreeExtents freeExtents) {
+            long[] live = tree.sortedOffsets();
+            int[] order = new int[size];
+            boolean sorted = true;
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+                sorted &= i == 0 || offsets[i - 1] <= offsets[i];
+            }
+            if (!sorted) {
+                //stable, so the last entry of an offset stays the last one
+                IntSort.sort(order, 0, size, (first, second) -> Long.compare(offsets[first], offsets[second]));
+            }
+            long end = headerSize;
+            int next = 0;
+            for (long offset : live) {
+                while (next < size && offsets[order[next]] < offset) {
+                    next++;
+                }
+                int last = -1;
+                while (next < size && offsets[order[next]] == offset) {
+                    last = order[next++];
+                }
+                if (last < 0 || offset < end) {
+                    return false;
+                }
+                freeExtents.add(end, offset - end);
+                end = offset + lengths[last];
+            }
+            if (end > currentPosition) {
+                return false;
+            }
+            freeExtents.add(end, currentPosition - end);
+            return true;
+        }
+    }
+
+    /**
+     * Appends entry of the published record
+     *
+     * @return  sequence number of the entry
+     */
+    long put(String filename, long offset, long length, long currentPosition) {
+        return append(PUT, currentPosition, offset, length, filename);
+    }
+
+    /**
+     * Appends entry of the removed record
+     *
+     * @return  sequence number of the entry
+     */
+    long remove(String filename, long currentPosition) {
+        return append(REMOVE, currentPosition, 0, 0, filename);
+    }
+
+    /**
+     * Appends entry of the changed current position
+     *
+     * @return  sequence number of the entry
+     */
+    long position(long currentPosition) {
+        return append(POSITION, currentPosition, 0, 0, "");
+    }
+
+    /**
+     * Appends entry of the changed file system size
+     *
+     * @return  sequence number of the entry
+     */
+    long size(long fileSystemSize, long currentPosition) {
+        return append(SIZE, currentPosition, fileSystemSize, 0, "");
+    }
+
+    /**
+     * @return  sequence number of the last appended entry
+     */
+    synchronized long lastSequence() {
+        return appended;
+    }
+
+    /**
+     * @return  sequence number of the last entry written to the log file. Entry which is
+     *          not written yet is lost if the process dies.
+     */
+    long durableSequence() {
+        return durable;
+    }
+
+    /**
+     * @return  true if the log should be rewritten as a snapshot of {@code liveRecords} records
+     */
+    synchronized boolean needsRewrite(int liveRecords) {
+        return entries > 2L * liveRecords + REWRITE_SLACK;
+    }
+
+    /**
+     * Writes entries up to the {@code sequence} to the log. Entries appended by concurrent
+     * writers are committed together: the first writer which finds no flush in progress
+     * becomes the leader and flushes all pending entries, others wait for it, so one
+     * flush is done per batch of entries. If {@code force} is true, leader forces the
+     * {@code region} before it writes the entries, so the log never refers to data which
+     * is not on the storage device, and forces the log after it.
+     *
+     * @throws  IOException
+     *          If the region or the log can't be written
+     */
+    void commit(long sequence, MappedRegion region, boolean force) throws IOException {
+        commitLock.lock();
+        try {
+            while (committed < sequence || snapshotPending) {
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                flushing = true;
+                commitLock.unlock();
+                long target = committed;
+                boolean written = false;
+                try {
+                    target = flush(region, force);
+                    written = true;
+                } finally {
+                    commitLock.lock();
+                    flushing = false;
+                    committed = Math.max(committed, target);
+                    if (written) {
+                        durable = Math.max(durable, target);
+                    }
+                    flushed.signalAll();
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Writes pending entries to the log, forcing the region before and the log after it if {@code force} is true.
+     * Pending snapshot replaces the log first, so the entries are appended to it.
+     *
+     * @return  sequence number of the last written entry
+     */
+    private long flush(MappedRegion region, boolean force) throws IOException {
+        byte[] bytes;
+        long target;
+        synchronized (this) {
+            bytes = pending.toByteArray();
+            pending.reset();
+            target = appended;
+        }
+        if (force) {
+            region.force();
+        }
+        if (snapshotPending) {
+            replaceLog(force);
+        }
+        if (broken || bytes.length == 0) {
+            return target;
+        }
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(path, WRITE);
+                channel.position(channel.size());
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+        return target;
+    }
+
+    /**
+     * Writes a snapshot of live records to a temporary file, which then replaces the log.
+     * Pending entries are dropped, because the snapshot contains their changes. Must be
+     * called under the {@link FileSystem} write lock, so only {@link DurabilityOptions.Mode#SYNC}
+     * mode forces the region and the snapshot here. In {@link DurabilityOptions.Mode#PERIODIC}
+     * mode the snapshot replaces the log on the next forced commit of the flusher, after the
+     * region and the snapshot are forced, so the log on the storage device still describes
+     * the last flush. In {@link DurabilityOptions.Mode#NONE} mode it replaces the log at once.
+     *
+     * @param  lengths
+     *         Returns total length of the record at the given offset
+     *
+     * @param  mode
+     *         Durability mode of the file system
+     */
+    void rewrite(long fileSystemSize, long currentPosition, FileTree tree, RecordLengths lengths,
+                 MappedRegion region, DurabilityOptions.Mode mode) {
+        commitLock.lock();
+        try {
+            while (flushing) {
+                flushed.awaitUninterruptibly();
+            }
+            boolean sync = mode == DurabilityOptions.Mode.SYNC;
+            if (sync) {
+                region.force();
+            }
+            snapshotPending = false;
+            if (writeSnapshot(fileSystemSize, currentPosition, tree, lengths, sync)) {
+                if (mode == DurabilityOptions.Mode.PERIODIC) {
+                    snapshotPending = true;
+                } else {
+                    replaceLog(false);
+                }
+            }
+            synchronized (this) {
+                pending.reset();
+                committed = appended;
+            }
+            if (!snapshotPending) {
+                durable = committed;
+            }
+            flushed.signalAll();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the snapshot to the temporary file
+     *
+     * @return  false if the snapshot can't be written, the log is deleted then
+     */
+    private boolean writeSnapshot(long fileSystemSize, long currentPosition, FileTree tree, RecordLengths lengths,
+                                  boolean force) {
+        try {
+            close();
+            try (FileChannel fc = FileChannel.open(temporaryPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(fc), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(fileSystemSize);
+                //records are written in the order of offsets, so they are almost sorted on load
+                EntryWriter writer = new EntryWriter(out);
+                tree.forEachByOffset((names, start, length, offset) ->
+                        writer.write(PUT, currentPosition, offset, lengths.get(offset), names, start, length));
+                writer.write(POSITION, currentPosition, 0, 0, "");
+                out.flush();
+                if (force) {
+                    fc.force(true);
+                }
+            }
+            synchronized (this) {
+                entries = tree.size() + 1;
+            }
+            return true;
+        } catch (IOException e) {
+            invalidate();
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the log with the written snapshot, forcing the snapshot first if {@code force} is true
+     */
+    private void replaceLog(boolean force) {
+        snapshotPending = false;
+        Path temporary = temporaryPath();
+        try {
+            if (force) {
+                try (FileChannel fc = FileChannel.open(temporary, WRITE)) {
+                    fc.force(true);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            broken = false;
+        } catch (IOException e) {
+            invalidate();
+        }
+    }
+
+    private Path temporaryPath() {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    private synchronized long append(byte type, long currentPosition, long offset, long length, String filename) {
+        try {
+            pendingWriter.write(type, currentPosition, offset, length, filename);
+        } catch (IOException e) {
+            //can't happen, entry is written to memory
+            throw new UncheckedIOException(e);
+        }
+        entries++;
+        return ++appended;
+    }
+
+    /**
+     * Writes entries to the stream reusing its buffers, so a snapshot creates no objects per entry
+     */
+    private static class EntryWriter {
+        private final DataOutputStream out;
+        private final ByteBuffer header = ByteBuffer.allocate(1 + 3 * Long.BYTES + Integer.BYTES);
+        private final CRC32 crc = new CRC32();
+
+        EntryWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte type, long currentPosition, long offset, long length, String filename) throws IOException {
+            byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+            write(type, currentPosition, offset, length, name, 0, name.length);
+        }
+
+        /**
+         * Writes the entry with the name of {@code nameLength} UTF-8 bytes of {@code name} from {@code start}
+         */
+        void write(byte type, long currentPosition, long offset, long length, byte[] name, int start,
+                   int nameLength) throws IOException {
+            header.clear();
+            header.put(type).putLong(currentPosition).putLong(offset).putLong(length).putInt(nameLength);
+            //checksum of the header and the name, as if they were one array
+            crc.reset();
+            crc.update(header.array(), 0, header.position());
+            crc.update(name, start, nameLength);
+            out.write(header.array(), 0, header.position());
+            out.write(name, start, nameLength);
+            out.writeInt((int) crc.getValue());
+        }
+    }
+
+    /**
+     * Deletes the log, so the container is scanned on the next start
+     */
+    private void invalidate() {
+        broken = true;
+        try {
+            close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            //nothing else can be done, stale log is rejected by its current position
+        }
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Returns total length of the record at the given offset
+     */
+    interface RecordLengths {
+        long get(long offset);
+    }
+}
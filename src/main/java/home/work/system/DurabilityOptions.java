@@ -0,0 +1,72 @@
+package home.work.system;
+
+/**
+ * Durability settings of the {@link FileSystem}. Mode defines when changes of
+ * the file system are forced to the storage device:
+ * <ul>
+ *     <li>{@link Mode#SYNC} - every write, copy, download and remove is forced before it returns</li>
+ *     <li>{@link Mode#PERIODIC} - changes are forced by a background flusher every
+ *     {@link #flushIntervalMillis}, or earlier if {@link #flushIntervalBytes} bytes were written</li>
+ *     <li>{@link Mode#NONE} - nothing is forced, the operating system writes changes back
+ *     when it decides to. Changes survive a crash of the process, but not of the system</li>
+ * </ul>
+ * <p>After a crash the file system is restored to the state of its last commit: {@link Mode#SYNC}
+ * loses no finished operation, {@link Mode#PERIODIC} loses operations after the last flush, and
+ * {@link Mode#NONE} loses operations which were not written back if the system crashed. Lost
+ * operations are lost as a whole, and in every mode a file restored from the last commit has its
+ * own content: space of a removed file is not reused until its removal is committed.</p>
+ */
+public class DurabilityOptions {
+    public enum Mode {
+        SYNC, PERIODIC, NONE
+    }
+
+    /**
+     * Every operation is forced before it returns
+     */
+    public static final DurabilityOptions SYNC = new DurabilityOptions(Mode.SYNC, 0, 0);
+
+    /**
+     * Nothing is forced
+     */
+    public static final DurabilityOptions NONE = new DurabilityOptions(Mode.NONE, 0, 0);
+
+    private final Mode mode;
+    private final long flushIntervalMillis;
+    private final long flushIntervalBytes;
+
+    /**
+     * @param  mode
+     *         Durability mode
+     *
+     * @param  flushIntervalMillis
+     *         Interval between background flushes in milliseconds, used only by {@link Mode#PERIODIC}
+     *
+     * @param  flushIntervalBytes
+     *         Number of written bytes which starts the background flush before the interval
+     *         is over, used only by {@link Mode#PERIODIC}
+     *
+     * @throws  IllegalArgumentException
+     *          If mode is {@link Mode#PERIODIC} and interval or number of bytes is not positive
+     */
+    public DurabilityOptions(Mode mode, long flushIntervalMillis, long flushIntervalBytes) {
+        if (mode == Mode.PERIODIC && (flushIntervalMillis <= 0 || flushIntervalBytes <= 0)) {
+            throw new IllegalArgumentException("Flush interval and number of bytes must be positive");
+        }
+        this.mode = mode;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flushIntervalBytes = flushIntervalBytes;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    public long getFlushIntervalBytes() {
+        return flushIntervalBytes;
+    }
+}
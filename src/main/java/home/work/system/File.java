@@ -5,10 +5,16 @@ package home.work.system;
  *
  */
 public class File {
+    /**
+     * 1 byte for isRemoved flag, 4 bytes for the size of the filename,
+     * and 8 bytes for the size of the content
+     */
+    static final int METADATA_LENGTH = 1 + 4 + 8;
+
     private String name;
     private int nameLength;
     private byte[] content;
-    private int contentLength;
+    private long contentLength;
 
     /**
      * Creates a new File instance. If the content array is empty, byte array for "-1" is used.
@@ -29,7 +35,7 @@ public class File {
         return content;
     }
 
-    public int getContentLength() {
+    public long getContentLength() {
         return contentLength;
     }
 
@@ -45,12 +51,12 @@ public class File {
      * Calculates total length in bytes required to write this file.
      * Total length consists of {@link #nameLength}, {@link #contentLength},
      * 1 byte needed for isRemoved flag, 4 bytes for the size of the filename,
-     * and 4 bytes for the size of the content
+     * and 8 bytes for the size of the content
      *
      * @return  calculated total space needed to write a file
      *
      */
-    public int getTotalLength() {
-        return nameLength + contentLength + 2 * 4 + 1;
+    public long getTotalLength() {
+        return nameLength + contentLength + METADATA_LENGTH;
     }
 }
@@ -6,531 +6,2578 @@ import java.io.*;
 import java.io.File;
 import java.net.HttpURLConnection;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
- * Class for direct access to file system. Uses custom {@link #LOCK} object to sync
+ * Class for direct access to file system. Uses custom {@link #lock} object to sync
  * access to the {@link #fileSystem} file, {@link #fileSystemTree}, {@link #currentPosition},
- * and {@link #defragNeeded}
+ * and {@link #defragNeeded}. The container is mapped once into {@link #region}
+ * which is reused by all operations.
+ * <p>Metadata queries ({@link #fileExists(String)}, {@link #listFiles()},
+ * {@link #getAvailableSpace()}) don't take {@link #lock}: {@link #fileSystemTree} is
+ * read optimistically (see {@link FileTree}), and {@link #currentPosition} and {@link #fileSystemSize} are volatile.
+ * They are still changed only under the write lock, so readers see a value which was
+ * current at some moment, but never block writers.</p>
+ * <p>All positions and sizes are long. Header of the container consists of
+ * {@link #MAGIC} marker, format version, file system size and current position.
+ * Each record consists of isRemoved flag, filename length, filename,
+ * content length (long) and content.</p>
+ * <p>Content of files is copied without holding {@link #lock}: space is
+ * reserved first (see {@link Reservation}), then content is copied to the reserved
+ * region, and only then the record is published to {@link #fileSystemTree}.
+ * So writers copy their content concurrently, and readers are blocked only
+ * while space is reserved or records are published.</p>
+ * <p>Space of removed records is tracked in {@link #freeExtents} and reused by
+ * new records. It is also released by the background compaction
+ * (see {@link #startCompaction(CompactionOptions)}).</p>
+ * <p>Names separated by '/' form directories (see {@link #mkdir(String)}). Every
+ * directory has its own index of children, so it is listed, removed and moved
+ * in time of its contents.</p>
  *
  */
 @Component
-public class FileSystem {
+public class FileSystem implements Closeable {
     private final static int INT_SIZE = 4;
+    private final static int LONG_SIZE = 8;
     private final static int BOOL_SIZE = 1;
-    private final static int HEADER_SIZE = 8;
-    private final static String FILENAME = "fileSystem";
+    private final static int MAGIC = 0xF5F5_F5F5;
+    private final static int FORMAT_VERSION = 2;
+    private final static int SIZE_OFFSET = 2 * INT_SIZE;
+    private final static int CURRENT_POSITION_OFFSET = SIZE_OFFSET + LONG_SIZE;
+    private final static int HEADER_SIZE = CURRENT_POSITION_OFFSET + LONG_SIZE;
+    private final static int LEGACY_HEADER_SIZE = 2 * INT_SIZE;
+    private final static String DEFAULT_FILENAME = "fileSystem";
+    private final static int TRANSFER_CHUNK_SIZE = 64 * 1024;
+    private final static long FORMAT_TIMEOUT_MILLIS = 30_000;
 
-    private final int fileSystemSize;
+    private volatile long fileSystemSize;
     private final File fileSystem;
+    private final MappedRegion region;
+    private final MoveMarker moveMarker;
+    private final DirectoryIndex index;
 
-    private int currentPosition;
-    private final Map<String, Integer> fileSystemTree = new HashMap<>();
+    private volatile long currentPosition;
+    private final FileTree fileSystemTree = new FileTree();
+    private final Map<String, Reservation> reservations = new HashMap<>();
     private boolean defragNeeded;
+    private final FreeExtents freeExtents = new FreeExtents(home.work.system.File.METADATA_LENGTH);
+    private Compaction compaction;
+    private ExecutorService compactor;
+    private final DurabilityOptions durability;
+    private final GrowthOptions growth;
+    private final ContentCache cache;
+    private final ScheduledExecutorService flusher;
+    private final AtomicLong unflushedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
 
-    private final static ReentrantReadWriteLock LOCK = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Condition reservationsReleased = lock.writeLock().newCondition();
+    //moves which copy their sources under the read lock, guarded by the write lock
+    private int copyingMoves;
+    private final Condition movesCopied = lock.writeLock().newCondition();
 
     /**
-     * Creates a new FileSystem instance based on newly created file with the given size
-     * or uses existing one. If file is created from scratch, {@link #fileSystemSize}
-     * must be at least 8 bytes. If "fileSystem" file already exists, it is used to fill
-     * {@link #fileSystemTree}, set {@link #currentPosition} and {@link #defragNeeded} flag
+     * Creates a new FileSystem instance based on newly created "fileSystem" file in the working
+     * directory with the given size or uses existing one. If file is created from scratch, {@link #fileSystemSize}
+     * must be at least 24 bytes. If the file already exists, {@link #fileSystemTree},
+     * {@link #freeExtents} and {@link #defragNeeded} flag are loaded from its {@link DirectoryIndex}.
+     * If the index is missing or doesn't match the container, the container is scanned instead.
+     * Existing file of the previous format with int offsets is migrated to the current one.
+     * If compaction was interrupted, the interrupted record move is finished
+     * (see {@link MoveMarker}) and compaction is started again.
      *
      * @throws  IllegalArgumentException
-     *          If specified size is less than 8 bytes
+     *          If specified size is less than 24 bytes
      *
      * @throws  IOException
      *          If some other I/O error occurs
      */
-    FileSystem(int fileSystemSize) throws IOException {
+    FileSystem(long fileSystemSize) throws IOException {
+        this(fileSystemSize, DurabilityOptions.SYNC);
+    }
+
+    /**
+     * Creates a new FileSystem instance in the same way as {@link #FileSystem(long)},
+     * which forces its changes to the storage device as defined by {@code durability}
+     *
+     * @param  durability
+     *         Defines when changes are forced to the storage device
+     */
+    FileSystem(long fileSystemSize, DurabilityOptions durability) throws IOException {
+        this(fileSystemSize, durability, GrowthOptions.FIXED);
+    }
+
+    /**
+     * Creates a new FileSystem instance in the same way as {@link #FileSystem(long, DurabilityOptions)},
+     * which container is extended as defined by {@code growth} when a record doesn't fit it.
+     * Size of the existing container is kept, even if it is larger than the max size.
+     *
+     * @param  growth
+     *         Defines how the container grows
+     */
+    FileSystem(long fileSystemSize, DurabilityOptions durability, GrowthOptions growth) throws IOException {
+        this(Paths.get(DEFAULT_FILENAME), fileSystemSize, durability, growth);
+    }
+
+    /**
+     * Creates a new FileSystem instance in the same way as
+     * {@link #FileSystem(long, DurabilityOptions, GrowthOptions)}, which container is
+     * the file at the {@code path}. Index and other files of the file system are
+     * kept next to it. Every instance has its own lock, so instances of different
+     * containers don't block each other, but a container must not be opened twice
+     * (see {@link FileSystemRegistry}).
+     *
+     * @param  path
+     *         Path to the container file
+     */
+    FileSystem(Path path, long fileSystemSize, DurabilityOptions durability, GrowthOptions growth) throws IOException {
+        this(path, fileSystemSize, durability, growth, CacheOptions.DISABLED);
+    }
+
+    /**
+     * Creates a new FileSystem instance in the same way as
+     * {@link #FileSystem(Path, long, DurabilityOptions, GrowthOptions)}, which
+     * keeps content of hot small files in a {@link ContentCache}
+     *
+     * @param  cache
+     *         Defines size of the content cache
+     */
+    FileSystem(Path path, long fileSystemSize, DurabilityOptions durability, GrowthOptions growth,
+               CacheOptions cache) throws IOException {
+        this(path, fileSystemSize, MappedRegion.DEFAULT_SEGMENT_SIZE, durability, growth, cache);
+    }
+
+    FileSystem(long fileSystemSize, int segmentSize) throws IOException {
+        this(Paths.get(DEFAULT_FILENAME), fileSystemSize, segmentSize, DurabilityOptions.SYNC, GrowthOptions.FIXED,
+                CacheOptions.DISABLED);
+    }
+
+    FileSystem(Path path, long fileSystemSize, int segmentSize, DurabilityOptions durability, GrowthOptions growth,
+               CacheOptions cache) throws IOException {
         if (fileSystemSize < HEADER_SIZE) {
-            throw new IllegalArgumentException("File system size must be at least 8 bytes");
+            throw new IllegalArgumentException("File system size must be at least " + HEADER_SIZE + " bytes");
+        }
+        this.durability = durability;
+        this.growth = growth;
+        this.cache = new ContentCache(cache);
+        this.fileSystem = path.toFile();
+        this.moveMarker = MoveMarker.create(fileSystem.toPath());
+        this.index = new DirectoryIndex(fileSystem.toPath());
+        lock.writeLock().lock();
+        try {
+            if (fileSystem.createNewFile()) {
+                //marker of the container which does not exist anymore
+                moveMarker.clear();
+                this.region = new MappedRegion(fileSystem.toPath(), fileSystemSize, segmentSize);
+                writeHeader(region, fileSystemSize);
+                this.fileSystemSize = fileSystemSize;
+                this.currentPosition = HEADER_SIZE;
+                rewriteIndex(startMode());
+            } else {
+                boolean migrated = readMarker(fileSystem.toPath()) != MAGIC;
+                if (migrated) {
+                    migrateFromLegacyFormat(fileSystem.toPath(), segmentSize);
+                }
+                this.region = new MappedRegion(fileSystem.toPath(), HEADER_SIZE, segmentSize);
+                int version = region.getInt(INT_SIZE);
+                if (version != FORMAT_VERSION) {
+                    region.close();
+                    throw new IOException(String.format("Unsupported file system format version %d", version));
+                }
+                this.fileSystemSize = region.getLong(SIZE_OFFSET);
+                this.currentPosition = region.getLong(CURRENT_POSITION_OFFSET);
+                region.ensureMapped(this.fileSystemSize);
+                boolean interrupted = finishInterruptedMove();
+                long committedPosition = migrated || interrupted ? -1
+                        : index.load(this.fileSystemSize, HEADER_SIZE, currentPosition, fileSystemTree, freeExtents);
+                if (committedPosition < 0) {
+                    restoreFileSystemTree();
+                    rewriteIndex(startMode());
+                } else {
+                    rollBackUncommitted(committedPosition);
+                }
+                defragNeeded = freeExtents.getTotal() > 0;
+                if (interrupted) {
+                    startCompaction();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        this.flusher = durability.getMode() == DurabilityOptions.Mode.PERIODIC ? startFlusher() : null;
+    }
+
+    private static void writeHeader(MappedRegion region, long fileSystemSize) {
+        region.putInt(0, MAGIC);
+        region.putInt(INT_SIZE, FORMAT_VERSION);
+        region.putLong(SIZE_OFFSET, fileSystemSize);
+        region.putLong(CURRENT_POSITION_OFFSET, HEADER_SIZE);
+    }
+
+    private static int readMarker(Path path) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, READ)) {
+            ByteBuffer marker = ByteBuffer.allocate(INT_SIZE);
+            fc.read(marker, 0);
+            marker.flip();
+            return marker.remaining() == INT_SIZE ? marker.getInt() : 0;
+        }
+    }
+
+    /**
+     * Rewrites file system file of the previous format (int size and current position
+     * in the header, int content length in records) to the current format.
+     * Live records are copied to a temporary file next to the original one, which then
+     * replaces the original. Removed records are dropped. Size of the file system is
+     * increased by the size of the new metadata, so available space stays the same.
+     *
+     * @param  path
+     *         Path to the file system file of the previous format
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    private static void migrateFromLegacyFormat(Path path, int segmentSize) throws IOException {
+        Path migrated = path.resolveSibling(path.getFileName() + ".migration");
+        try (MappedRegion legacy = new MappedRegion(path, Files.size(path), segmentSize, true)) {
+            int legacySize = legacy.getInt(0);
+            int legacyPosition = legacy.getInt(INT_SIZE);
+            //count live records to calculate new size
+            int liveRecords = 0;
+            int position = LEGACY_HEADER_SIZE;
+            while (position < legacyPosition) {
+                int filenameLength = legacy.getInt(position + BOOL_SIZE);
+                if (legacy.get(position) == 0) {
+                    liveRecords++;
+                }
+                position += BOOL_SIZE + 2 * INT_SIZE + filenameLength + legacy.getInt(position + BOOL_SIZE + INT_SIZE + filenameLength);
+            }
+            long newSize = legacySize + (HEADER_SIZE - LEGACY_HEADER_SIZE) + (long) liveRecords * (LONG_SIZE - INT_SIZE);
+            Files.deleteIfExists(migrated);
+            Files.createFile(migrated);
+            try (MappedRegion region = new MappedRegion(migrated, newSize, segmentSize)) {
+                writeHeader(region, newSize);
+                long newPosition = HEADER_SIZE;
+                position = LEGACY_HEADER_SIZE;
+                while (position < legacyPosition) {
+                    int filenameLength = legacy.getInt(position + BOOL_SIZE);
+                    int contentPosition = position + BOOL_SIZE + 2 * INT_SIZE + filenameLength;
+                    int contentLength = legacy.getInt(contentPosition - INT_SIZE);
+                    if (legacy.get(position) == 0) {
+                        byte[] filename = new byte[filenameLength];
+                        legacy.get(position + BOOL_SIZE + INT_SIZE, filename, 0, filenameLength);
+                        byte[] content = new byte[contentLength];
+                        legacy.get(contentPosition, content, 0, contentLength);
+                        long newContentPosition = writeRecordHeader(region, newPosition, filename, contentLength);
+                        region.put(newContentPosition, content, 0, contentLength);
+                        newPosition = newContentPosition + contentLength;
+                    }
+                    position = contentPosition + contentLength;
+                }
+                region.putLong(CURRENT_POSITION_OFFSET, newPosition);
+                region.force();
+            }
+        }
+        Files.move(migrated, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Finishes the record move which was interrupted by a crash and marks the gap
+     * behind the moved record as removed, so records can be iterated again.
+     *
+     * @return  true if compaction was interrupted
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    private boolean finishInterruptedMove() throws IOException {
+        MoveMarker interrupted = MoveMarker.read(fileSystem.toPath());
+        if (interrupted == null) {
+            return false;
+        }
+        if (interrupted.isSet()) {
+            moveMarker.continueFrom(interrupted);
+            long from = interrupted.getFrom();
+            long to = interrupted.getTo();
+            long length = interrupted.getLength();
+            moveRecord(from, to, length, interrupted.getMoved());
+            if (to + length < currentPosition) {
+                markRemoved(to + length, Math.min(from + length, currentPosition));
+            }
+            region.force();
+        }
+        moveMarker.clear();
+        return true;
+    }
+
+    /**
+     * Replays the journal loaded from the {@link #index}: records written after the last
+     * commit are dropped. Records beyond the committed position are cut off, records written
+     * to free extents are marked as removed, records removed after the commit are
+     * restored, and names rewritten by {@link #move(String, String)} after the commit are
+     * written back, so the container matches the journal again.
+     *
+     * @param  committedPosition
+     *         Current position of the last committed journal entry
+     */
+    private void rollBackUncommitted(long committedPosition) {
+        if (committedPosition < currentPosition) {
+            currentPosition = committedPosition;
+            region.putLong(CURRENT_POSITION_OFFSET, currentPosition);
+        }
+        for (Map.Entry<Long, Long> extent : freeExtents.extents().entrySet()) {
+            markRemoved(extent.getKey(), extent.getKey() + extent.getValue());
+        }
+        fileSystemTree.forEach((filename, offset) -> {
+            region.put(offset, (byte) 0);
+            //name may be rewritten in place by a move after the commit
+            byte[] name = filename.getBytes();
+            if (region.getInt(offset + BOOL_SIZE) == name.length && !readFilename(offset).equals(filename)) {
+                region.put(offset + BOOL_SIZE + INT_SIZE, name, 0, name.length);
+            }
+        });
+    }
+
+    /**
+     * Scans existing container file to fill {@link #fileSystemTree} and
+     * {@link #freeExtents}, set {@link #currentPosition} and {@link #defragNeeded} flag.
+     * <p>First, boundaries of all records are collected sequentially from their length
+     * fields. Then flags and filenames are decoded in parallel by {@link RecordDecoder}
+     * tasks in the fork/join pool of the calling thread (the common pool by default),
+     * and results are merged in the order of records,
+     * so the last record with the same name wins, as in the sequential scan.</p>
+     */
+    private void restoreFileSystemTree() {
+        long[] boundaries = collectRecordBoundaries();
+        int records = boundaries.length - 1;
+        String[] filenames = new String[records];
+        new RecordDecoder(region, boundaries, filenames, 0, records).invoke();
+        for (int i = 0; i < records; i++) {
+            if (filenames[i] == null) {
+                defragNeeded = true;
+                freeExtents.add(boundaries[i], boundaries[i + 1] - boundaries[i]);
+            } else {
+                fileSystemTree.put(filenames[i], boundaries[i]);
+            }
+        }
+    }
+
+    /**
+     * Walks record length fields from the header to the {@link #currentPosition}.
+     * If a record is torn (its lengths point outside of written data), written data
+     * is truncated before it, because the following records can't be found.
+     *
+     * @return  positions of all records followed by the end of the last one
+     */
+    private long[] collectRecordBoundaries() {
+        long[] boundaries = new long[1024];
+        int count = 0;
+        long position = HEADER_SIZE;
+        while (position < currentPosition) {
+            long end = -1;
+            if (position + home.work.system.File.METADATA_LENGTH <= currentPosition) {
+                int filenameLength = region.getInt(position + BOOL_SIZE);
+                long contentPosition = position + BOOL_SIZE + INT_SIZE + filenameLength + LONG_SIZE;
+                if (filenameLength >= 0 && contentPosition <= currentPosition) {
+                    long contentLength = region.getLong(contentPosition - LONG_SIZE);
+                    end = contentLength >= 0 ? contentPosition + contentLength : -1;
+                }
+            }
+            if (end < 0 || end > currentPosition) {
+                currentPosition = position;
+                region.putLong(CURRENT_POSITION_OFFSET, currentPosition);
+                break;
+            }
+            if (count + 1 >= boundaries.length) {
+                boundaries = Arrays.copyOf(boundaries, boundaries.length * 2);
+            }
+            boundaries[count++] = position;
+            position = end;
+        }
+        boundaries[count] = position;
+        return Arrays.copyOf(boundaries, count + 1);
+    }
+
+    /**
+     * Decodes isRemoved flag and filename of records between the given boundaries.
+     * Filename of the record i is stored to filenames[i], or null if the record is removed.
+     * Ranges of records are split in halves until they are small enough.
+     */
+    private static class RecordDecoder extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final static int RECORDS_PER_TASK = 4096;
+
+        private final MappedRegion region;
+        private final long[] boundaries;
+        private final String[] filenames;
+        private final int from;
+        private final int to;
+
+        RecordDecoder(MappedRegion region, long[] boundaries, String[] filenames, int from, int to) {
+            this.region = region;
+            this.boundaries = boundaries;
+            this.filenames = filenames;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > RECORDS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RecordDecoder(region, boundaries, filenames, from, middle),
+                        new RecordDecoder(region, boundaries, filenames, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                long position = boundaries[i];
+                if (region.get(position) == 0) {
+                    byte[] filenameBytes = new byte[region.getInt(position + BOOL_SIZE)];
+                    region.get(position + BOOL_SIZE + INT_SIZE, filenameBytes, 0, filenameBytes.length);
+                    filenames[i] = new String(filenameBytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Uses {@link #checkIfFileWithSameNameExists(String)} to check if file
+     * with the same name already exists. Reserves space for the record under
+     * {@link #lock} (see {@link #reserve(String, long, boolean)}), then copies
+     * content to the reserved region without holding it, so writers copy their
+     * content concurrently and don't block readers. File becomes visible only
+     * when its content is complete.
+     *
+     * @param  file
+     *         Contains String filename and byte[] content to write
+     *
+     * @throws  IllegalArgumentException
+     *          If file with the same name already exists in file system
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void writeFileToFileSystem(home.work.system.File file) throws IOException {
+        writeToReservedSpace(file, false);
+    }
+
+    /**
+     * @param  replace
+     *         If true, existing file with the same name is replaced when the new one is published
+     */
+    private void writeToReservedSpace(home.work.system.File file, boolean replace) throws IOException {
+        List<Reservation> reserved = new ArrayList<>(1);
+        lock.writeLock().lock();
+        try {
+            reserved.add(reserve(file.getName(), file.getContentLength(), replace));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            byte[] content = file.getContent();
+            region.put(reserved.get(0).getContentPosition(), content, 0, content.length);
+        } catch (RuntimeException e) {
+            release(reserved);
+            throw e;
+        }
+        publish(reserved);
+    }
+
+    /**
+     * Writes several files in one pass. Names and space are checked, and space for all
+     * records is allocated as one contiguous extent, under a single {@link #lock}
+     * acquisition. Then content of all files is copied without holding it, and all
+     * files are published and committed together.
+     * <p>If {@code atomic} is false, files which can't be written (because of a duplicate
+     * name, or because there is not enough space even for them alone) are skipped and
+     * reported, and other files are written. If all files don't fit one extent, space
+     * is allocated for every file separately. If {@code atomic} is true, either all
+     * files are written, or none of them.</p>
+     *
+     * @param  files
+     *         Files to write
+     *
+     * @param  atomic
+     *         If true, the whole batch fails if any file can't be written
+     *
+     * @return  reasons of failures by names of files which were not written,
+     *          empty if all files were written
+     *
+     * @throws  IllegalArgumentException
+     *          If {@code atomic} is true, and some file has a duplicate name
+     *          or there is not enough space for all files
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public Map<String, Exception> writeFiles(Collection<home.work.system.File> files, boolean atomic) throws IOException {
+        Map<String, Exception> failures = new LinkedHashMap<>();
+        List<home.work.system.File> accepted = new ArrayList<>(files.size());
+        List<home.work.system.File> reservedFiles = new ArrayList<>(files.size());
+        List<Reservation> reserved = new ArrayList<>(files.size());
+        lock.writeLock().lock();
+        try {
+            Set<String> names = new HashSet<>();
+            long totalLength = 0;
+            for (home.work.system.File file : files) {
+                try {
+                    checkIfFileWithSameNameExists(file.getName());
+                    if (!names.add(file.getName())) {
+                        throw new IllegalArgumentException(String.format("File with \"%s\" name is written twice", file.getName()));
+                    }
+                    accepted.add(file);
+                    totalLength += file.getTotalLength();
+                } catch (IllegalArgumentException e) {
+                    if (atomic) {
+                        throw e;
+                    }
+                    failures.put(file.getName(), e);
+                }
+            }
+            long offset = -1;
+            if (!accepted.isEmpty()) {
+                try {
+                    offset = allocate(totalLength);
+                } catch (IllegalArgumentException e) {
+                    if (atomic) {
+                        throw e;
+                    }
+                }
+            }
+            for (home.work.system.File file : accepted) {
+                if (offset >= 0) {
+                    reserved.add(reserveAt(file.getName(), offset, file.getContentLength()));
+                    offset += file.getTotalLength();
+                } else {
+                    try {
+                        reserved.add(reserve(file.getName(), file.getContentLength()));
+                    } catch (IllegalArgumentException e) {
+                        failures.put(file.getName(), e);
+                        continue;
+                    }
+                }
+                reservedFiles.add(file);
+            }
+            region.putLong(CURRENT_POSITION_OFFSET, currentPosition);
+            index.position(currentPosition);
+        } catch (IOException | RuntimeException e) {
+            release(reserved);
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            for (int i = 0; i < reserved.size(); i++) {
+                byte[] content = reservedFiles.get(i).getContent();
+                region.put(reserved.get(i).getContentPosition(), content, 0, content.length);
+            }
+        } catch (RuntimeException e) {
+            release(reserved);
+            throw e;
+        }
+        if (!reserved.isEmpty()) {
+            publish(reserved);
+        }
+        return failures;
+    }
+
+    /**
+     * Writes isRemoved flag, filename length, filename and content length
+     * of the record starting at the {@code offset}
+     *
+     * @return  position of the record content
+     */
+    private static long writeRecordHeader(MappedRegion region, long offset, byte[] filename, long contentLength) {
+        //write isRemoved flag
+        region.put(offset, (byte) 0);
+        //write filename
+        region.putInt(offset + BOOL_SIZE, filename.length);
+        region.put(offset + BOOL_SIZE + INT_SIZE, filename, 0, filename.length);
+        //write content length
+        long contentLengthPosition = offset + BOOL_SIZE + INT_SIZE + filename.length;
+        region.putLong(contentLengthPosition, contentLength);
+        return contentLengthPosition + LONG_SIZE;
+    }
+
+    /**
+     * Reserves space for the file and copies its content straight from the file
+     * channel to the reserved region. {@link #lock} is held only to reserve space
+     * and to publish the record, so reads and other writes are not blocked
+     * while content is copied.
+     *
+     * @param  file
+     *         File of the ambient file system to copy
+     *
+     * @throws  IllegalArgumentException
+     *          If file with the same name already exists in file system,
+     *          or if there is not enough space
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void writeFileToFileSystem(File file) throws IOException {
+        copyFilesToFileSystem(Collections.singletonList(file));
+    }
+
+    /**
+     * Copies several files of the ambient file system in one pass. Space for
+     * all files is reserved under one lock acquisition, then content of each file
+     * is transferred to its reserved region without holding {@link #lock}, and
+     * all files are published at once. If any file fails, none of them is published.
+     *
+     * @param  files
+     *         Files of the ambient file system to copy
+     *
+     * @throws  IllegalArgumentException
+     *          If file with the same name already exists in file system,
+     *          or if there is not enough space for all files
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void copyFilesToFileSystem(Collection<File> files) throws IOException {
+        List<Reservation> reserved = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            for (File file : files) {
+                reserved.add(reserve(file.getName(), file.length()));
+            }
+        } catch (IOException | RuntimeException e) {
+            release(reserved);
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            Iterator<Reservation> reservation = reserved.iterator();
+            for (File file : files) {
+                Reservation next = reservation.next();
+                try (FileChannel source = FileChannel.open(file.toPath(), READ)) {
+                    region.transferFrom(source, next.getContentPosition(), next.getContentLength());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            release(reserved);
+            throw e;
+        }
+        publish(reserved);
+    }
+
+    /**
+     * Downloads content of the file without holding {@link #lock}, so reads,
+     * writes and other downloads are not blocked by a slow connection.
+     * <p>If connection returns content length, space is reserved up front and content
+     * is streamed straight to the reserved region. Otherwise content is streamed to a
+     * private staging file next to the {@link #fileSystem} file, and then transferred
+     * to the reserved region. In both cases content is copied in chunks of
+     * {@link #TRANSFER_CHUNK_SIZE} bytes, and the record is published only when
+     * the content is complete. If download fails, reserved space is released.</p>
+     *
+     * @param  connection
+     *         Valid connection to download content from
+     *
+     * @param  filename
+     *         Filename of the file to save to the file system
+     *
+     * @throws  IllegalArgumentException
+     *          If file with the same name already exists in file system, or
+     *          if there is not enough space
+     *
+     * @throws  IOException
+     *          If connection returned less or more bytes than its content length,
+     *          or if some other I/O error occurs
+     */
+    public void writeFileFromConnection(HttpURLConnection connection, String filename) throws IOException {
+        long contentLength = connection.getContentLengthLong();
+        try (InputStream inputStream = connection.getInputStream()) {
+            if (contentLength < 0) {
+                downloadThroughStagingFile(inputStream, filename);
+            } else {
+                downloadToReservedSpace(inputStream, filename, contentLength);
+            }
+        }
+    }
+
+    private void downloadToReservedSpace(InputStream inputStream, String filename, long contentLength) throws IOException {
+        List<Reservation> reserved = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            reserved.add(reserve(filename, contentLength));
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            Reservation reservation = reserved.get(0);
+            long position = reservation.getContentPosition();
+            byte[] chunk = new byte[TRANSFER_CHUNK_SIZE];
+            int bytesRead = 0;
+            while (position < reservation.getEnd() && (bytesRead = inputStream.read(chunk, 0,
+                    (int) Math.min(chunk.length, reservation.getEnd() - position))) != -1) {
+                region.put(position, chunk, 0, bytesRead);
+                position += bytesRead;
+            }
+            if (bytesRead == -1 || inputStream.read() != -1) {
+                throw new IOException(String.format("Connection returned content of unexpected length for file %s, "
+                        + "expected %d bytes", filename, contentLength));
+            }
+        } catch (IOException | RuntimeException e) {
+            release(reserved);
+            throw e;
+        }
+        publish(reserved);
+    }
+
+    private void downloadThroughStagingFile(InputStream inputStream, String filename) throws IOException {
+        WriteOnlyFileChannel channel = openForWrite(filename);
+        try {
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(TRANSFER_CHUNK_SIZE);
+            while (source.read(chunk) != -1) {
+                chunk.flip();
+                channel.write(chunk);
+                chunk.clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.cancel();
+            throw e;
+        }
+        channel.close();
+    }
+
+    /**
+     * Opens a channel to stream content of unknown length to a new file. Content is
+     * written to a staging file next to the container, and space is checked each time it
+     * grows past another {@link #TRANSFER_CHUNK_SIZE} bytes, so neither the content nor
+     * its space has to be known up front. When the channel is closed, space is reserved
+     * and content is transferred to the container, which fails if the rest of the content
+     * doesn't fit. Channel must be closed or cancelled.
+     *
+     * @param  filename
+     *         Filename of the new file
+     *
+     * @return  channel which creates the file when it is closed
+     *
+     * @throws  IllegalArgumentException
+     *          If file with the same name already exists in file system
+     *
+     * @throws  IOException
+     *          If staging file can't be created
+     */
+    public WriteOnlyFileChannel openForWrite(String filename) throws IOException {
+        if (fileExists(filename)) {
+            throw new IllegalArgumentException(String.format("File with \"%s\" name already exists", filename));
         }
-        this.fileSystem = new File(FILENAME);
-        LOCK.writeLock().lock();
+        return new StagingFileChannel(filename);
+    }
+
+    /**
+     * Opens a channel to stream content of known length to a new file. Space for the
+     * record is reserved up front, and content is written directly to it without holding
+     * {@link #lock}. File is published when the channel is closed. Channel must be closed
+     * or cancelled, otherwise reserved space and the filename stay taken.
+     *
+     * @param  filename
+     *         Filename of the new file
+     *
+     * @param  contentLength
+     *         Exact length of the content which will be written
+     *
+     * @return  channel which publishes the file when it is closed
+     *
+     * @throws  IllegalArgumentException
+     *          If file with the same name already exists in file system,
+     *          or if there is not enough space
+     *
+     * @throws  IOException
+     *          If the container can't be extended
+     */
+    public WriteOnlyFileChannel openForWrite(String filename, long contentLength) throws IOException {
+        lock.writeLock().lock();
+        try {
+            return new ReservedSpaceChannel(reserve(filename, contentLength));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes content to the space reserved for the record
+     */
+    private class ReservedSpaceChannel extends WriteOnlyFileChannel {
+        private final List<Reservation> reserved;
+
+        ReservedSpaceChannel(Reservation reservation) {
+            super(reservation.getFilename());
+            reserved = Collections.singletonList(reservation);
+        }
+
+        @Override
+        void writeContent(ByteBuffer buffer, long position) throws IOException {
+            Reservation reservation = reserved.get(0);
+            if (buffer.remaining() > reservation.getContentLength() - position) {
+                throw new IOException(String.format("Content of file %s is longer than %d bytes",
+                        getFilename(), reservation.getContentLength()));
+            }
+            region.put(reservation.getContentPosition() + position, buffer);
+        }
+
+        @Override
+        void publishContent(long length) throws IOException {
+            if (length != reserved.get(0).getContentLength()) {
+                release(reserved);
+                throw new IOException(String.format("Content of file %s is shorter than %d bytes",
+                        getFilename(), reserved.get(0).getContentLength()));
+            }
+            publish(reserved);
+        }
+
+        @Override
+        void discardContent() {
+            release(reserved);
+        }
+    }
+
+    /**
+     * Writes content to a staging file and transfers it to the container when closed
+     */
+    private class StagingFileChannel extends WriteOnlyFileChannel {
+        private final long metadataLength;
+        private final Path staging;
+        private final FileChannel stagingChannel;
+        //space is checked again when the content grows past this length
+        private long checkedLength;
+
+        StagingFileChannel(String filename) throws IOException {
+            super(filename);
+            metadataLength = home.work.system.File.METADATA_LENGTH + filename.getBytes().length;
+            staging = Files.createTempFile(fileSystem.getAbsoluteFile().toPath().getParent(), fileSystem.getName(), ".download");
+            try {
+                stagingChannel = FileChannel.open(staging, WRITE);
+            } catch (IOException e) {
+                Files.deleteIfExists(staging);
+                throw e;
+            }
+        }
+
+        @Override
+        void writeContent(ByteBuffer buffer, long position) throws IOException {
+            long length = position + buffer.remaining();
+            if (length > checkedLength) {
+                if (!isEnoughSpace(metadataLength + length)) {
+                    String errorMsg = String.format("Available space of %d kB is less then file size",
+                            getAvailableSpace() / 1024);
+                    throw new IllegalArgumentException(errorMsg);
+                }
+                checkedLength = (length / TRANSFER_CHUNK_SIZE + 1) * TRANSFER_CHUNK_SIZE;
+            }
+            while (buffer.hasRemaining()) {
+                stagingChannel.write(buffer);
+            }
+        }
+
+        @Override
+        void publishContent(long length) throws IOException {
+            try {
+                stagingChannel.close();
+                try (FileChannel source = FileChannel.open(staging, READ)) {
+                    transferToFileSystem(getFilename(), source, length);
+                }
+            } finally {
+                Files.deleteIfExists(staging);
+            }
+        }
+
+        @Override
+        void discardContent() throws IOException {
+            try {
+                stagingChannel.close();
+            } finally {
+                Files.deleteIfExists(staging);
+            }
+        }
+    }
+
+    /**
+     * Reserves space for one file and transfers its content from the {@code source}
+     * channel to the reserved region without holding {@link #lock}
+     */
+    private void transferToFileSystem(String filename, FileChannel source, long contentLength) throws IOException {
+        List<Reservation> reserved = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            reserved.add(reserve(filename, contentLength));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            region.transferFrom(source, reserved.get(0).getContentPosition(), contentLength);
+        } catch (IOException | RuntimeException e) {
+            release(reserved);
+            throw e;
+        }
+        publish(reserved);
+    }
+
+    private void checkIfFileWithSameNameExists(String filename) {
+        checkIfDirectoryName(filename);
+        if (fileSystemTree.containsKey(filename)) {
+            throw new IllegalArgumentException(String.format("File with \"%s\" name already exists", filename));
+        }
+        checkIfReserved(filename);
+    }
+
+    /**
+     * Names ending with '/' are names of directories, see {@link #mkdir(String)}
+     */
+    private static void checkIfDirectoryName(String filename) {
+        if (Directories.isDirectory(filename)) {
+            throw new IllegalArgumentException(String.format("\"%s\" is a name of directory", filename));
+        }
+    }
+
+    private void checkIfReserved(String filename) {
+        if (reservations.containsKey(filename)) {
+            throw new IllegalArgumentException(String.format("File with \"%s\" name already exists", filename));
+        }
+    }
+
+    /**
+     * Extends the container by a whole number of {@link GrowthOptions#getIncrement()}
+     * if {@code length} bytes don't fit its end
+     *
+     * @throws  IllegalArgumentException
+     *          If the container can't be extended enough
+     *
+     * @throws  IOException
+     *          If the container file can't be extended
+     */
+    private void checkIfEnoughSpace(long length) throws IOException {
+        if (fileSystemSize - currentPosition >= length) {
+            return;
+        }
+        long limit = Math.max(fileSystemSize, growth.getLimit());
+        if (!growth.isGrowable() || limit - currentPosition < length) {
+            String errorMsg = String.format("Available space of %d kB is less then file size of %d kB",
+                    (limit - currentPosition) / 1024, length / 1024);
+            throw new IllegalArgumentException(errorMsg);
+        }
+        long missing = currentPosition + length - fileSystemSize;
+        long increments = (missing + growth.getIncrement() - 1) / growth.getIncrement();
+        long newSize = increments > (limit - fileSystemSize) / growth.getIncrement()
+                ? limit : fileSystemSize + increments * growth.getIncrement();
+        resize(newSize);
+    }
+
+    /**
+     * Extends or truncates the container and writes the new size to the header and to the
+     * {@link #index}. Container file is extended before the header is updated, and truncated
+     * after it, so the header never describes space the file doesn't have.
+     * Must be called under {@link #lock} write lock.
+     */
+    private void resize(long newSize) throws IOException {
+        if (newSize > fileSystemSize) {
+            region.ensureMapped(newSize);
+        }
+        region.putLong(SIZE_OFFSET, newSize);
+        index.size(newSize, currentPosition);
+        if (newSize < fileSystemSize) {
+            //header and journal must be on disk before the space is gone
+            commit();
+            region.truncate(newSize);
+        }
+        fileSystemSize = newSize;
+    }
+
+    /**
+     * Reserves space for the record (see {@link #allocate(long)}) and writes its
+     * header with isRemoved flag set. Must be called under {@link #lock} write lock.
+     *
+     * @param  filename
+     *         Filename of the record
+     *
+     * @param  contentLength
+     *         Length of the content to be written
+     *
+     * @return  reservation which must be either published or released
+     *
+     * @throws  IllegalArgumentException
+     *          If file with the same name already exists in file system,
+     *          or if there is not enough space
+     */
+    private Reservation reserve(String filename, long contentLength) throws IOException {
+        return reserve(filename, contentLength, false);
+    }
+
+    /**
+     * @param  replace
+     *         If true, file with the same name may exist, it is replaced when the reservation
+     *         is published. Reservation of the same name still can't exist.
+     */
+    private Reservation reserve(String filename, long contentLength, boolean replace) throws IOException {
+        if (replace) {
+            checkIfDirectoryName(filename);
+            checkIfReserved(filename);
+        } else {
+            checkIfFileWithSameNameExists(filename);
+        }
+        long offset = allocate(home.work.system.File.METADATA_LENGTH + filename.getBytes().length + contentLength);
+        Reservation reservation = reserveAt(filename, offset, contentLength);
+        region.putLong(CURRENT_POSITION_OFFSET, currentPosition);
+        index.position(currentPosition);
+        return reservation;
+    }
+
+    /**
+     * Writes header of the reserved record with isRemoved flag set at the already
+     * allocated {@code offset}. Must be called under {@link #lock} write lock.
+     */
+    private Reservation reserveAt(String filename, long offset, long contentLength) {
+        long contentPosition = writeRecordHeader(region, offset, filename.getBytes(), contentLength);
+        region.put(offset, (byte) 1);
+        Reservation reservation = new Reservation(filename, offset, contentPosition, contentLength);
+        reservations.put(filename, reservation);
+        return reservation;
+    }
+
+    /**
+     * Takes space for the record from the best fitting free extent, or from the end
+     * of written data if no extent fits. The rest of the extent is marked as removed
+     * record. Space of removed records is used only when their removal is committed,
+     * see {@link FreeExtents#hold(long, long, long)}; if the record doesn't fit otherwise,
+     * the journal is committed first. Must be called under {@link #lock} write lock.
+     *
+     * @param  length
+     *         Total length of the record
+     *
+     * @return  position of the record
+     *
+     * @throws  IllegalArgumentException
+     *          If no free extent fits and there is not enough space at the end
+     *
+     * @throws  IOException
+     *          If the container can't be extended
+     */
+    private long allocate(long length) throws IOException {
+        releaseCommittedSpace();
+        long offset = freeExtents.allocate(length);
+        if (offset < 0 && copyingMoves == 0 && freeExtents.isHolding() && fileSystemSize - currentPosition < length) {
+            index.commit(index.lastSequence(), region, durability.getMode() != DurabilityOptions.Mode.NONE);
+            releaseCommittedSpace();
+            offset = freeExtents.allocate(length);
+        }
+        if (offset >= 0) {
+            long rest = freeExtents.lengthAt(offset + length);
+            if (rest > 0) {
+                markRemoved(offset + length, offset + length + rest);
+            }
+            return offset;
+        }
+        checkIfEnoughSpace(length);
+        offset = currentPosition;
+        currentPosition += length;
+        return offset;
+    }
+
+    /**
+     * Adds space of records, which removal is committed, to {@link #freeExtents}. While moves
+     * copy their sources, the space stays held, so a source removed meanwhile can't be replaced
+     * by a new record at the same offset. Must be called under {@link #lock} write lock.
+     */
+    private void releaseCommittedSpace() {
+        if (copyingMoves == 0) {
+            freeExtents.release(index.durableSequence());
+        }
+    }
+
+    /**
+     * Adds space of the released reservation to {@link #freeExtents}. Space which is not
+     * compacted yet by the running compaction is skipped, compaction releases it.
+     */
+    private void free(long offset, long length) {
+        free(offset, length, 0);
+    }
+
+    /**
+     * @param  sequence
+     *         Sequence number of the journal entry which removed the record, space is
+     *         held until it is committed; 0 if the record was never journaled
+     */
+    private void free(long offset, long length, long sequence) {
+        if (compaction == null || offset < compaction.getCompactedEnd()) {
+            if (sequence > 0) {
+                freeExtents.hold(offset, length, sequence);
+            } else {
+                freeExtents.add(offset, length);
+            }
+        }
+        defragNeeded = true;
+    }
+
+    /**
+     * Clears isRemoved flag of the reserved records and adds them to {@link #fileSystemTree}.
+     * Existing file with the same name, which is left by a replacing reservation, is deleted.
+     *
+     * @param  reserved
+     *         Reservations with completely written content
+     *
+     * @throws  IOException
+     *          If published records can't be committed
+     */
+    private void publish(Collection<Reservation> reserved) throws IOException {
+        long publishedBytes;
+        lock.writeLock().lock();
+        try {
+            publishedBytes = publishReserved(reserved);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        committed(publishedBytes);
+    }
+
+    /**
+     * Publishes the reservations, see {@link #publish(Collection)}, without committing them.
+     * Must be called under {@link #lock} write lock.
+     *
+     * @return  total length of published records
+     */
+    private long publishReserved(Collection<Reservation> reserved) {
+        long publishedBytes = 0;
+        for (Reservation reservation : reserved) {
+            publishedBytes += reservation.getEnd() - reservation.getOffset();
+            if (fileSystemTree.containsKey(reservation.getFilename())) {
+                delete(reservation.getFilename());
+            }
+            region.put(reservation.getOffset(), (byte) 0);
+            fileSystemTree.put(reservation.getFilename(), reservation.getOffset());
+            reservations.remove(reservation.getFilename());
+            index.put(reservation.getFilename(), reservation.getOffset(),
+                    reservation.getEnd() - reservation.getOffset(), currentPosition);
+        }
+        indexUpdated();
+        reservationsReleased.signalAll();
+        return publishedBytes;
+    }
+
+    /**
+     * Releases reserved space. Records stay marked as removed, and space is given back
+     * to the end of written data if they are at the end, or to {@link #freeExtents} otherwise.
+     *
+     * @param  reserved
+     *         Reservations to release
+     */
+    private void release(List<Reservation> reserved) {
+        lock.writeLock().lock();
+        try {
+            for (int i = reserved.size() - 1; i >= 0; i--) {
+                Reservation reservation = reserved.get(i);
+                reservations.remove(reservation.getFilename());
+                if (reservation.getEnd() == currentPosition) {
+                    currentPosition = reservation.getOffset();
+                } else {
+                    free(reservation.getOffset(), reservation.getEnd() - reservation.getOffset());
+                }
+            }
+            region.putLong(CURRENT_POSITION_OFFSET, currentPosition);
+            index.position(currentPosition);
+            reservationsReleased.signalAll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Uses {@link #fileSystemTree} to check if file with the specified name exists.
+     * Uses the {@link #region} to read content.
+     *
+     * @param  filename
+     *         Is needed to find file in file system
+     *
+     * @return  Found File with name and content
+     *
+     * @throws  FileNotFoundException
+     *          If file is not in {@link #fileSystemTree}, or the name is a directory name
+     *
+     * @throws  IOException
+     *          If file content doesn't fit byte array, or
+     *          if some other I/O error occurs
+     */
+    public home.work.system.File readFileFromFileSystem(String filename) throws IOException {
+        byte[] cached = cache.get(filename);
+        if (cached != null) {
+            return new home.work.system.File(filename, cached.clone());
+        }
+        lock.readLock().lock();
+        home.work.system.File file;
+        try {
+            long contentPosition = getContentPosition(getOffset(filename));
+            long contentLength = region.getLong(contentPosition - LONG_SIZE);
+            if (contentLength > Integer.MAX_VALUE) {
+                throw new IOException(String.format("File %s is too large to be read to byte array", filename));
+            }
+            //read file content
+            byte[] content = new byte[(int) contentLength];
+            region.get(contentPosition, content, 0, content.length);
+            if (cache.admits(contentLength)) {
+                //under the lock, so the file can't be replaced before it is cached
+                cache.put(filename, content.clone());
+            }
+            file = new home.work.system.File(filename, content);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return file;
+    }
+
+    /**
+     * Reads several files under one {@link #lock} acquisition. Offsets of all files are
+     * resolved first, and content is read in the order of offsets, so the shared
+     * {@link #region} is read sequentially. Files which don't exist are skipped.
+     *
+     * @param  filenames
+     *         Names of the files to read
+     *
+     * @return  found files by their names, in the order of {@code filenames}
+     *
+     * @throws  IOException
+     *          If content of some file doesn't fit byte array
+     */
+    public Map<String, home.work.system.File> readFiles(Collection<String> filenames) throws IOException {
+        String[] names = filenames.toArray(new String[0]);
+        long[] offsets = new long[names.length];
+        int[] order = new int[names.length];
+        home.work.system.File[] files = new home.work.system.File[names.length];
+        lock.readLock().lock();
+        try {
+            int found = 0;
+            for (int i = 0; i < names.length; i++) {
+                byte[] cached = cache.get(names[i]);
+                if (cached != null) {
+                    files[i] = new home.work.system.File(names[i], cached.clone());
+                    continue;
+                }
+                long offset = Directories.isDirectory(names[i]) ? -1 : fileSystemTree.get(names[i]);
+                if (offset >= 0) {
+                    offsets[i] = offset;
+                    order[found++] = i;
+                }
+            }
+            IntSort.sort(order, 0, found, (first, second) -> Long.compare(offsets[first], offsets[second]));
+            for (int k = 0; k < found; k++) {
+                int i = order[k];
+                long contentPosition = getContentPosition(offsets[i]);
+                long contentLength = region.getLong(contentPosition - LONG_SIZE);
+                if (contentLength > Integer.MAX_VALUE) {
+                    throw new IOException(String.format("File %s is too large to be read to byte array", names[i]));
+                }
+                byte[] content = new byte[(int) contentLength];
+                region.get(contentPosition, content, 0, content.length);
+                if (cache.admits(contentLength)) {
+                    cache.put(names[i], content.clone());
+                }
+                files[i] = new home.work.system.File(names[i], content);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Map<String, home.work.system.File> result = new LinkedHashMap<>();
+        for (home.work.system.File file : files) {
+            if (file != null) {
+                result.put(file.getName(), file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads a part of the file content starting at {@code position} into the {@code buffer},
+     * until the buffer is full or the end of the content is reached. Only the pages of the
+     * {@link #region} which hold the requested bytes are touched.
+     *
+     * @param  filename
+     *         Name of the file to read
+     *
+     * @param  position
+     *         Position within the file content
+     *
+     * @param  buffer
+     *         Buffer to read into, its position is advanced by the number of bytes read
+     *
+     * @return  number of bytes read, or -1 if {@code position} is at or beyond the end of the content
+     *
+     * @throws  FileNotFoundException
+     *          If file is not in {@link #fileSystemTree}, or the name is a directory name
+     *
+     * @throws  IllegalArgumentException
+     *          If position is negative
+     */
+    public int readRange(String filename, long position, ByteBuffer buffer) throws IOException {
+        checkRangePosition(position);
+        lock.readLock().lock();
+        try {
+            long contentPosition = getContentPosition(getOffset(filename));
+            long contentLength = region.getLong(contentPosition - LONG_SIZE);
+            if (position >= contentLength) {
+                return -1;
+            }
+            int length = (int) Math.min(buffer.remaining(), contentLength - position);
+            ByteBuffer window = buffer.duplicate();
+            window.limit(window.position() + length);
+            region.get(contentPosition + position, window);
+            buffer.position(buffer.position() + length);
+            return length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads at most {@code length} bytes of the file content starting at {@code position}
+     * into the {@code bytes} array. Only the pages of the {@link #region} which hold
+     * the requested bytes are touched.
+     *
+     * @param  filename
+     *         Name of the file to read
+     *
+     * @param  position
+     *         Position within the file content
+     *
+     * @param  bytes
+     *         Array to read into
+     *
+     * @param  offset
+     *         Position in the {@code bytes} to write the first byte to
+     *
+     * @param  length
+     *         Max number of bytes to read
+     *
+     * @return  number of bytes read, or -1 if {@code position} is at or beyond the end of the content
+     *
+     * @throws  FileNotFoundException
+     *          If file is not in {@link #fileSystemTree}, or the name is a directory name
+     *
+     * @throws  IllegalArgumentException
+     *          If position is negative
+     */
+    public int readRange(String filename, long position, byte[] bytes, int offset, int length) throws IOException {
+        return readRange(filename, position, ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Returns a channel on the current content of the file. The channel looks the file
+     * up on every read, see {@link ReadOnlyFileChannel}.
+     *
+     * @throws  FileNotFoundException
+     *          If file is not in {@link #fileSystemTree}, or the name is a directory name
+     */
+    public ReadOnlyFileChannel getReadOnlyFileChannel(String filename) throws IOException {
+        lock.readLock().lock();
+        try {
+            long contentPosition = getContentPosition(getOffset(filename));
+            long contentLength = region.getLong(contentPosition - LONG_SIZE);
+            return new ReadOnlyFileChannel(region, contentLength, read -> readContent(filename, contentLength, read));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads content of the file for a {@link ReadOnlyFileChannel} under the read lock,
+     * so the record can't be moved, removed or reused while it is read.
+     *
+     * @throws  IOException
+     *          If the file was removed, or replaced with content of another length
+     */
+    private long readContent(String filename, long contentLength, ReadOnlyFileChannel.ContentRead read) throws IOException {
+        lock.readLock().lock();
+        try {
+            long offset = fileSystemTree.get(filename);
+            long contentPosition = offset < 0 ? -1 : getContentPosition(offset);
+            if (contentPosition < 0 || region.getLong(contentPosition - LONG_SIZE) != contentLength) {
+                throw new IOException(String.format("File %s was removed or replaced after the channel was opened", filename));
+            }
+            return read.read(contentPosition);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return  offset of the record of the file
+     *
+     * @throws  FileNotFoundException
+     *          If file is not in {@link #fileSystemTree}, or the name is a directory name
+     */
+    private long getOffset(String filename) throws FileNotFoundException {
+        long offset = Directories.isDirectory(filename) ? -1 : fileSystemTree.get(filename);
+        if (offset < 0) {
+            throw new FileNotFoundException(String.format("File %s not found", filename));
+        }
+        return offset;
+    }
+
+    private static void checkRangePosition(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+    }
+
+    /**
+     * Skips isRemoved flag, filename and content length of the record
+     *
+     * @param  offset
+     *         Position of the record in the container
+     *
+     * @return  position of the record content
+     */
+    private long getContentPosition(long offset) {
+        int filenameLength = region.getInt(offset + BOOL_SIZE);
+        return offset + BOOL_SIZE + INT_SIZE + filenameLength + LONG_SIZE;
+    }
+
+    /**
+     * Uses {@link #fileSystemTree} to check if file with the specified name exists.
+     *
+     * @param  filename
+     *         Is needed to find file in file system
+     *
+     * @return  true if file was found, false otherwise
+     *
+     */
+    public boolean fileExists(String filename) {
+        return !Directories.isDirectory(filename) && fileSystemTree.containsKey(filename);
+    }
+
+    /**
+     * Uses {@link #fileSystemTree} to get filenames of all existing files.
+     *
+     * @return  list of filenames of all files existing in file system, sorted
+     *          by code points of filenames
+     *
+     */
+    public List<String> listFiles() {
+        return listFiles("");
+    }
+
+    /**
+     * Uses sorted names of {@link #fileSystemTree} to get filenames starting with
+     * the {@code prefix}. Only names in the range of the prefix are visited.
+     *
+     * @param  prefix
+     *         Beginning of filenames, empty to list all files
+     *
+     * @return  sorted list of filenames starting with the {@code prefix}
+     */
+    public List<String> listFiles(String prefix) {
+        return streamFiles(prefix).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns one page of sorted filenames starting with the {@code prefix}. The next
+     * page is requested with the last filename of this one as {@code startAfter}, so
+     * pages stay consistent if files are added or removed between requests.
+     *
+     * @param  prefix
+     *         Beginning of filenames, empty to list all files
+     *
+     * @param  startAfter
+     *         Only filenames greater than it are returned, null for the first page
+     *
+     * @param  limit
+     *         Max number of filenames in the page
+     *
+     * @return  sorted list of at most {@code limit} filenames
+     *
+     * @throws  IllegalArgumentException
+     *          If limit is not positive
+     */
+    public List<String> listFiles(String prefix, String startAfter, int limit) {
+        checkLimit(limit);
+        return streamFiles(prefix, startAfter).limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Uses sorted names of {@link #fileSystemTree} to get filenames matching the glob
+     * pattern: {@code *} matches any characters, {@code ?} matches one character,
+     * {@code [abc]}, {@code [a-z]} and {@code [!a-z]} match one character of the class,
+     * and {@code \} escapes the next character. Only names starting with the part of
+     * the pattern before the first wildcard are visited.
+     *
+     * @param  glob
+     *         Pattern the whole filename must match
+     *
+     * @return  sorted list of matching filenames
+     *
+     * @throws  IllegalArgumentException
+     *          If the pattern is malformed
+     */
+    public List<String> listFilesMatching(String glob) {
+        return streamFilesMatching(glob, null).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns one page of sorted filenames matching the glob pattern, see
+     * {@link #listFilesMatching(String)} and {@link #listFiles(String, String, int)}
+     *
+     * @throws  IllegalArgumentException
+     *          If the pattern is malformed or limit is not positive
+     */
+    public List<String> listFilesMatching(String glob, String startAfter, int limit) {
+        checkLimit(limit);
+        return streamFilesMatching(glob, startAfter).limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns lazy stream of sorted filenames starting with the {@code prefix}. The stream
+     * doesn't hold any lock, names are read as it is consumed. It returns every file
+     * which exists during the whole traversal; files added or removed meanwhile may
+     * be returned or not.
+     *
+     * @param  prefix
+     *         Beginning of filenames, empty to stream all files
+     */
+    public Stream<String> streamFiles(String prefix) {
+        return streamFiles(prefix, null);
+    }
+
+    private Stream<String> streamFiles(String prefix, String startAfter) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(fileSystemTree.names(prefix, startAfter),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+                .filter(name -> !Directories.isDirectory(name));
+    }
+
+    private Stream<String> streamFilesMatching(String glob, String startAfter) {
+        Pattern pattern = globToPattern(glob);
+        return streamFiles(globPrefix(glob), startAfter).filter(name -> pattern.matcher(name).matches());
+    }
+
+    private static void checkLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+    }
+
+    /**
+     * @return  part of the glob pattern before the first wildcard or escape
+     */
+    private static String globPrefix(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if ("*?[\\".indexOf(glob.charAt(i)) >= 0) {
+                return glob.substring(0, i);
+            }
+        }
+        return glob;
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '\\') {
+                if (++i == glob.length()) {
+                    throw new IllegalArgumentException(String.format("Pattern %s ends with escape", glob));
+                }
+                appendLiteral(regex, glob.charAt(i));
+            } else if (c == '[') {
+                int end = glob.indexOf(']', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException(String.format("Pattern %s has unclosed [", glob));
+                }
+                regex.append('[');
+                int start = i + 1;
+                if (start < end && glob.charAt(start) == '!') {
+                    regex.append('^');
+                    start++;
+                }
+                for (int j = start; j < end; j++) {
+                    if (glob.charAt(j) == '-') {
+                        regex.append('-');
+                    } else {
+                        appendLiteral(regex, glob.charAt(j));
+                    }
+                }
+                regex.append(']');
+                i = end;
+            } else {
+                appendLiteral(regex, c);
+            }
+        }
+        try {
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException(String.format("Pattern %s is malformed", glob), e);
+        }
+    }
+
+    private static void appendLiteral(StringBuilder regex, char c) {
+        if (!Character.isLetterOrDigit(c)) {
+            //escaped non-alphabetic characters are always literal
+            regex.append('\\');
+        }
+        regex.append(c);
+    }
+
+    /**
+     * Uses {@link #fileSystemTree} to check if file with the specified name exists.
+     * Uses the {@link #region} to write 1 byte
+     * in front of file to indicate that file is removed from the file system. Removes
+     * file entry from {@link #fileSystemTree}, adds its space to {@link #freeExtents}
+     * when the removal is committed and sets {@link #defragNeeded} to true
+     *
+     * @param  filename
+     *         Is needed to find file in file system
+     *
+     * @throws  FileNotFoundException
+     *          If file is not in {@link #fileSystemTree}
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void removeFileFromFileSystem(String filename) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!fileExists(filename)) {
+                throw new FileNotFoundException(String.format("File %s not found", filename));
+            }
+            delete(filename);
+            indexUpdated();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        committed(0);
+    }
+
+    private void delete(String filename) {
+        long offset = fileSystemTree.remove(filename);
+        cache.invalidate(filename);
+        long sequence = index.remove(filename, currentPosition);
+        //write isRemoved flag
+        region.put(offset, (byte) 1);
+        free(offset, recordEnd(offset) - offset, sequence);
+    }
+
+    /**
+     * Creates the directory. Directory is an empty record with the name ending with '/',
+     * so it is stored and restored as any other record. Missing parent directories are
+     * implied, as they are for files: writing "a/b/c" implies directories "a/" and "a/b/",
+     * which exist while they have children.
+     *
+     * @param  directory
+     *         Name of the directory, '/' is appended if it is missing
+     *
+     * @throws  IllegalArgumentException
+     *          If the directory was already created, or the name is the root
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void mkdir(String directory) throws IOException {
+        String name = toDirectoryName(directory);
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Root directory always exists");
+        }
+        List<Reservation> reserved = new ArrayList<>(1);
+        lock.writeLock().lock();
+        try {
+            if (fileSystemTree.containsKey(name)) {
+                throw new IllegalArgumentException(String.format("Directory \"%s\" already exists", name));
+            }
+            checkIfReserved(name);
+            long offset = allocate(home.work.system.File.METADATA_LENGTH + name.getBytes().length);
+            reserved.add(reserveAt(name, offset, 0));
+            region.putLong(CURRENT_POSITION_OFFSET, currentPosition);
+            index.position(currentPosition);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        publish(reserved);
+    }
+
+    /**
+     * Returns children of the directory from its own index, so only the children are
+     * visited. Doesn't take {@link #lock}.
+     *
+     * @param  directory
+     *         Name of the directory, empty or "/" for the root
+     *
+     * @return  sorted list of full names of files and directories in the directory,
+     *          names of directories end with '/'
+     *
+     * @throws  FileNotFoundException
+     *          If the directory doesn't exist
+     */
+    public List<String> listDirectory(String directory) throws FileNotFoundException {
+        return listDirectory(directory, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns one page of children of the directory, see {@link #listDirectory(String)}
+     * and {@link #listFiles(String, String, int)}
+     *
+     * @param  startAfter
+     *         Last name of the previous page, null for the first page
+     *
+     * @throws  IllegalArgumentException
+     *          If limit is not positive
+     */
+    public List<String> listDirectory(String directory, String startAfter, int limit) throws FileNotFoundException {
+        checkLimit(limit);
+        String name = toDirectoryName(directory);
+        if (!fileSystemTree.directoryExists(name)) {
+            throw new FileNotFoundException(String.format("Directory %s not found", name));
+        }
+        List<String> children = new ArrayList<>();
+        Iterator<String> iterator = fileSystemTree.children(name, startAfter);
+        while (children.size() < limit && iterator.hasNext()) {
+            children.add(iterator.next());
+        }
+        return children;
+    }
+
+    /**
+     * Removes the directory with all files and directories in it. Only records of
+     * the directory are visited, through indexes of its subdirectories.
+     *
+     * @param  directory
+     *         Name of the directory, '/' is appended if it is missing
+     *
+     * @throws  FileNotFoundException
+     *          If the directory doesn't exist
+     *
+     * @throws  IllegalArgumentException
+     *          If the directory is the root, see {@link #formatFileSystem()}
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void removeDirectory(String directory) throws IOException {
+        String name = toDirectoryName(directory);
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Root directory can't be removed");
+        }
+        lock.writeLock().lock();
+        try {
+            if (!fileSystemTree.directoryExists(name)) {
+                throw new FileNotFoundException(String.format("Directory %s not found", name));
+            }
+            for (String record : collectRecords(name)) {
+                delete(record);
+            }
+            indexUpdated();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        committed(0);
+    }
+
+    /**
+     * Moves the file or the directory with everything in it to the new name. Records keep
+     * their names in the container, so if every new name takes as many bytes as the old one,
+     * names are rewritten in place and the journal gets the new names at the same offsets:
+     * nothing else is written, and the write lock is held in time of the number of moved names.
+     * <p>Otherwise records with new names don't fit the old place, and every record is copied
+     * to a new one inside the mapping, content doesn't pass through heap. Space is reserved
+     * under the write lock, content is copied under the read lock, so readers are not blocked
+     * and the sources can't be changed meanwhile, and new records are published with removal
+     * of the old ones under the write lock. Compaction waits until the move is published, so
+     * the sources stay at their offsets. A move which doesn't fit changes nothing.</p>
+     *
+     * @param  source
+     *         Name of the file, or of the directory
+     *
+     * @param  target
+     *         New name, it must not exist
+     *
+     * @throws  FileNotFoundException
+     *          If the source doesn't exist
+     *
+     * @throws  IllegalArgumentException
+     *          If the target exists, the directory is moved into itself,
+     *          or there is not enough space
+     *
+     * @throws  IllegalStateException
+     *          If records are copied, and some of them was removed or replaced
+     *          before new records were published
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void move(String source, String target) throws IOException {
+        List<String> sources;
+        List<String> targets = new ArrayList<>();
+        boolean renamed;
+        long[] offsets = null;
+        List<Reservation> reserved = new ArrayList<>();
+        lock.writeLock().lock();
         try {
-            if (fileSystem.createNewFile()) {
-                try (FileChannel fc = FileChannel.open(fileSystem.toPath(), READ, WRITE)) {
-                    MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
-                    memory.putInt(fileSystemSize);
-                    this.fileSystemSize = fileSystemSize;
-                    memory.putInt(HEADER_SIZE);
-                    this.currentPosition = HEADER_SIZE;
+            if (!Directories.isDirectory(source) && fileSystemTree.containsKey(source)) {
+                checkIfFileWithSameNameExists(target);
+                sources = Collections.singletonList(source);
+                targets.add(target);
+            } else {
+                String from = toDirectoryName(source);
+                String to = toDirectoryName(target);
+                if (from.isEmpty() || !fileSystemTree.directoryExists(from)) {
+                    throw new FileNotFoundException(String.format("Directory %s not found", from));
+                }
+                if (to.startsWith(from)) {
+                    throw new IllegalArgumentException(String.format("Directory %s can't be moved into itself", from));
+                }
+                if (fileSystemTree.directoryExists(to) || fileSystemTree.containsKey(target)) {
+                    throw new IllegalArgumentException(String.format("Directory \"%s\" already exists", to));
                 }
+                sources = collectRecords(from);
+                for (String name : sources) {
+                    String moved = to + name.substring(from.length());
+                    checkIfReserved(moved);
+                    targets.add(moved);
+                }
+            }
+            renamed = sameNameLengths(sources, targets);
+            if (renamed) {
+                for (int i = 0; i < sources.size(); i++) {
+                    rename(sources.get(i), targets.get(i));
+                }
+                indexUpdated();
             } else {
-                try (FileChannel fc = FileChannel.open(fileSystem.toPath(), READ)) {
-                    MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-                    this.fileSystemSize = memory.getInt();
-                    this.currentPosition = memory.getInt();
-                    if (fc.size() > HEADER_SIZE) {
-                        restoreFileSystemTree(memory);
-                    }
+                offsets = reserveCopies(sources, targets, reserved);
+                copyingMoves++;
+                //downgrade, so sources are copied while readers are not blocked
+                lock.readLock().lock();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (renamed) {
+            committed(0);
+            return;
+        }
+        RuntimeException failure = null;
+        try {
+            for (int i = 0; i < sources.size(); i++) {
+                Reservation copy = reserved.get(i);
+                region.copy(getContentPosition(offsets[i]), copy.getContentPosition(), copy.getContentLength());
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            lock.readLock().unlock();
+        }
+        long movedBytes;
+        lock.writeLock().lock();
+        try {
+            copyingMoves--;
+            movesCopied.signalAll();
+            if (failure != null) {
+                release(reserved);
+                throw failure;
+            }
+            //neither compaction nor a new record could take the offset of a source meanwhile
+            for (int i = 0; i < sources.size(); i++) {
+                if (fileSystemTree.get(sources.get(i)) != offsets[i]) {
+                    release(reserved);
+                    throw new IllegalStateException(String.format("File %s was changed while it was moved",
+                            sources.get(i)));
                 }
             }
+            for (String name : sources) {
+                delete(name);
+            }
+            movedBytes = publishReserved(reserved);
         } finally {
-            LOCK.writeLock().unlock();
+            lock.writeLock().unlock();
         }
+        committed(movedBytes);
+    }
 
+    private static boolean sameNameLengths(List<String> sources, List<String> targets) {
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).getBytes().length != targets.get(i).getBytes().length) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Iterates existing "fileSystem" file to fill {@link #fileSystemTree},
-     * set {@link #currentPosition} and {@link #defragNeeded} flag
-     *
-     * @param  memory
-     *         MemoryByteBuffer containing all bytes of the {@link #fileSystem} file
+     * Rewrites the name of the record in place and journals the record under the new name
+     * at the same offset. Names must take the same number of bytes. If the process dies
+     * before the journal is committed, {@link #rollBackUncommitted(long)} writes back the
+     * committed name. Must be called under {@link #lock} write lock.
      */
-    private void restoreFileSystemTree(MappedByteBuffer memory) {
-        int position = HEADER_SIZE;
-        while (position < currentPosition) {
-            //read isRemoved flag
-            memory.position(position);
-            boolean isRemoved = memory.get() == 1;
-            //read filename
-            int filenameLength = memory.getInt();
-            if (isRemoved) {
-                memory.position(memory.position() + filenameLength);
-                defragNeeded = true;
-            } else {
-                byte[] filenameBytes = new byte[filenameLength];
-                memory.get(filenameBytes);
-                //update fileSystemTree
-                fileSystemTree.put(new String(filenameBytes), position);
-            }
-            //get file content length and update position
-            int fileLength = memory.getInt();
-            position = position + 2 * INT_SIZE + BOOL_SIZE + filenameLength + fileLength;
-        }
+    private void rename(String source, String target) {
+        long offset = fileSystemTree.remove(source);
+        cache.invalidate(source);
+        byte[] name = target.getBytes();
+        region.put(offset + BOOL_SIZE + INT_SIZE, name, 0, name.length);
+        fileSystemTree.put(target, offset);
+        index.remove(source, currentPosition);
+        index.put(target, offset, recordEnd(offset) - offset, currentPosition);
     }
 
     /**
-     * Uses {@link #checkIfFileWithSameNameExists(String)} to check if file
-     * with the same name already exists. Opens MemoryMappedBuffer on top
-     * of {@link #fileSystem} file to write filename length, filename, content length,
-     * and content. Sets currentPosition to the start of unoccupied file space
-     *
-     * @param  file
-     *         Contains String filename and byte[] content to write
+     * Reserves records with the target names for copies of the source records.
+     * Must be called under {@link #lock} write lock.
      *
-     * @throws  IllegalArgumentException
-     *          If file with the same name already exists in file system
+     * @param  reserved
+     *         Receives reservations in the order of targets, they are released on failure
      *
-     * @throws  IOException
-     *          If some other I/O error occurs
+     * @return  offsets of the source records
      */
-    public void writeFileToFileSystem(home.work.system.File file) throws IOException {
-        LOCK.writeLock().lock();
+    private long[] reserveCopies(List<String> sources, List<String> targets, List<Reservation> reserved)
+            throws IOException {
+        long[] offsets = new long[sources.size()];
         try {
-            String filename = file.getName();
-            checkIfFileWithSameNameExists(filename);
-            int totalLength = file.getTotalLength();
-            int offset = currentPosition;
-            currentPosition = currentPosition + totalLength;
-            fileSystemTree.put(file.getName(), offset);
-            int lowerBoundary = INT_SIZE;
-            int channelSize = (offset - INT_SIZE) + totalLength;
-            try(FileChannel fc = FileChannel.open(fileSystem.toPath(), READ, WRITE)) {
-                MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_WRITE, lowerBoundary, channelSize);
-                //write isRemoved flag
-                memory.position(offset - lowerBoundary);
-                memory.put((byte) 0);
-                //write filename
-                memory.putInt(file.getNameLength());
-                memory.put(filename.getBytes());
-                //write file content
-                memory.putInt(file.getContentLength());
-                memory.put(file.getContent());
-                //update current position
-                memory.position(0);
-                memory.putInt(currentPosition);
+            for (int i = 0; i < sources.size(); i++) {
+                offsets[i] = fileSystemTree.get(sources.get(i));
+                long contentPosition = getContentPosition(offsets[i]);
+                long contentLength = region.getLong(contentPosition - LONG_SIZE);
+                String target = targets.get(i);
+                long offset = allocate(home.work.system.File.METADATA_LENGTH + target.getBytes().length
+                        + contentLength);
+                reserved.add(reserveAt(target, offset, contentLength));
             }
-        } finally {
-            LOCK.writeLock().unlock();
+        } catch (IOException | RuntimeException e) {
+            release(reserved);
+            throw e;
         }
+        region.putLong(CURRENT_POSITION_OFFSET, currentPosition);
+        index.position(currentPosition);
+        return offsets;
     }
 
-    public void writeFileToFileSystem(File file) throws IOException {
-        LOCK.writeLock().lock();
-        try {
-            String filename = file.getName();
-            checkIfFileWithSameNameExists(filename);
-            int contentLength = (int) file.length(); //downcast because we already know it fits available space
-            int totalLength = BOOL_SIZE + 2 * INT_SIZE + filename.getBytes().length + contentLength;
-            int offset = currentPosition;
-            currentPosition = currentPosition + totalLength;
-            fileSystemTree.put(file.getName(), offset);
-            int lowerBoundary = INT_SIZE;
-            int channelSize = (offset - INT_SIZE) + totalLength;
-            try(FileChannel destChannel = FileChannel.open(fileSystem.toPath(), READ, WRITE);
-                InputStream inputStream = new FileInputStream(file)) {
-                MappedByteBuffer memory = destChannel.map(FileChannel.MapMode.READ_WRITE, lowerBoundary, channelSize);
-                //write isRemoved flag
-                memory.position(offset - lowerBoundary);
-                memory.put((byte) 0);
-                //write filename
-                memory.putInt(filename.getBytes().length);
-                memory.put(filename.getBytes());
-                //write file content
-                memory.putInt(contentLength);
-                int byteRead;
-                while ((byteRead = inputStream.read()) != -1) {
-                    memory.put((byte) byteRead);
-                }
-                //update current position
-                memory.position(0);
-                memory.putInt(currentPosition);
+    /**
+     * @return  names of all records in the directory and its subdirectories, and of
+     *          the directory itself if it has a record; subdirectories come after their
+     *          children. Must be called under {@link #lock} write lock.
+     */
+    private List<String> collectRecords(String directory) {
+        List<String> records = new ArrayList<>();
+        Deque<String> directories = new ArrayDeque<>();
+        directories.push(directory);
+        List<String> visited = new ArrayList<>();
+        while (!directories.isEmpty()) {
+            String current = directories.pop();
+            visited.add(current);
+            Iterator<String> children = fileSystemTree.children(current, null);
+            while (children.hasNext()) {
+                String child = children.next();
+                if (Directories.isDirectory(child)) {
+                    directories.push(child);
+                } else {
+                    records.add(child);
+                }
+            }
+        }
+        for (int i = visited.size() - 1; i >= 0; i--) {
+            if (fileSystemTree.containsKey(visited.get(i))) {
+                records.add(visited.get(i));
             }
-        } finally {
-            LOCK.writeLock().unlock();
         }
+        return records;
     }
 
     /**
-     * Uses {@link #checkIfFileWithSameNameExists(String)} to check if file
-     * with the same name already exists. Opens MemoryMappedBuffer on top
-     * of {@link #fileSystem} file to write filename length, filename, content length,
-     * and content. Content length is assumed to be unknown, hence, content is written
-     * byte by byte until the end of the input stream is reached.
-     *
-     * @param  connection
-     *         Valid connection to download content from
+     * @return  name of the directory ending with '/', or the empty name of the root
+     */
+    private static String toDirectoryName(String directory) {
+        if (directory.isEmpty() || directory.equals("/")) {
+            return "";
+        }
+        return directory.endsWith("/") ? directory : directory + "/";
+    }
+
+    /**
+     * @return  position right after the end of the record at the {@code offset}
+     */
+    private long recordEnd(long offset) {
+        long contentPosition = getContentPosition(offset);
+        return contentPosition + region.getLong(contentPosition - LONG_SIZE);
+    }
+
+    /**
+     * Rewrites {@link #index} as a snapshot if its log is too long.
+     * Must be called under {@link #lock} write lock.
+     */
+    private void indexUpdated() {
+        if (index.needsRewrite(fileSystemTree.size())) {
+            rewriteIndex();
+        }
+    }
+
+    private void rewriteIndex() {
+        rewriteIndex(durability.getMode());
+    }
+
+    private void rewriteIndex(DurabilityOptions.Mode mode) {
+        index.rewrite(fileSystemSize, currentPosition, fileSystemTree, offset -> recordEnd(offset) - offset,
+                region, mode);
+    }
+
+    /**
+     * @return  mode of the index snapshot written on start: nobody waits for the lock yet,
+     *          so in {@link DurabilityOptions.Mode#PERIODIC} mode it is not left for the flusher
+     */
+    private DurabilityOptions.Mode startMode() {
+        DurabilityOptions.Mode mode = durability.getMode();
+        return mode == DurabilityOptions.Mode.PERIODIC ? DurabilityOptions.Mode.SYNC : mode;
+    }
+
+    /**
+     * Makes all changes of the file system durable. Changes of concurrent writers
+     * are committed by a single flush, see {@link DirectoryIndex#commit(long, MappedRegion, boolean)}.
      *
-     * @param  filename
-     *         Filename of the file to save to the file system
+     * @throws  IOException
+     *          If the journal can't be written
+     */
+    private void commit() throws IOException {
+        index.commit(index.lastSequence(), region, true);
+    }
+
+    /**
+     * Commits changes of the finished operation as defined by {@link #durability}.
+     * In {@link DurabilityOptions.Mode#PERIODIC} mode changes stay in memory until the
+     * background flush, which is started earlier if enough bytes were written.
+     * Must not be called under {@link #lock}.
      *
-     * @throws  IllegalArgumentException
-     *          If file with the same name already exists in file system, or
-     *          if there is not enough space
+     * @param  writtenBytes
+     *         Number of bytes written by the operation
      *
      * @throws  IOException
-     *          If some other I/O error occurs
+     *          If the journal can't be written
      */
-    public void writeFileFromConnection(HttpURLConnection connection, String filename) throws IOException {
-        LOCK.writeLock().lock();
-        checkIfFileWithSameNameExists(filename);
-        try {
-            InputStream inputStream = connection.getInputStream();
-            int offset = currentPosition;
-            int lowerBoundary = INT_SIZE;
-            int channelSize = fileSystemSize - INT_SIZE;
-
-            try(FileChannel fc = FileChannel.open(fileSystem.toPath(), READ, WRITE)) {
-                MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_WRITE, lowerBoundary, channelSize);
-                //write isRemoved flag
-                memory.position(offset - lowerBoundary);
-                memory.put((byte) 0);
-                //write filename
-                byte[] filenameBytes = filename.getBytes();
-                memory.putInt(filenameBytes.length);
-                memory.put(filenameBytes);
-                //write file content skipping content size
-                int contentLengthPosition = memory.position();
-                memory.position(contentLengthPosition + INT_SIZE);
-                currentPosition += contentLengthPosition + INT_SIZE;
-
-                int byteRead;
-                while ((byteRead = inputStream.read()) != -1) {
-                    if (isEnoughSpace(1)) {
-                        currentPosition += 1;
-                        memory.put((byte) byteRead);
-                    } else {
-                        currentPosition = offset;
-                        String errorMsg = String.format("Available space of %d kB is less then file size",
-                                getAvailableSpace() / 1024);
-                        throw new IllegalArgumentException(errorMsg);
-                    }
+    private void committed(long writtenBytes) throws IOException {
+        switch (durability.getMode()) {
+            case SYNC:
+                commit();
+                break;
+            case NONE:
+                index.commit(index.lastSequence(), region, false);
+                break;
+            case PERIODIC:
+                if (unflushedBytes.addAndGet(writtenBytes) >= durability.getFlushIntervalBytes()
+                        && flushScheduled.compareAndSet(false, true)) {
+                    flusher.execute(this::flush);
                 }
-                //write content size
-                int contentLength = memory.position() - contentLengthPosition - INT_SIZE;
-                memory.position(contentLengthPosition);
-                memory.putInt(contentLength);
-                fileSystemTree.put(filename, offset);
-                //update current position
-                memory.position(0);
-                memory.putInt(currentPosition);
-            }
-        } finally {
-            LOCK.writeLock().unlock();
+                break;
         }
     }
 
-    private void checkIfFileWithSameNameExists(String filename) {
-        if (fileSystemTree.containsKey(filename)) {
-            throw new IllegalArgumentException(String.format("File with \"%s\" name already exists", filename));
+    private ScheduledExecutorService startFlusher() {
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, fileSystem.getName() + "-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, durability.getFlushIntervalMillis(),
+                durability.getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+        return flusher;
+    }
+
+    /**
+     * Background flush of {@link DurabilityOptions.Mode#PERIODIC} mode
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        unflushedBytes.set(0);
+        try {
+            commit();
+        } catch (IOException | RuntimeException e) {
+            //journal is deleted on failure, so the container is scanned on the next start
         }
     }
 
     /**
-     * Uses {@link #fileSystemTree} to check if file with the specified name exists.
-     * Opens MemoryMappedBuffer on top of {@link #fileSystem} file to read content.
+     * Performs garbage clean of the file if there are some gaps between written
+     * data ({@link #defragNeeded} is true) in order to release some space.
+     * Starts compaction (see {@link #startCompaction(CompactionOptions)}) without
+     * pauses between batches and waits until it is over. Reads and writes of other
+     * clients are not blocked for the whole time, only for a single batch.
      *
-     * @param  filename
-     *         Is needed to find file in file system
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    public void defragmentFileSystem() throws IOException {
+        boolean needed;
+        lock.readLock().lock();
+        try {
+            needed = defragNeeded;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (needed) {
+            startCompaction(new CompactionOptions(CompactionOptions.DEFAULT.getBatchSize(), 0)).await();
+        }
+    }
+
+    /**
+     * Starts compaction with {@link CompactionOptions#DEFAULT} options
      *
-     * @return  Found File with name and content
+     * @return  handle of the running compaction
+     */
+    public Compaction startCompaction() {
+        return startCompaction(CompactionOptions.DEFAULT);
+    }
+
+    /**
+     * Starts compaction on the background thread, or returns the running one.
+     * Compaction slides live records towards the header in batches. Every batch holds
+     * {@link #lock} write lock, moves about {@link CompactionOptions#getBatchSize()}
+     * bytes and updates {@link #fileSystemTree} entry of every moved record, so reads
+     * and writes proceed between batches. When all records are scanned,
+     * {@link #currentPosition} is moved to the end of compacted records.
+     * <p>Records which are being written to reserved space can't be moved, so the
+     * gap in front of them stays until the next compaction.</p>
+     * <p>{@link ReadOnlyFileChannel} looks the file up on every read, so it keeps
+     * reading the content after compaction moves it.</p>
      *
-     * @throws  FileNotFoundException
-     *          If file is not in {@link #fileSystemTree}
+     * @param  options
+     *         Batch size and pause between batches
      *
-     * @throws  IOException
-     *          If some other I/O error occurs
+     * @return  handle of the running compaction
      */
-    public home.work.system.File readFileFromFileSystem(String filename) throws IOException {
-        LOCK.readLock().lock();
-        home.work.system.File file;
+    public Compaction startCompaction(CompactionOptions options) {
+        lock.writeLock().lock();
         try {
-            Integer offset = fileSystemTree.get(filename);
-            if (offset == null) {
-                throw new FileNotFoundException(String.format("File %s not found", filename));
+            if (compaction != null) {
+                return compaction;
             }
-
-            int lowerBoundary = offset + BOOL_SIZE;
-            int channelSize = currentPosition - offset - BOOL_SIZE;
-            try(FileChannel fc = FileChannel.open(fileSystem.toPath(), READ)) {
-                MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_ONLY, lowerBoundary, channelSize);
-                //read filename length
-                int filenameLength = memory.getInt();
-                //read file content length
-                memory.position(INT_SIZE + filenameLength);
-                int contentLength = memory.getInt();
-                //read file content
-                byte[] content = new byte[contentLength];
-                memory.get(content);
-                file = new home.work.system.File(filename, content);
+            if (compactor == null) {
+                compactor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, fileSystem.getName() + "-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
             }
+            Compaction started = new Compaction(HEADER_SIZE, currentPosition);
+            defragNeeded = false;
+            //compaction releases all free space
+            freeExtents.clear();
+            compaction = started;
+            compactor.execute(() -> compact(started, options));
+            return started;
         } finally {
-            LOCK.readLock().unlock();
+            lock.writeLock().unlock();
         }
-        return file;
     }
 
-    public ReadOnlyFileChannel getReadOnlyFileChannel(String filename) throws IOException {
-        LOCK.readLock().lock();
+    private void compact(Compaction compaction, CompactionOptions options) {
+        Exception failure = null;
         try {
-            Integer offset = fileSystemTree.get(filename);
-            if (offset == null) {
-                throw new FileNotFoundException(String.format("File %s not found", filename));
-            }
-
-            int lowerBoundary = offset + BOOL_SIZE;
-            int channelSize = currentPosition - offset - BOOL_SIZE;
-            Path path = fileSystem.toPath();
-            try(FileChannel fc = FileChannel.open(path, READ)) {
-                MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_ONLY, lowerBoundary, channelSize);
-                //read filename length
-                int filenameLength = memory.getInt();
-                //read file content length
-                memory.position(INT_SIZE + filenameLength);
-                int contentLength = memory.getInt();
-                //read file content
-                return new ReadOnlyFileChannel(path, lowerBoundary + 2 * INT_SIZE + filenameLength, contentLength);
+            while (!compactBatch(compaction, options.getBatchSize())) {
+                if (options.getPauseMillis() > 0) {
+                    compaction.pause(options.getPauseMillis());
+                }
             }
+        } catch (InterruptedException e) {
+            compaction.cancel();
+        } catch (IOException | RuntimeException e) {
+            failure = e;
         } finally {
-            LOCK.readLock().unlock();
+            //state is cleared before waiters are woken up, so they can start the next compaction
+            stopCompaction(compaction);
+        }
+        if (failure == null) {
+            compaction.complete();
+        } else {
+            compaction.fail(failure);
         }
     }
 
     /**
-     * Uses {@link #fileSystemTree} to check if file with the specified name exists.
-     *
-     * @param  filename
-     *         Is needed to find file in file system
-     *
-     * @return  true if file was found, false otherwise
-     *
+     * Clears the compaction if it was stopped by interruption or failure before its last
+     * batch. Space it didn't compact is neither in {@link #freeExtents} nor skipped by
+     * {@link #free(long, long)} anymore, so the next compaction reclaims it.
      */
-    public boolean fileExists(String filename) {
-        boolean exists;
-        LOCK.readLock().lock();
+    private void stopCompaction(Compaction stopped) {
+        lock.writeLock().lock();
         try {
-            exists = fileSystemTree.containsKey(filename);
+            if (compaction == stopped) {
+                compaction = null;
+                defragNeeded = true;
+            }
         } finally {
-            LOCK.readLock().unlock();
+            lock.writeLock().unlock();
         }
-        return exists;
     }
 
     /**
-     * Uses {@link #fileSystemTree} to get filenames of all existing files.
+     * Scans records starting from {@link Compaction#getScanPosition()} and moves live
+     * ones to {@link Compaction#getCompactedEnd()} until about {@code batchSize}
+     * bytes are moved. Gap between compacted and not yet scanned records is marked
+     * as removed record, so the file stays consistent between batches.
+     * <p>After a crash, the move of the record in {@link #moveMarker} is finished, the gap
+     * behind it is marked as removed, and records after the gap are found at their sources.
+     * So a record is moved without forcing anything while its target ends before the space
+     * still needed by the marked move, see {@link #uncheckedMoveLimit()}. Otherwise moves
+     * done so far are forced, and the marker is written for the record before it is moved
+     * by {@link #moveRecord(long, long, long, long)}. The last move of the batch is marked
+     * as complete, so the mapping is forced about once per the gap in front of the records,
+     * not once per record. Marker is deleted when compaction is over.</p>
+     * <p>Batch waits while moves copy their sources, see {@link #move(String, String)}.</p>
      *
-     * @return  list of filenames of all files existing in file system
+     * @return  true if compaction is over or cancelled
      *
+     * @throws  IOException
+     *          If marker can't be written
+     *
+     * @throws  InterruptedException
+     *          If the compactor is interrupted while it waits for moves
      */
-    public List<String> listFiles() {
-        Set<String> filenames;
-        LOCK.readLock().lock();
+    private boolean compactBatch(Compaction compaction, long batchSize) throws IOException, InterruptedException {
+        lock.writeLock().lock();
         try {
-            filenames = fileSystemTree.keySet();
+            while (copyingMoves > 0) {
+                //sources of moves must stay in place until the moves are published
+                movesCopied.await();
+            }
+            if (compaction.isCancelled()) {
+                //moved records must be in the journal before marker is deleted
+                commit();
+                moveMarker.clear();
+                finishCompaction(compaction);
+                return true;
+            }
+            long scanPosition = compaction.getScanPosition();
+            long compactedEnd = compaction.getCompactedEnd();
+            long moved = 0;
+            //the last moved record, -1 if none was moved by the batch
+            long lastFrom = -1;
+            long lastTo = 0;
+            long lastLength = 0;
+            while (scanPosition < currentPosition && moved < batchSize) {
+                long contentPosition = getContentPosition(scanPosition);
+                long recordLength = contentPosition + region.getLong(contentPosition - LONG_SIZE) - scanPosition;
+                if (isReserved(scanPosition)) {
+                    //record is being written, it can't be moved
+                    completeMove(lastFrom, lastTo, lastLength);
+                    markRemoved(compactedEnd, scanPosition);
+                    freeExtents.add(compactedEnd, scanPosition - compactedEnd);
+                    compactedEnd = scanPosition + recordLength;
+                } else if (region.get(scanPosition) != 0) {
+                    compaction.recordReclaimed(recordLength);
+                } else {
+                    if (compactedEnd < scanPosition) {
+                        String filename = readFilename(scanPosition);
+                        if (compactedEnd + recordLength <= uncheckedMoveLimit()) {
+                            //target doesn't overlap the source
+                            region.move(scanPosition, compactedEnd, recordLength);
+                        } else {
+                            //previous moves must be on disk before their source is overwritten
+                            region.force();
+                            moveMarker.write(scanPosition, compactedEnd, recordLength, 0);
+                            moveRecord(scanPosition, compactedEnd, recordLength, 0);
+                        }
+                        lastFrom = scanPosition;
+                        lastTo = compactedEnd;
+                        lastLength = recordLength;
+                        fileSystemTree.put(filename, compactedEnd);
+                        index.put(filename, compactedEnd, recordLength, currentPosition);
+                        compaction.recordMoved(recordLength);
+                        moved += recordLength;
+                    }
+                    compactedEnd += recordLength;
+                }
+                scanPosition += recordLength;
+            }
+            boolean done = scanPosition >= currentPosition;
+            completeMove(lastFrom, lastTo, lastLength);
+            if (done) {
+                //reservation at the tail may be released after it was scanned
+                currentPosition = Math.min(compactedEnd, currentPosition);
+                region.putLong(CURRENT_POSITION_OFFSET, currentPosition);
+                index.position(currentPosition);
+                commit();
+                moveMarker.clear();
+                indexUpdated();
+            } else {
+                markRemoved(compactedEnd, scanPosition);
+            }
+            compaction.update(scanPosition, compactedEnd, currentPosition);
+            if (done) {
+                finishCompaction(compaction);
+            }
+            return done;
         } finally {
-            LOCK.readLock().unlock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void finishCompaction(Compaction finished) {
+        if (compaction == finished) {
+            compaction = null;
         }
-        return new ArrayList<>(filenames);
     }
 
     /**
-     * Uses {@link #fileSystemTree} to check if file with the specified name exists.
-     * Opens MemoryMappedBuffer on top of {@link #fileSystem} file to write 0 byte
-     * in front of file to indicate that file is removed from the file system. Removes
-     * file entry from {@link #fileSystemTree}, sets {@link #defragNeeded} to true
-     *
-     * @param  filename
-     *         Is needed to find file in file system
-     *
-     * @throws  FileNotFoundException
-     *          If file is not in {@link #fileSystemTree}
+     * Moves the record from the {@code from} position to the lower {@code to} position
+     * starting from {@code moved} byte. If the record overlaps its new place, it is moved
+     * in steps not longer than the distance between positions, and {@link #moveMarker}
+     * is updated after each step. So bytes which are not moved yet are never overwritten,
+     * and the move can be continued from the last step after a crash.
      *
      * @throws  IOException
-     *          If some other I/O error occurs
+     *          If marker can't be written
      */
-    public void removeFileFromFileSystem(String filename) throws IOException {
-        LOCK.writeLock().lock();
-        try {
-            if (!fileSystemTree.containsKey(filename)) {
-                throw new FileNotFoundException(String.format("File %s not found", filename));
+    private void moveRecord(long from, long to, long length, long moved) throws IOException {
+        long step = Math.min(length, from - to);
+        while (moved < length) {
+            long chunk = Math.min(step, length - moved);
+            region.move(from + moved, to + moved, chunk);
+            moved += chunk;
+            if (moved < length) {
+                region.force();
+                moveMarker.write(from, to, length, moved);
             }
-            delete(filename);
-        } finally {
-            LOCK.writeLock().unlock();
         }
     }
 
-    private void delete(String filename) throws IOException {
-        try(FileChannel fc = FileChannel.open(fileSystem.toPath(), READ, WRITE)) {
-            MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_WRITE, fileSystemTree.get(filename), BOOL_SIZE);
-            //write isRemoved flag
-            memory.put((byte) 1);
+    /**
+     * Forces moves done so far and marks the last one as complete, so the gap behind the
+     * record can be overwritten. Otherwise the move would be repeated after a crash from
+     * the overwritten source, or records moved after the marked one would be looked for
+     * at their overwritten sources.
+     *
+     * @param  from
+     *         Source of the last moved record, -1 if no record was moved since the last call
+     */
+    private void completeMove(long from, long to, long length) throws IOException {
+        if (from < 0) {
+            return;
+        }
+        if (moveMarker.getFrom() != from || moveMarker.getMoved() < moveMarker.getLength()) {
+            region.force();
+            moveMarker.write(from, to, length, length);
         }
-        fileSystemTree.remove(filename);
-        defragNeeded = true;
     }
 
     /**
-     * Performs garbage clean of the file if there are some gaps between written
-     * data ({@link #defragNeeded} is true) in order to release some space.
-     * All valid data are copied to the empty buffer from file, and then written
-     * back to the clean file. Sets {@link #defragNeeded} to false, when the process
-     * is over.
-     * <p>This method should block the whole instance of filesystem, hence it is syncronized></p>
-     *
-     * @throws  FileNotFoundException
-     *          If file is not in {@link #fileSystemTree}
+     * Returns the position up to which records may be moved without forcing the mapping.
+     * Recovery finishes the marked move from its source, which is needed until the move is
+     * marked as complete, and marks the space from the end of its target to the end of its
+     * source as removed. Targets in that space are written over removed records, and their
+     * sources after it are still there.
      *
-     * @throws  IOException
-     *          If some other I/O error occurs
+     * @return  the position, or -1 if there is no marker yet
      */
-    public synchronized void defragmentFileSystem() throws IOException {
-        if (defragNeeded) {
-            //get the map with positions as keys in ascending order
-            TreeMap<Integer, String> positionToFilename = fileSystemTree.entrySet().stream()
-                    .collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey, (k1, k2) -> k2, TreeMap::new));
-            defragment(positionToFilename);
-            //clear the flag
-            defragNeeded = false;
+    private long uncheckedMoveLimit() {
+        if (!moveMarker.isSet()) {
+            return -1;
         }
+        return moveMarker.getMoved() < moveMarker.getLength() ? moveMarker.getFrom()
+                : moveMarker.getFrom() + moveMarker.getLength();
     }
 
-    private void defragment(TreeMap<Integer, String> positionToFilename) throws IOException {
-        //open file
-        try (FileChannel fc = FileChannel.open(fileSystem.toPath(), READ, WRITE)) {
-            MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileSystemSize);
-
-            //get temp buffer to copy
-            ByteBuffer byteBuffer = ByteBuffer.allocate(memory.capacity());
-            Map<String, Integer> newFileSystemTree = new HashMap<>();
-            //new file position
-            int newCurrentPosition = HEADER_SIZE;
-            //just copy all existing files to the temp byte buffer
-            for (Map.Entry<Integer, String> entry : positionToFilename.entrySet()) {
-                int oldFilePosition = entry.getKey();
-                //read old filename
-                memory.position(oldFilePosition + BOOL_SIZE);
-                int filenameLength = memory.getInt();
-                byte[] filenameBytes = new byte[filenameLength];
-                memory.get(filenameBytes);
-                //read content
-                int contentLength = memory.getInt();
-                byte[] fileContent = new byte[contentLength];
-                memory.get(fileContent);
-                //write to new system
-                byteBuffer.position(newCurrentPosition);
-                byteBuffer.put((byte) 0);
-                byteBuffer.putInt(filenameLength);
-                byteBuffer.put(filenameBytes);
-                byteBuffer.putInt(contentLength);
-                byteBuffer.put(fileContent);
-                newFileSystemTree.put(entry.getValue(), newCurrentPosition);
-                newCurrentPosition = byteBuffer.position();
+    private boolean isReserved(long offset) {
+        for (Reservation reservation : reservations.values()) {
+            if (reservation.getOffset() == offset) {
+                return true;
             }
-            //write header
-            byteBuffer.position(0);
-            byteBuffer.putInt(fileSystemSize);
-            byteBuffer.putInt(newCurrentPosition);
-            //update file
-            memory.clear();
-            memory.put(byteBuffer.array());
-            memory.force();
+        }
+        return false;
+    }
 
-            //update fileSystemTree
-            for (Map.Entry<String, Integer> entry: newFileSystemTree.entrySet()) {
-                fileSystemTree.put(entry.getKey(), entry.getValue());
-            }
-            currentPosition = newCurrentPosition;
+    /**
+     * Writes header of a removed record with empty filename which covers
+     * the gap from {@code start} to {@code end}. Gap is either empty or made of
+     * removed records, so it is never shorter than record metadata.
+     */
+    private void markRemoved(long start, long end) {
+        if (start < end) {
+            writeRecordHeader(region, start, new byte[0], end - start - home.work.system.File.METADATA_LENGTH);
+            region.put(start, (byte) 1);
         }
     }
 
+    private String readFilename(long offset) {
+        byte[] filenameBytes = new byte[region.getInt(offset + BOOL_SIZE)];
+        region.get(offset + BOOL_SIZE + INT_SIZE, filenameBytes, 0, filenameBytes.length);
+        return new String(filenameBytes);
+    }
+
+    /**
+     * @return  true if there is enough space at the end of written data,
+     *          or if there is a free extent which fits {@code length} bytes
+     */
     public boolean isEnoughSpace(long length) {
-        return getAvailableSpace() >= length;
+        if (availableSpace() >= length) {
+            return true;
+        }
+        //free extents are not thread safe
+        lock.readLock().lock();
+        try {
+            return freeExtents.canFit(length);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Calculates free space based on the difference
-     * between {@link #fileSystemSize} and {@link #currentPosition}
+     * Calculates free space based on the difference between {@link #fileSystemSize},
+     * or the max size if the container can grow, and {@link #currentPosition}
      *
      * @return  Available space to write to
      *
      */
-    public int getAvailableSpace() {
-        LOCK.readLock().lock();
-        int availableSpace;
+    public long getAvailableSpace() {
+        return availableSpace();
+    }
+
+    private long availableSpace() {
+        long position = currentPosition;
+        long size = growth.isGrowable() ? Math.max(fileSystemSize, growth.getLimit()) : fileSystemSize;
+        return size - position;
+    }
+
+    /**
+     * @return  current size of the container
+     */
+    public long getFileSystemSize() {
+        return fileSystemSize;
+    }
+
+    /**
+     * @return  content cache with its hit, miss and eviction counters
+     */
+    public ContentCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Compacts the file system (see {@link #defragmentFileSystem()}) and truncates the
+     * container right after the written data, rounded up to a whole number of
+     * {@link GrowthOptions#getIncrement()} if the container can grow. Reads and writes
+     * of other clients are blocked only while the container is truncated.
+     *
+     * @return  number of released bytes
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    public long shrinkFileSystem() throws IOException {
+        defragmentFileSystem();
+        lock.writeLock().lock();
         try {
-            availableSpace = fileSystemSize - currentPosition;
+            long newSize = currentPosition;
+            if (growth.isGrowable()) {
+                long increment = growth.getIncrement();
+                newSize = Math.min(fileSystemSize, (newSize + increment - 1) / increment * increment);
+            }
+            long released = fileSystemSize - newSize;
+            if (released > 0) {
+                resize(newSize);
+            }
+            return released;
         } finally {
-            LOCK.readLock().unlock();
+            lock.writeLock().unlock();
         }
-        return availableSpace;
+    }
+
+    /**
+     * Clears file system without removing the underlying file, see
+     * {@link #formatFileSystem(long, TimeUnit)}. Waits at most
+     * {@link #FORMAT_TIMEOUT_MILLIS} for files being written.
+     *
+     * @throws  IllegalStateException
+     *          If files are still being written when the timeout elapses
+     *
+     * @throws  IOException
+     *          If interrupted while waiting, or some other I/O error occurs
+     */
+    public void formatFileSystem() throws IOException {
+        formatFileSystem(FORMAT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Clears file system without removing the underlying file.
-     * Re-sets {@link #currentPosition} to the {@link #HEADER_SIZE}
+     * Re-sets {@link #currentPosition} to the {@link #HEADER_SIZE}.
+     * Waits until content of all files being copied is written. Channels returned by
+     * {@link #openForWrite(String, long)} keep their space reserved until they are
+     * closed or cancelled, so callers must close them, otherwise formatting gives up
+     * when the {@code timeout} elapses and nothing is cleared.
+     *
+     * @param  timeout
+     *         Max time to wait for files being written
+     *
+     * @param  unit
+     *         Unit of the {@code timeout}
+     *
+     * @throws  IllegalStateException
+     *          If files are still being written when the timeout elapses
      *
      * @throws  IOException
-     *          If some other I/O error occurs
+     *          If interrupted while waiting, or some other I/O error occurs
      */
-    public synchronized void formatFileSystem() throws IOException {
-        try (FileChannel fc = FileChannel.open(fileSystem.toPath(), READ, WRITE)) {
-            MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileSystemSize);
-            memory.clear();
+    public synchronized void formatFileSystem(long timeout, TimeUnit unit) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long remaining = unit.toNanos(timeout);
+            while (!reservations.isEmpty()) {
+                if (remaining <= 0) {
+                    throw new IllegalStateException(String.format(
+                            "%d files are still being written, close their channels before formatting", reservations.size()));
+                }
+                try {
+                    remaining = reservationsReleased.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for files being written", e);
+                }
+            }
+            if (compaction != null) {
+                compaction.cancel();
+                compaction = null;
+            }
+            moveMarker.clear();
             //write header
-            memory.putInt(fileSystemSize);
-            memory.putInt(HEADER_SIZE);
+            writeHeader(region, fileSystemSize);
             //move currentPosition
             this.currentPosition = HEADER_SIZE;
-            memory.force();
+            fileSystemTree.clear();
+            cache.clear();
+            freeExtents.clear();
+            defragNeeded = false;
+            region.force();
+            rewriteIndex();
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     /**
-     * If file with the filename already exists, it is deleted. New file is written
-     * in the same way it is done by {@link #writeFileToFileSystem(home.work.system.File)}.
+     * New file is written in the same way it is done by {@link #writeFileToFileSystem(home.work.system.File)}.
+     * If file with the filename already exists, it is deleted when the new file is complete,
+     * so readers see either the old file or the new one, and the old file is kept if the
+     * new one can't be written.
      *
      * @param  file
      *         Contains String filename and byte[] content to write
@@ -539,35 +2586,51 @@ public class FileSystem {
      *          If some other I/O error occurs
      */
     public void overwriteFile(home.work.system.File file) throws IOException {
-        LOCK.writeLock().lock();
-        String filename = file.getName();
-        try {
-            //first remove
-            delete(filename);
-            //then write
-            int totalLength = file.getTotalLength();
-            int offset = currentPosition;
-            currentPosition = currentPosition + totalLength;
-            fileSystemTree.put(filename, offset);
-            int lowerBoundary = INT_SIZE;
-            int channelSize = (offset - INT_SIZE) + totalLength;
-            try(FileChannel fc = FileChannel.open(fileSystem.toPath(), READ, WRITE)) {
-                MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_WRITE, lowerBoundary, channelSize);
-                //write isRemoved flag
-                memory.position(offset - lowerBoundary);
-                memory.put((byte) 0);
-                //write filename
-                memory.putInt(file.getNameLength());
-                memory.put(filename.getBytes());
-                //write file content
-                memory.putInt(file.getContentLength());
-                memory.put(file.getContent());
-                //update current position
-                memory.position(0);
-                memory.putInt(currentPosition);
+        writeToReservedSpace(file, true);
+    }
+
+    /**
+     * Cancels running compaction and waits until its last batch is over, then releases
+     * the mapping and closes the underlying container file
+     *
+     * @throws  IOException
+     *          If interrupted while waiting for compaction, or if some I/O error occurs
+     */
+    public void close() throws IOException {
+        if (compactor != null) {
+            lock.writeLock().lock();
+            try {
+                if (compaction != null) {
+                    compaction.cancel();
+                }
+            } finally {
+                lock.writeLock().unlock();
             }
+            //not interrupted, so the batch isn't stopped halfway; it commits moved records and deletes the marker
+            compactor.shutdown();
+            awaitTermination(compactor, "compaction");
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            awaitTermination(flusher, "background flush");
+        }
+        moveMarker.close();
+        lock.writeLock().lock();
+        try {
+            commit();
+            index.close();
         } finally {
-            LOCK.writeLock().unlock();
+            lock.writeLock().unlock();
+        }
+        region.close();
+    }
+
+    private static void awaitTermination(ExecutorService executor, String task) throws IOException {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while waiting for %s", task), e);
         }
     }
 }
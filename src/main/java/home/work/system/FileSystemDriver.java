@@ -6,8 +6,16 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class representing client for access to file system.
@@ -74,6 +82,124 @@ public class FileSystemDriver {
         fileSystem.writeFileToFileSystem(original);
     }
 
+    /**
+     * Opens a channel to stream content of unknown length to a new file,
+     * see {@link FileSystem#openForWrite(String)}. File is created when the channel is closed.
+     *
+     * @param  filename
+     *         Name of the file to create
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     *
+     * @throws  IllegalArgumentException
+     *          If file with the same name already exists
+     */
+    public WriteOnlyFileChannel openForWrite(String filename) throws IOException {
+        return fileSystem.openForWrite(filename);
+    }
+
+    /**
+     * Checks if there is enough space in the filesystem and opens a channel to stream
+     * content of known length to a new file, see {@link FileSystem#openForWrite(String, long)}.
+     * File is created when the channel is closed.
+     *
+     * @param  filename
+     *         Name of the file to create
+     *
+     * @param  contentLength
+     *         Exact length of the content which will be written
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     *
+     * @throws  IllegalArgumentException
+     *          In case there is not enough space, or file with the same name already exists
+     */
+    public WriteOnlyFileChannel openForWrite(String filename, long contentLength) throws IOException {
+        checkThereIsEnoughSpace(contentLength + filename.getBytes().length);
+        return fileSystem.openForWrite(filename, contentLength);
+    }
+
+    /**
+     * Creates several files in one pass, see {@link FileSystem#writeFiles(Collection, boolean)}.
+     * Files which can't be created are skipped, other files are created.
+     *
+     * @param  files
+     *         Contents of the files by their names
+     *
+     * @return  reasons of failures by names of files which were not created,
+     *          empty if all files were created
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public Map<String, Exception> createFiles(Map<String, byte[]> files) throws IOException {
+        return createFiles(files, false);
+    }
+
+    /**
+     * Creates several files in one pass, see {@link FileSystem#writeFiles(Collection, boolean)}
+     *
+     * @param  files
+     *         Contents of the files by their names
+     *
+     * @param  atomic
+     *         If true, either all files are created, or none of them
+     *
+     * @return  reasons of failures by names of files which were not created,
+     *          empty if all files were created
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     *
+     * @throws  IllegalArgumentException
+     *          If {@code atomic} is true and some file can't be created
+     */
+    public Map<String, Exception> createFiles(Map<String, byte[]> files, boolean atomic) throws IOException {
+        List<File> batch = new ArrayList<>(files.size());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            batch.add(new File(file.getKey(), file.getValue()));
+        }
+        Map<String, Exception> failures;
+        try {
+            failures = fileSystem.writeFiles(batch, atomic);
+        } catch (IllegalArgumentException e) {
+            logger.error(e.getMessage());
+            throw e;
+        }
+        if (!failures.isEmpty()) {
+            logger.error(String.format("%d of %d files were not created", failures.size(), files.size()));
+        }
+        return failures;
+    }
+
+    /**
+     * Copies several existing files to a filesystem in one pass. Either all
+     * files are copied, or none of them.
+     *
+     * @param  paths
+     *         Paths to the files
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     *
+     * @throws  IllegalArgumentException
+     *          In case there is not enough space for all files, or some file is not found
+     */
+    public void copyExistingFiles(Collection<Path> paths) throws IOException {
+        List<java.io.File> originals = new ArrayList<>();
+        long totalSize = 0;
+        for (Path path : paths) {
+            java.io.File original = path.toFile();
+            checkFileExists(original);
+            originals.add(original);
+            totalSize += original.length() + File.METADATA_LENGTH;
+        }
+        checkThereIsEnoughSpace(totalSize);
+        fileSystem.copyFilesToFileSystem(originals);
+    }
+
     /**
      * Downloads file and writes it to the file system with the specified filename.
      * Connection may not return file size. Then we only check if filename fits available space.
@@ -92,7 +218,7 @@ public class FileSystemDriver {
      */
     public void downloadAndSaveFile(String uri) throws IOException {
         HttpURLConnection connection = openConnection(uri);
-        int fileSize = connection.getContentLength();
+        long fileSize = connection.getContentLengthLong();
         String filename = getFilename(connection, uri);
         if (fileSize < 1) {
             fileSize = filename.getBytes().length;
@@ -192,6 +318,98 @@ public class FileSystemDriver {
         return fileSystem.listFiles();
     }
 
+    /**
+     * Returns sorted list of filenames starting with the prefix.
+     *
+     * @param  prefix
+     *         Beginning of filenames
+     *
+     * @return list of existing filenames with the prefix
+     */
+    public List<String> listFiles(String prefix) {
+        return fileSystem.listFiles(prefix);
+    }
+
+    /**
+     * Returns one page of sorted filenames starting with the prefix,
+     * see {@link FileSystem#listFiles(String, String, int)}
+     *
+     * @param  startAfter
+     *         Last filename of the previous page, null for the first page
+     *
+     * @param  limit
+     *         Max number of filenames in the page
+     */
+    public List<String> listFiles(String prefix, String startAfter, int limit) {
+        return fileSystem.listFiles(prefix, startAfter, limit);
+    }
+
+    /**
+     * Returns sorted list of filenames matching the glob pattern,
+     * see {@link FileSystem#listFilesMatching(String)}
+     *
+     * @param  glob
+     *         Pattern with {@code *}, {@code ?} and {@code [...]} wildcards
+     */
+    public List<String> listFilesMatching(String glob) {
+        return fileSystem.listFilesMatching(glob);
+    }
+
+    /**
+     * Creates the directory, see {@link FileSystem#mkdir(String)}.
+     *
+     * @param  directory
+     *         Name of the directory
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void mkdir(String directory) throws IOException {
+        fileSystem.mkdir(directory);
+    }
+
+    /**
+     * Returns sorted full names of files and directories in the directory.
+     *
+     * @param  directory
+     *         Name of the directory, empty for the root
+     *
+     * @throws  IOException
+     *          If the directory doesn't exist
+     */
+    public List<String> listDirectory(String directory) throws IOException {
+        return fileSystem.listDirectory(directory);
+    }
+
+    /**
+     * Removes the directory with everything in it.
+     *
+     * @param  directory
+     *         Name of the directory
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void deleteDirectory(String directory) throws IOException {
+        fileSystem.removeDirectory(directory);
+    }
+
+    /**
+     * Moves the file or the directory, see {@link FileSystem#move(String, String)}.
+     *
+     * @param  source
+     *         Name of the file or the directory
+     *
+     * @param  target
+     *         New name
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    public void move(String source, String target) throws IOException {
+        fileSystem.move(source, target);
+    }
+
     /**
      * Removes file with the specified name from the file system.
      *
@@ -219,9 +437,77 @@ public class FileSystemDriver {
         return file.getContent();
     }
 
+    /**
+     * Reads a part of the file content without reading the rest of it,
+     * see {@link FileSystem#readRange(String, long, ByteBuffer)}
+     *
+     * @param  filename
+     *         Filename to search for
+     *
+     * @param  position
+     *         Position within the file content
+     *
+     * @param  length
+     *         Max number of bytes to read
+     *
+     * @return  bytes read, fewer than {@code length} if the end of the content is reached,
+     *          empty if {@code position} is at or beyond the end of the content
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     *
+     * @throws  java.io.FileNotFoundException
+     *          If file with specified name was not found
+     */
+    public byte[] readRange(String filename, long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = fileSystem.readRange(filename, position, bytes, 0, length);
+        if (read == length) {
+            return bytes;
+        }
+        return Arrays.copyOf(bytes, Math.max(read, 0));
+    }
+
+    /**
+     * Reads a part of the file content into the {@code buffer} until it is full or
+     * the end of the content is reached, see {@link FileSystem#readRange(String, long, ByteBuffer)}
+     *
+     * @return  number of bytes read, or -1 if {@code position} is at or beyond the end of the content
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     *
+     * @throws  java.io.FileNotFoundException
+     *          If file with specified name was not found
+     */
+    public int readRange(String filename, long position, ByteBuffer buffer) throws IOException {
+        return fileSystem.readRange(filename, position, buffer);
+    }
+
+    /**
+     * Reads content of several files at once, see {@link FileSystem#readFiles(Collection)}
+     *
+     * @param  filenames
+     *         Names of the files to read
+     *
+     * @return  content of found files by their names, in the order of {@code filenames}.
+     *          Files which don't exist are skipped.
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    public Map<String, byte[]> readFromFiles(Collection<String> filenames) throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        for (Map.Entry<String, File> file : fileSystem.readFiles(filenames).entrySet()) {
+            contents.put(file.getKey(), file.getValue().getContent());
+        }
+        return contents;
+    }
+
     /**
      * Returns an initialized instance of {@link ReadOnlyFileChannel},
-     * containing content of the file with specified filename.
+     * containing content of the file with specified filename. Reads of the
+     * channel fail if the file is removed or replaced while it is open.
      *
      * @param  filename
      *         Filename to search for
@@ -236,9 +522,47 @@ public class FileSystemDriver {
         return fileSystem.getReadOnlyFileChannel(filename);
     }
 
+    /**
+     * Sends content of the file with specified filename to the {@code target}
+     * channel without copying it to the java heap.
+     *
+     * @param  filename
+     *         Filename to search for
+     *
+     * @param  target
+     *         Channel to write content to, e.g. socket channel of a network client
+     *
+     * @return  number of bytes transferred
+     *
+     * @throws  IOException
+     *          If the target accepts no bytes (e.g. it is non-blocking and full),
+     *          or if some other I/O error occurs
+     *
+     * @throws  java.io.FileNotFoundException
+     *          If file with specified name was not found
+     */
+    public long transferFile(String filename, WritableByteChannel target) throws IOException {
+        try (ReadOnlyFileChannel channel = fileSystem.getReadOnlyFileChannel(filename)) {
+            long transferred = 0;
+            while (channel.position() < channel.size()) {
+                long chunk = channel.transferTo(target);
+                if (chunk <= 0) {
+                    throw new IOException(String.format("Target accepted no bytes of file %s after %d of %d bytes",
+                            filename, transferred, channel.size()));
+                }
+                transferred += chunk;
+            }
+            return transferred;
+        }
+    }
+
     /**
      * Removes all data (except file system size and current position)
-     * from the filesystem
+     * from the filesystem. Channels opened for write must be closed first,
+     * see {@link FileSystem#formatFileSystem(long, java.util.concurrent.TimeUnit)}.
+     *
+     * @throws  IllegalStateException
+     *          If files are still being written when the timeout elapses
      *
      * @throws  IOException
      *          If some other I/O error occurs
@@ -255,8 +579,8 @@ public class FileSystemDriver {
      *          If there is not enough space
      */
     private void checkThereIsEnoughSpace(long fileSize) {
-        if (!fileSystem.isEnoughSpace(fileSize + 9)) {
-            //9 is 8 bytes for filename and content lengths + 1 byte for isRemoved flag
+        if (!fileSystem.isEnoughSpace(fileSize + File.METADATA_LENGTH)) {
+            //13 is 12 bytes for filename and content lengths + 1 byte for isRemoved flag
             String errorMsg = String.format("Available space of %d kB is less then file size of %d kB",
                     fileSystem.getAvailableSpace() / 1024, (fileSize) / 1024);
             logger.error(errorMsg);
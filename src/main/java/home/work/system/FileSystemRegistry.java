@@ -0,0 +1,129 @@
+package home.work.system;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of file system volumes opened in the process. Every volume is a
+ * {@link FileSystem} with its own container file, lock and mapping, so volumes on
+ * different disks don't block each other. Registry opens every container only once:
+ * opening the same path again returns the volume which is already open.
+ */
+public class FileSystemRegistry implements Closeable {
+    private final Map<Path, FileSystem> volumes = new LinkedHashMap<>();
+
+    /**
+     * Opens the volume at the {@code path}, or returns it if it is already open.
+     * Size and options are used only if the volume is not open yet, see
+     * {@link FileSystem#FileSystem(Path, long, DurabilityOptions, GrowthOptions)}.
+     *
+     * @param  path
+     *         Path to the container file
+     *
+     * @param  fileSystemSize
+     *         Size of the container, if it doesn't exist yet
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    public FileSystem open(Path path, long fileSystemSize, DurabilityOptions durability,
+                           GrowthOptions growth) throws IOException {
+        return open(path, fileSystemSize, durability, growth, CacheOptions.DISABLED);
+    }
+
+    /**
+     * Opens the volume at the {@code path} with a content cache, or returns it if it is already open,
+     * see {@link FileSystem#FileSystem(Path, long, DurabilityOptions, GrowthOptions, CacheOptions)}
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    public synchronized FileSystem open(Path path, long fileSystemSize, DurabilityOptions durability,
+                                        GrowthOptions growth, CacheOptions cache) throws IOException {
+        Path key = key(path);
+        FileSystem volume = volumes.get(key);
+        if (volume == null) {
+            volume = new FileSystem(key, fileSystemSize, durability, growth, cache);
+            volumes.put(key, volume);
+        }
+        return volume;
+    }
+
+    /**
+     * @return  volume at the {@code path}
+     *
+     * @throws  IllegalArgumentException
+     *          If volume is not open
+     */
+    public synchronized FileSystem get(Path path) {
+        FileSystem volume = volumes.get(key(path));
+        if (volume == null) {
+            throw new IllegalArgumentException(String.format("Volume %s is not open", path));
+        }
+        return volume;
+    }
+
+    /**
+     * @return  driver of the volume at the {@code path}
+     *
+     * @throws  IllegalArgumentException
+     *          If volume is not open
+     */
+    public FileSystemDriver getDriver(Path path) {
+        return new FileSystemDriver(get(path));
+    }
+
+    /**
+     * @return  paths of open volumes in the order they were opened
+     */
+    public synchronized List<Path> getPaths() {
+        return new ArrayList<>(volumes.keySet());
+    }
+
+    /**
+     * Closes the volume at the {@code path}, if it is open
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    public synchronized void close(Path path) throws IOException {
+        FileSystem volume = volumes.remove(key(path));
+        if (volume != null) {
+            volume.close();
+        }
+    }
+
+    /**
+     * Closes all open volumes
+     *
+     * @throws  IOException
+     *          If some volume can't be closed, other volumes are closed anyway
+     */
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (FileSystem volume : volumes.values()) {
+            try {
+                volume.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        volumes.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static Path key(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+}
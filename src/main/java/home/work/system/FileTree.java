@@ -0,0 +1,526 @@
+package home.work.system;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Table of record offsets by filename, which doesn't create objects per file.
+ * <p>Filenames are kept as UTF-8 bytes in one {@link #names} array, every name prefixed
+ * by its length. Slots of the open addressing table with linear probing are three
+ * primitive arrays: hash of the name, position of the name in {@link #names}, and
+ * offset of the record. Removed slots are closed by shifting the following slots back,
+ * so lookups never walk over tombstones. Space of removed names is reclaimed when it
+ * exceeds the space of live ones.</p>
+ * <p>An entry takes 16 bytes per slot at 0.375 to 0.75 load, which is 21 to 43 bytes,
+ * plus 4 bytes of name length and the name itself. A concurrent hash map of String to Long
+ * takes about 90 bytes of objects per entry before the name bytes.</p>
+ * <p>Table is changed only by one thread at a time, under the {@link FileSystem} write lock,
+ * but lookups don't take that lock. They read the arrays optimistically and retry under
+ * the read lock of {@link #lock} only if the table was changed meanwhile.</p>
+ * <p>Names are limited to about 2GB in total, because they are addressed by int positions.</p>
+ * <p>Sorted listing is served by {@link SortedNames}, and children of directories by
+ * {@link Directories}. Each is built on its first use and then kept up to date by every
+ * change. Until then, the table alone is kept.</p>
+ */
+class FileTree {
+    private final static int INITIAL_CAPACITY = 16;
+    private final static int MAX_NAMES_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final StampedLock lock = new StampedLock();
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    //position of the name in names + 1, 0 for an empty slot
+    private int[] positions = new int[INITIAL_CAPACITY];
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private byte[] names = new byte[INITIAL_CAPACITY * 16];
+    private int namesLength;
+    private int garbage;
+    private volatile int size;
+    private volatile SortedNames sorted;
+    private volatile Directories directories;
+
+    /**
+     * @return  offset of the record of the file, or -1 if it doesn't exist
+     */
+    long get(String filename) {
+        byte[] name = encode(filename);
+        int hash = hash(name);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long offset = find(name, hash);
+                if (lock.validate(stamp)) {
+                    return offset;
+                }
+            } catch (RuntimeException e) {
+                //arrays were read in the middle of a change, lookup is repeated under the lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(name, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    boolean containsKey(String filename) {
+        return get(filename) >= 0;
+    }
+
+    /**
+     * @return  previous offset of the record of the file, or -1 if it didn't exist
+     *
+     * @throws  IllegalStateException
+     *          If there is no space left for names
+     */
+    long put(String filename, long offset) {
+        byte[] name = encode(filename);
+        int hash = hash(name);
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(name, hash);
+            if (positions[slot] != 0) {
+                long previous = offsets[slot];
+                offsets[slot] = offset;
+                return previous;
+            }
+            if (size + 1 > hashes.length / 4 * 3) {
+                rehash(hashes.length * 2);
+                slot = slotOf(name, hash);
+            } else if ((long) namesLength + Integer.BYTES + name.length > MAX_NAMES_LENGTH && garbage > 0) {
+                //removed names are dropped before the limit is reached
+                rehash(hashes.length);
+                slot = slotOf(name, hash);
+            }
+            int position = append(name);
+            hashes[slot] = hash;
+            positions[slot] = position + 1;
+            offsets[slot] = offset;
+            size++;
+            if (sorted != null) {
+                sorted.add(name);
+            }
+            if (directories != null) {
+                directories.add(filename);
+            }
+            return -1;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return  offset of the removed record, or -1 if the file didn't exist
+     */
+    long remove(String filename) {
+        byte[] name = encode(filename);
+        int hash = hash(name);
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(name, hash);
+            if (positions[slot] == 0) {
+                return -1;
+            }
+            long offset = offsets[slot];
+            garbage += Integer.BYTES + name.length;
+            size--;
+            closeSlot(slot);
+            if (sorted != null) {
+                sorted.remove(name);
+            }
+            if (directories != null) {
+                directories.remove(filename);
+            }
+            if (garbage > namesLength / 2 && garbage > INITIAL_CAPACITY * 16) {
+                rehash(hashes.length);
+            }
+            return offset;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void clear() {
+        long stamp = lock.writeLock();
+        try {
+            hashes = new int[INITIAL_CAPACITY];
+            positions = new int[INITIAL_CAPACITY];
+            offsets = new long[INITIAL_CAPACITY];
+            names = new byte[INITIAL_CAPACITY * 16];
+            namesLength = 0;
+            garbage = 0;
+            size = 0;
+            sorted = null;
+            directories = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return  iterator of names starting with the {@code prefix} and greater than
+     *          {@code startAfter} (null for no bound) in sorted order, see {@link SortedNames}
+     */
+    Iterator<String> names(String prefix, String startAfter) {
+        SortedNames sorted = this.sorted;
+        if (sorted == null) {
+            sorted = buildSortedNames();
+        }
+        return sorted.iterator(prefix, startAfter);
+    }
+
+    /**
+     * @param  directory
+     *         Name of the directory ending with '/', the empty name for the root
+     *
+     * @return  true if the directory has a record or children
+     */
+    boolean directoryExists(String directory) {
+        return directories().exists(directory);
+    }
+
+    /**
+     * @return  iterator of full names of children of the directory in sorted order,
+     *          see {@link Directories#children(String, String)}
+     */
+    Iterator<String> children(String directory, String startAfter) {
+        return directories().children(directory, startAfter);
+    }
+
+    private Directories directories() {
+        Directories directories = this.directories;
+        return directories == null ? buildDirectories() : directories;
+    }
+
+    /**
+     * Passes name and record offset of every file to the {@code consumer}. Table
+     * must not be changed by the {@code consumer}.
+     */
+    void forEach(ObjLongConsumer<String> consumer) {
+        long stamp = lock.readLock();
+        try {
+            for (int slot = 0; slot < positions.length; slot++) {
+                if (positions[slot] != 0) {
+                    consumer.accept(decode(names, positions[slot] - 1), offsets[slot]);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Passes every file to the {@code consumer} in the order of record offsets. Name is passed
+     * as UTF-8 bytes of the names array and slots are sorted as ints, so no objects are created
+     * per file. Table must not be changed by the {@code consumer}.
+     */
+    void forEachByOffset(NameConsumer consumer) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            int[] slots = new int[size];
+            int count = 0;
+            for (int slot = 0; slot < positions.length; slot++) {
+                if (positions[slot] != 0) {
+                    slots[count++] = slot;
+                }
+            }
+            long[] offsets = this.offsets;
+            IntSort.sort(slots, 0, count, (first, second) -> Long.compare(offsets[first], offsets[second]));
+            for (int i = 0; i < count; i++) {
+                int position = positions[slots[i]] - 1;
+                consumer.accept(names, position + Integer.BYTES, readLength(names, position), offsets[slots[i]]);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Receives a name as {@code length} UTF-8 bytes of {@code names} from {@code start}, and the
+     * offset of its record
+     */
+    interface NameConsumer {
+        void accept(byte[] names, int start, int length, long offset) throws IOException;
+    }
+
+    /**
+     * @return  record offsets of all files in ascending order
+     */
+    long[] sortedOffsets() {
+        long stamp = lock.readLock();
+        try {
+            long[] live = new long[size];
+            int count = 0;
+            for (int slot = 0; slot < positions.length; slot++) {
+                if (positions[slot] != 0) {
+                    live[count++] = offsets[slot];
+                }
+            }
+            Arrays.sort(live);
+            return live;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return  number of bytes taken by the arrays of the table
+     */
+    long memoryUsage() {
+        long stamp = lock.readLock();
+        try {
+            return (long) hashes.length * (Integer.BYTES * 2 + Long.BYTES) + names.length
+                    + (sorted == null ? 0 : sorted.memoryUsage());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Sorts names of all entries under the read lock, so changes wait for it, but lookups
+     * don't. Only one thread sorts, others wait for its result.
+     */
+    private synchronized SortedNames buildSortedNames() {
+        long stamp = lock.readLock();
+        try {
+            if (sorted != null) {
+                return sorted;
+            }
+            SortedNames.Builder builder = new SortedNames.Builder();
+            for (int position : sortedPositions()) {
+                int start = position + Integer.BYTES;
+                builder.add(Arrays.copyOfRange(names, start, start + readLength(names, position)));
+            }
+            sorted = builder.build();
+            return sorted;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Builds children of all directories the same way as {@link #buildSortedNames()}
+     */
+    private synchronized Directories buildDirectories() {
+        long stamp = lock.readLock();
+        try {
+            if (directories != null) {
+                return directories;
+            }
+            int[] positions = sortedPositions();
+            directories = Directories.build(Arrays.stream(positions).mapToObj(position -> decode(names, position))
+                    .iterator(), this::hasRecord);
+            return directories;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return  true if there is an entry with the name. Must be called under the lock.
+     */
+    private boolean hasRecord(String filename) {
+        byte[] name = encode(filename);
+        return positions[slotOf(name, hash(name))] != 0;
+    }
+
+    /**
+     * @return  positions of live names in sorted order. Must be called under the lock.
+     */
+    private int[] sortedPositions() {
+        int[] live = new int[size];
+        int count = 0;
+        for (int position : positions) {
+            if (position != 0) {
+                live[count++] = position - 1;
+            }
+        }
+        byte[] names = this.names;
+        IntSort.sort(live, 0, count, (first, second) -> compareNames(names, first, second));
+        return live;
+    }
+
+    /**
+     * Finds the offset of the name. May be called without the lock, then reads of
+     * the arrays may be inconsistent and the result is valid only if the lock stamp is.
+     * Number of probes is limited by the capacity, so inconsistent reads can't loop forever.
+     */
+    private long find(byte[] name, int hash) {
+        int[] hashes = this.hashes;
+        int[] positions = this.positions;
+        long[] offsets = this.offsets;
+        byte[] names = this.names;
+        int mask = hashes.length - 1;
+        int slot = hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            int position = positions[slot];
+            if (position == 0) {
+                return -1;
+            }
+            if (hashes[slot] == hash && matches(names, position - 1, name)) {
+                return offsets[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return  slot of the name, or the empty slot where it should be put.
+     *          Must be called under the write lock.
+     */
+    private int slotOf(byte[] name, int hash) {
+        int mask = hashes.length - 1;
+        int slot = hash & mask;
+        while (positions[slot] != 0 && (hashes[slot] != hash || !matches(names, positions[slot] - 1, name))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empties the slot and shifts back following slots of the same probe sequence,
+     * so there is no empty slot between a slot and the one its hash points to
+     */
+    private void closeSlot(int slot) {
+        int mask = hashes.length - 1;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (positions[next] == 0) {
+                break;
+            }
+            int home = hashes[next] & mask;
+            //slot may take the entry only if it is not before the entry's home in the probe sequence
+            boolean movable = slot <= next ? home <= slot || home > next : home <= slot && home > next;
+            if (movable) {
+                hashes[slot] = hashes[next];
+                positions[slot] = positions[next];
+                offsets[slot] = offsets[next];
+                slot = next;
+            }
+        }
+        hashes[slot] = 0;
+        positions[slot] = 0;
+        offsets[slot] = 0;
+    }
+
+    /**
+     * Moves all entries to a table of the {@code capacity} and copies live names
+     * to a new names array, dropping removed ones
+     */
+    private void rehash(int capacity) {
+        int[] oldHashes = hashes;
+        int[] oldPositions = positions;
+        long[] oldOffsets = offsets;
+        byte[] oldNames = names;
+        hashes = new int[capacity];
+        positions = new int[capacity];
+        offsets = new long[capacity];
+        names = new byte[Math.max(INITIAL_CAPACITY * 16, namesLength - garbage + INITIAL_CAPACITY * 16)];
+        namesLength = 0;
+        garbage = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldPositions.length; i++) {
+            if (oldPositions[i] == 0) {
+                continue;
+            }
+            int length = readLength(oldNames, oldPositions[i] - 1);
+            int slot = oldHashes[i] & mask;
+            while (positions[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            ensureNamesCapacity(Integer.BYTES + length);
+            System.arraycopy(oldNames, oldPositions[i] - 1, names, namesLength, Integer.BYTES + length);
+            hashes[slot] = oldHashes[i];
+            positions[slot] = namesLength + 1;
+            offsets[slot] = oldOffsets[i];
+            namesLength += Integer.BYTES + length;
+        }
+    }
+
+    /**
+     * @return  position of the name appended to {@link #names}
+     */
+    private int append(byte[] name) {
+        int length = Integer.BYTES + name.length;
+        ensureNamesCapacity(length);
+        int position = namesLength;
+        names[position] = (byte) (name.length >>> 24);
+        names[position + 1] = (byte) (name.length >>> 16);
+        names[position + 2] = (byte) (name.length >>> 8);
+        names[position + 3] = (byte) name.length;
+        System.arraycopy(name, 0, names, position + Integer.BYTES, name.length);
+        namesLength += length;
+        return position;
+    }
+
+    private void ensureNamesCapacity(int length) {
+        long required = (long) namesLength + length;
+        if (required <= names.length) {
+            return;
+        }
+        if (required > MAX_NAMES_LENGTH) {
+            throw new IllegalStateException("No space left for filenames in the file tree");
+        }
+        names = Arrays.copyOf(names, (int) Math.min(MAX_NAMES_LENGTH, Math.max(required, names.length * 2L)));
+    }
+
+    private static String decode(byte[] names, int position) {
+        return new String(names, position + Integer.BYTES, readLength(names, position), StandardCharsets.UTF_8);
+    }
+
+    private static int compareNames(byte[] names, int first, int second) {
+        int firstLength = readLength(names, first);
+        int secondLength = readLength(names, second);
+        for (int i = 0; i < Math.min(firstLength, secondLength); i++) {
+            int difference = (names[first + Integer.BYTES + i] & 0xFF) - (names[second + Integer.BYTES + i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return firstLength - secondLength;
+    }
+
+    private static boolean matches(byte[] names, int position, byte[] name) {
+        if (readLength(names, position) != name.length) {
+            return false;
+        }
+        int start = position + Integer.BYTES;
+        for (int i = 0; i < name.length; i++) {
+            if (names[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readLength(byte[] names, int position) {
+        return (names[position] & 0xFF) << 24 | (names[position + 1] & 0xFF) << 16
+                | (names[position + 2] & 0xFF) << 8 | (names[position + 3] & 0xFF);
+    }
+
+    private static byte[] encode(String filename) {
+        return filename.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hash of the name bytes, spread so low bits used by the table depend on all of them
+     */
+    private static int hash(byte[] name) {
+        int hash = 1;
+        for (byte b : name) {
+            hash = 31 * hash + b;
+        }
+        hash *= 0x9E3779B9;
+        return hash ^ hash >>> 16;
+    }
+}
@@ -0,0 +1,163 @@
+package home.work.system;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Free extents of the container, which are left by removed records. Extents are kept
+ * in two trees: ordered by offset to coalesce neighbours, and ordered by length to find
+ * the best fit. Not thread safe, must be used under the {@link FileSystem} lock.
+ * <p>Extent is allocated only if it fits the record exactly, or if the rest of it is
+ * not shorter than {@link #minRemainder}, so the rest can be marked as a removed
+ * record and the container can still be iterated record by record.</p>
+ * <p>Extent of a removed record is held until the journal entry of the removal is
+ * committed (see {@link #hold(long, long, long)}). Otherwise a new record could be
+ * written to it, and after a crash the journal would restore the removed record
+ * over the new content.</p>
+ */
+class FreeExtents {
+    private final long minRemainder;
+    private final TreeMap<Long, Long> byOffset = new TreeMap<>();
+    private final TreeMap<Long, TreeSet<Long>> byLength = new TreeMap<>();
+    private long total;
+    //offset, length and sequence number of the journal entry of held extents, in the order of sequences
+    private final ArrayDeque<long[]> held = new ArrayDeque<>();
+
+    /**
+     * @param  minRemainder
+     *         Minimal length of the rest of the extent after allocation
+     */
+    FreeExtents(long minRemainder) {
+        this.minRemainder = minRemainder;
+    }
+
+    /**
+     * Adds the extent and coalesces it with adjacent free extents
+     */
+    void add(long offset, long length) {
+        if (length <= 0) {
+            return;
+        }
+        Map.Entry<Long, Long> previous = byOffset.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            remove(previous.getKey(), previous.getValue());
+            offset = previous.getKey();
+            length += previous.getValue();
+        }
+        Long next = byOffset.get(offset + length);
+        if (next != null) {
+            remove(offset + length, next);
+            length += next;
+        }
+        byOffset.put(offset, length);
+        byLength.computeIfAbsent(length, key -> new TreeSet<>()).add(offset);
+        total += length;
+    }
+
+    /**
+     * Holds the extent until the journal entry with the {@code sequence} number is committed,
+     * it is added by {@link #release(long)} then. Sequences must not decrease.
+     */
+    void hold(long offset, long length, long sequence) {
+        if (length > 0) {
+            held.add(new long[]{offset, length, sequence});
+        }
+    }
+
+    /**
+     * Adds held extents which journal entries are committed
+     *
+     * @param  committed
+     *         Sequence number of the last committed journal entry
+     */
+    void release(long committed) {
+        while (!held.isEmpty() && held.peek()[2] <= committed) {
+            long[] extent = held.poll();
+            add(extent[0], extent[1]);
+        }
+    }
+
+    /**
+     * @return  true if some extents wait for their journal entries to be committed
+     */
+    boolean isHolding() {
+        return !held.isEmpty();
+    }
+
+    /**
+     * Finds the smallest extent which fits {@code length} bytes, the lowest one
+     * if there are several of the same length, and takes {@code length} bytes
+     * from its start. The rest of the extent stays free.
+     *
+     * @return  offset of the allocated space, or -1 if no extent fits
+     */
+    long allocate(long length) {
+        Map.Entry<Long, TreeSet<Long>> fit = findFit(length);
+        if (fit == null) {
+            return -1;
+        }
+        long extentLength = fit.getKey();
+        long offset = fit.getValue().first();
+        remove(offset, extentLength);
+        if (extentLength > length) {
+            byOffset.put(offset + length, extentLength - length);
+            byLength.computeIfAbsent(extentLength - length, key -> new TreeSet<>()).add(offset + length);
+            total += extentLength - length;
+        }
+        return offset;
+    }
+
+    boolean canFit(long length) {
+        return findFit(length) != null;
+    }
+
+    /**
+     * @return  length of the free extent starting at the {@code offset}, or 0 if there is none
+     */
+    long lengthAt(long offset) {
+        Long length = byOffset.get(offset);
+        return length == null ? 0 : length;
+    }
+
+    /**
+     * @return  total length of free extents
+     */
+    long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return  unmodifiable view of free extents, lengths by offsets in ascending order
+     */
+    Map<Long, Long> extents() {
+        return Collections.unmodifiableMap(byOffset);
+    }
+
+    void clear() {
+        byOffset.clear();
+        byLength.clear();
+        total = 0;
+        held.clear();
+    }
+
+    private Map.Entry<Long, TreeSet<Long>> findFit(long length) {
+        TreeSet<Long> exact = byLength.get(length);
+        if (exact != null) {
+            return byLength.floorEntry(length);
+        }
+        return byLength.ceilingEntry(length + minRemainder);
+    }
+
+    private void remove(long offset, long length) {
+        byOffset.remove(offset);
+        TreeSet<Long> offsets = byLength.get(length);
+        offsets.remove(offset);
+        if (offsets.isEmpty()) {
+            byLength.remove(length);
+        }
+        total -= length;
+    }
+}
@@ -0,0 +1,57 @@
+package home.work.system;
+
+/**
+ * Growth settings of the {@link FileSystem} container. When a record doesn't fit
+ * the container, it is extended by a whole number of {@link #increment}s, but not
+ * beyond {@link #maxSize}. New space is not written until records are written to it,
+ * so the container file stays sparse on file systems which support it.
+ */
+public class GrowthOptions {
+    /**
+     * Container is never extended
+     */
+    public static final GrowthOptions FIXED = new GrowthOptions(0, 0);
+
+    private final long increment;
+    private final long maxSize;
+
+    /**
+     * @param  increment
+     *         Number of bytes the container is extended by, 0 if it must not grow
+     *
+     * @param  maxSize
+     *         Maximal size of the container, 0 if it is not limited
+     *
+     * @throws  IllegalArgumentException
+     *          If increment or max size is negative
+     */
+    public GrowthOptions(long increment, long maxSize) {
+        if (increment < 0 || maxSize < 0) {
+            throw new IllegalArgumentException("Increment and max size must not be negative");
+        }
+        this.increment = increment;
+        this.maxSize = maxSize;
+    }
+
+    public long getIncrement() {
+        return increment;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return  true if the container can be extended
+     */
+    public boolean isGrowable() {
+        return increment > 0;
+    }
+
+    /**
+     * @return  max size, or {@link Long#MAX_VALUE} if it is not limited
+     */
+    long getLimit() {
+        return maxSize > 0 ? maxSize : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,67 @@
+package home.work.system;
+
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Sort of int arrays by a comparator, which {@link java.util.Arrays} offers only for
+ * arrays of objects. Ints are slots or positions of entries kept in primitive arrays,
+ * so millions of them are sorted without boxing every one.
+ */
+final class IntSort {
+    private final static int INSERTION_SORT_LENGTH = 16;
+
+    private IntSort() {
+    }
+
+    /**
+     * Sorts {@code values} from {@code from} inclusive to {@code to} exclusive. Sort is a merge
+     * sort, so it is stable and takes a temporary array of the sorted length.
+     *
+     * @param  comparator
+     *         Compares two values, returns negative, zero or positive number as {@link java.util.Comparator}
+     */
+    static void sort(int[] values, int from, int to, IntBinaryOperator comparator) {
+        if (to - from < 2) {
+            return;
+        }
+        int[] buffer = new int[to - from];
+        mergeSort(values, buffer, from, to, from, comparator);
+    }
+
+    /**
+     * Sorts the range of {@code values}, using {@code buffer} from {@code values[base]} on
+     */
+    private static void mergeSort(int[] values, int[] buffer, int from, int to, int base,
+                                  IntBinaryOperator comparator) {
+        if (to - from <= INSERTION_SORT_LENGTH) {
+            for (int i = from + 1; i < to; i++) {
+                int value = values[i];
+                int j = i;
+                while (j > from && comparator.applyAsInt(values[j - 1], value) > 0) {
+                    values[j] = values[j - 1];
+                    j--;
+                }
+                values[j] = value;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(values, buffer, from, middle, base, comparator);
+        mergeSort(values, buffer, middle, to, base, comparator);
+        if (comparator.applyAsInt(values[middle - 1], values[middle]) <= 0) {
+            //halves are already in order
+            return;
+        }
+        System.arraycopy(values, from, buffer, from - base, middle - from);
+        int left = from - base;
+        int leftEnd = middle - base;
+        int right = middle;
+        int target = from;
+        while (left < leftEnd && right < to) {
+            //left value goes first if equal, so the sort is stable
+            values[target++] = comparator.applyAsInt(buffer[left], values[right]) <= 0
+                    ? buffer[left++] : values[right++];
+        }
+        System.arraycopy(buffer, left, values, target, leftEnd - left);
+    }
+}
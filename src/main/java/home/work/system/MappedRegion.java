@@ -0,0 +1,379 @@
+package home.work.system;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Long-lived memory mapping of the file system container. The container is opened
+ * and mapped once, and the mapping is reused by all operations of the owning
+ * {@link FileSystem}. It is remapped only when the container grows beyond the
+ * currently mapped size.
+ * <p>Single {@link MappedByteBuffer} is limited by int addressing, so the container
+ * is mapped as an array of {@link #segments} of {@link #segmentSize} bytes each.
+ * All positions are long, and values or byte ranges that cross a segment boundary
+ * are split between the neighbouring segments.</p>
+ * <p>All access is done by absolute position. Bulk operations use their own
+ * views of the segments, so concurrent callers never share buffer position state.</p>
+ */
+class MappedRegion implements Closeable {
+    final static int DEFAULT_SEGMENT_SIZE = 1 << 30; //1GB
+
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode;
+    private final int segmentSize;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile long mappedSize;
+
+    /**
+     * Opens the container file for reading and writing and maps the first
+     * {@code size} bytes of it. File is extended if it is shorter than {@code size}
+     *
+     * @param  path
+     *         Path to the container file
+     *
+     * @param  size
+     *         Number of bytes to map
+     *
+     * @param  segmentSize
+     *         Size of a single mapped segment
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    MappedRegion(Path path, long size, int segmentSize) throws IOException {
+        this(path, size, segmentSize, false);
+    }
+
+    /**
+     * Opens the container file and maps the first {@code size} bytes of it.
+     * Read-only region can't be used to write and can't extend the file.
+     *
+     * @param  path
+     *         Path to the container file
+     *
+     * @param  size
+     *         Number of bytes to map
+     *
+     * @param  segmentSize
+     *         Size of a single mapped segment
+     *
+     * @param  readOnly
+     *         If true, file is opened and mapped for reading only
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    MappedRegion(Path path, long size, int segmentSize, boolean readOnly) throws IOException {
+        if (segmentSize < Long.BYTES) {
+            throw new IllegalArgumentException("Segment size must be at least 8 bytes");
+        }
+        this.channel = readOnly ? FileChannel.open(path, READ) : FileChannel.open(path, READ, WRITE);
+        this.mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        this.segmentSize = segmentSize;
+        ensureMapped(size);
+    }
+
+    /**
+     * Maps additional segments if the current mapping is smaller than {@code size}.
+     * The last segment is remapped only if it was not mapped completely.
+     * Positions read before remapping stay valid, because all mappings share
+     * the same pages of the underlying file.
+     *
+     * @param  size
+     *         Number of bytes which must be mapped
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    synchronized void ensureMapped(long size) throws IOException {
+        if (size <= mappedSize) {
+            return;
+        }
+        int count = (int) ((size + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] mapped = Arrays.copyOf(segments, count);
+        //remap partially mapped last segment
+        int first = (int) (mappedSize / segmentSize);
+        for (int i = first; i < count; i++) {
+            long start = (long) i * segmentSize;
+            long length = Math.min(segmentSize, size - start);
+            mapped[i] = channel.map(mode, start, length);
+        }
+        segments = mapped;
+        mappedSize = size;
+    }
+
+    /**
+     * Unmaps everything beyond the first {@code size} bytes and truncates the file
+     * to {@code size} bytes. The last segment is remapped if it is cut. Buffers of
+     * removed segments must not be used after that, because their pages don't exist anymore.
+     *
+     * @param  size
+     *         New size of the file
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    synchronized void truncate(long size) throws IOException {
+        if (size >= mappedSize) {
+            return;
+        }
+        int count = (int) ((size + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] mapped = Arrays.copyOf(segments, count);
+        long lastStart = (long) (count - 1) * segmentSize;
+        if (count > 0 && size - lastStart < mapped[count - 1].capacity()) {
+            mapped[count - 1] = channel.map(mode, lastStart, size - lastStart);
+        }
+        segments = mapped;
+        mappedSize = size;
+        channel.truncate(size);
+    }
+
+    /**
+     * @return  number of mapped bytes
+     */
+    long size() {
+        return mappedSize;
+    }
+
+    byte get(long position) {
+        return segment(position).get(inner(position));
+    }
+
+    void put(long position, byte value) {
+        segment(position).put(inner(position), value);
+    }
+
+    int getInt(long position) {
+        MappedByteBuffer segment = segment(position);
+        int inner = inner(position);
+        if (inner + Integer.BYTES <= segment.limit()) {
+            return segment.getInt(inner);
+        }
+        byte[] bytes = new byte[Integer.BYTES];
+        get(position, bytes, 0, bytes.length);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    void putInt(long position, int value) {
+        MappedByteBuffer segment = segment(position);
+        int inner = inner(position);
+        if (inner + Integer.BYTES <= segment.limit()) {
+            segment.putInt(inner, value);
+        } else {
+            byte[] bytes = ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+            put(position, bytes, 0, bytes.length);
+        }
+    }
+
+    long getLong(long position) {
+        MappedByteBuffer segment = segment(position);
+        int inner = inner(position);
+        if (inner + Long.BYTES <= segment.limit()) {
+            return segment.getLong(inner);
+        }
+        byte[] bytes = new byte[Long.BYTES];
+        get(position, bytes, 0, bytes.length);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    void putLong(long position, long value) {
+        MappedByteBuffer segment = segment(position);
+        int inner = inner(position);
+        if (inner + Long.BYTES <= segment.limit()) {
+            segment.putLong(inner, value);
+        } else {
+            byte[] bytes = ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+            put(position, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Copies {@code length} bytes starting from the {@code position} of the
+     * container to the {@code bytes} array, crossing segment boundaries if needed
+     */
+    void get(long position, byte[] bytes, int offset, int length) {
+        MappedByteBuffer[] mapped = segments;
+        while (length > 0) {
+            ByteBuffer view = mapped[(int) (position / segmentSize)].duplicate();
+            view.position(inner(position));
+            int chunk = Math.min(length, view.remaining());
+            view.get(bytes, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Copies {@code length} bytes of the {@code bytes} array to the container
+     * starting from the {@code position}, crossing segment boundaries if needed
+     */
+    void put(long position, byte[] bytes, int offset, int length) {
+        MappedByteBuffer[] mapped = segments;
+        while (length > 0) {
+            ByteBuffer view = mapped[(int) (position / segmentSize)].duplicate();
+            view.position(inner(position));
+            int chunk = Math.min(length, view.remaining());
+            view.put(bytes, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Copies remaining bytes of the {@code buffer} to the container starting
+     * from the {@code position}, crossing segment boundaries if needed
+     */
+    void put(long position, ByteBuffer buffer) {
+        MappedByteBuffer[] mapped = segments;
+        while (buffer.hasRemaining()) {
+            ByteBuffer view = mapped[(int) (position / segmentSize)].duplicate();
+            view.position(inner(position));
+            ByteBuffer chunk = buffer.duplicate();
+            if (chunk.remaining() > view.remaining()) {
+                chunk.limit(chunk.position() + view.remaining());
+            }
+            position += chunk.remaining();
+            buffer.position(chunk.limit());
+            view.put(chunk);
+        }
+    }
+
+    /**
+     * Moves {@code length} bytes from the {@code from} position to the lower {@code to}
+     * position. Bytes are copied between views of the mapped segments, so nothing is
+     * copied through the java heap. Ranges may overlap: every step copies at most
+     * {@code from - to} bytes starting from the lowest ones, so a step never
+     * overwrites bytes it has not read yet.
+     */
+    void move(long from, long to, long length) {
+        MappedByteBuffer[] mapped = segments;
+        long moved = 0;
+        while (moved < length) {
+            ByteBuffer source = mapped[(int) ((from + moved) / segmentSize)].duplicate();
+            source.position(inner(from + moved));
+            ByteBuffer target = mapped[(int) ((to + moved) / segmentSize)].duplicate();
+            target.position(inner(to + moved));
+            int step = (int) Math.min(Math.min(length - moved, from - to),
+                    Math.min(source.remaining(), target.remaining()));
+            source.limit(source.position() + step);
+            target.put(source);
+            moved += step;
+        }
+    }
+
+    /**
+     * Copies {@code length} bytes from the {@code from} position to the {@code to}
+     * position, which may be lower or higher. Ranges must not overlap. Like
+     * {@link #move(long, long, long)}, nothing is copied through the java heap.
+     */
+    void copy(long from, long to, long length) {
+        MappedByteBuffer[] mapped = segments;
+        long copied = 0;
+        while (copied < length) {
+            ByteBuffer source = mapped[(int) ((from + copied) / segmentSize)].duplicate();
+            source.position(inner(from + copied));
+            ByteBuffer target = mapped[(int) ((to + copied) / segmentSize)].duplicate();
+            target.position(inner(to + copied));
+            int step = (int) Math.min(length - copied, Math.min(source.remaining(), target.remaining()));
+            source.limit(source.position() + step);
+            target.put(source);
+            copied += step;
+        }
+    }
+
+    /**
+     * Transfers {@code count} bytes from the current position of the {@code source}
+     * channel directly to the container file starting from the {@code position}.
+     * Bytes are copied by the file channel, so the data is not copied through
+     * the java heap, and the result is visible through the mapping.
+     *
+     * @throws  EOFException
+     *          If the source ends before {@code count} bytes are transferred
+     *
+     * @throws  IOException
+     *          If some other I/O error occurs
+     */
+    void transferFrom(FileChannel source, long position, long count) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long chunk = channel.transferFrom(source, position + transferred, count - transferred);
+            if (chunk <= 0) {
+                throw new EOFException(String.format("Source ended after %d of %d bytes", transferred, count));
+            }
+            transferred += chunk;
+        }
+    }
+
+    /**
+     * Copies bytes starting from the {@code position} of the container to the
+     * {@code buffer} until it has no remaining space
+     */
+    void get(long position, ByteBuffer buffer) {
+        MappedByteBuffer[] mapped = segments;
+        while (buffer.hasRemaining()) {
+            ByteBuffer view = mapped[(int) (position / segmentSize)].duplicate();
+            view.position(inner(position));
+            if (view.remaining() > buffer.remaining()) {
+                view.limit(view.position() + buffer.remaining());
+            }
+            position += view.remaining();
+            buffer.put(view);
+        }
+    }
+
+    /**
+     * Transfers {@code count} bytes starting from the {@code position} of the
+     * container file to the {@code target} channel. File channel may use
+     * sendfile or similar, so bytes are not copied through the java heap.
+     *
+     * @return  number of transferred bytes, which may be less than {@code count}
+     *          if target can't accept more bytes
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long chunk = channel.transferTo(position + transferred, count - transferred, target);
+            if (chunk <= 0) {
+                break;
+            }
+            transferred += chunk;
+        }
+        return transferred;
+    }
+
+    /**
+     * Forces changes made to the mapping to be written to the storage device
+     */
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private MappedByteBuffer segment(long position) {
+        return segments[(int) (position / segmentSize)];
+    }
+
+    private int inner(long position) {
+        return (int) (position % segmentSize);
+    }
+}
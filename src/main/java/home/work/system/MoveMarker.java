@@ -0,0 +1,189 @@
+package home.work.system;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Crash-safe marker of the record move done by compaction. It is stored in a small
+ * file next to the container and consists of source position, target position,
+ * record length and number of already moved bytes. Marker is forced to the storage
+ * device before the move starts and after every checkpoint, so if the process dies
+ * in the middle of the move, the move can be finished on the next start.
+ * <p>Marker is written to one of two slots in turn, together with a sequence number
+ * and a checksum. If the process dies while a slot is written, the other slot
+ * still holds the previous complete marker.</p>
+ * <p>Marker file exists only while compaction is running.</p>
+ */
+class MoveMarker implements Closeable {
+    //sequence number, from, to, length, moved and checksum
+    private final static int SLOT_LENGTH = 6 * Long.BYTES;
+
+    private final Path path;
+    private FileChannel channel;
+    private long from;
+    private long to;
+    private long length;
+    private long moved;
+    private long sequence;
+
+    private MoveMarker(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * @param  container
+     *         Path to the container file
+     *
+     * @return  path of the marker file of the {@code container}
+     */
+    static Path pathFor(Path container) {
+        return container.resolveSibling(container.getFileName() + ".compaction");
+    }
+
+    /**
+     * Creates marker which writes to the marker file of the {@code container}.
+     * The file is created on the first {@link #write(long, long, long, long)}.
+     */
+    static MoveMarker create(Path container) {
+        return new MoveMarker(pathFor(container));
+    }
+
+    /**
+     * Reads marker left by the interrupted compaction
+     *
+     * @return  marker, or null if there is no marker file
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    static MoveMarker read(Path container) throws IOException {
+        Path path = pathFor(container);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        MoveMarker marker = new MoveMarker(path);
+        try (FileChannel fc = FileChannel.open(path, READ)) {
+            for (int slot = 0; slot < 2; slot++) {
+                ByteBuffer buffer = ByteBuffer.allocate(SLOT_LENGTH);
+                while (buffer.hasRemaining() && fc.read(buffer, (long) slot * SLOT_LENGTH + buffer.position()) > 0) {
+                    //read whole slot
+                }
+                buffer.flip();
+                if (buffer.remaining() < SLOT_LENGTH) {
+                    continue;
+                }
+                long sequence = buffer.getLong();
+                long from = buffer.getLong();
+                long to = buffer.getLong();
+                long length = buffer.getLong();
+                long moved = buffer.getLong();
+                if (buffer.getLong() == checksum(buffer.array()) && sequence > marker.sequence) {
+                    marker.sequence = sequence;
+                    marker.from = from;
+                    marker.to = to;
+                    marker.length = length;
+                    marker.moved = moved;
+                }
+            }
+        }
+        return marker;
+    }
+
+    long getFrom() {
+        return from;
+    }
+
+    long getTo() {
+        return to;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    long getMoved() {
+        return moved;
+    }
+
+    /**
+     * @return  true if marker describes a move which was started
+     */
+    boolean isSet() {
+        return length > 0;
+    }
+
+    /**
+     * Writes the marker and forces it to the storage device
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    void write(long from, long to, long length, long moved) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, CREATE, WRITE);
+        }
+        long next = sequence + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_LENGTH);
+        buffer.putLong(next).putLong(from).putLong(to).putLong(length).putLong(moved);
+        buffer.putLong(checksum(buffer.array()));
+        buffer.flip();
+        long slotPosition = (next % 2) * SLOT_LENGTH;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, slotPosition + buffer.position());
+        }
+        channel.force(false);
+        this.sequence = next;
+        this.from = from;
+        this.to = to;
+        this.length = length;
+        this.moved = moved;
+    }
+
+    /**
+     * Continues numbering of the {@code interrupted} marker, so the next
+     * marker replaces it, and its move can be continued with {@link #write(long, long, long, long)}
+     */
+    void continueFrom(MoveMarker interrupted) {
+        this.sequence = interrupted.sequence;
+        this.from = interrupted.from;
+        this.to = interrupted.to;
+        this.length = interrupted.length;
+        this.moved = interrupted.moved;
+    }
+
+    /**
+     * Deletes the marker file. Must be called only when all moved records
+     * and gaps between them are forced to the storage device.
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    void clear() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+        length = 0;
+        sequence = 0;
+    }
+
+    private static long checksum(byte[] slot) {
+        CRC32 crc = new CRC32();
+        crc.update(slot, 0, SLOT_LENGTH - Long.BYTES);
+        return crc.getValue();
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
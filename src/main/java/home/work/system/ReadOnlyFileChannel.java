@@ -1,38 +1,84 @@
 package home.work.system;
 
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 
-import static java.nio.file.StandardOpenOption.READ;
-
 /**
  * Helper classs to avoid returning byte[] directly from {@link FileSystem}.
  * {@link #offset} and {@link #size) params limit narrow channel to exactly the
  * length of the file content. Channel can be read only.
+ * <p>Channels created by {@link FileSystem} read from its shared mapping
+ * and do not open the container file again. Each channel has its own position.</p>
+ * <p>Content can be sent to another channel with {@link #transferTo(WritableByteChannel)}
+ * without copying it to the java heap, or read as {@link InputStream}
+ * returned by {@link #newInputStream()}.</p>
+ * <p>Channel of {@link FileSystem} looks the file up on every read, under the read lock
+ * of the file system. Reads follow the record when compaction moves it. When the file
+ * is removed, or overwritten with content of another length, reads fail with
+ * {@link IOException}. When it is overwritten with content of the same length, reads
+ * return the new content from the current position.</p>
  */
-public class ReadOnlyFileChannel implements AutoCloseable {
-    private final FileChannel fileChannel;
-    private final MappedByteBuffer buffer;
-    private final int offset;
-    private final int size;
-
-    public ReadOnlyFileChannel(Path path, int offset, int size) throws IOException {
-        this.fileChannel = FileChannel.open(path, READ);
-        this.buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
-        this.offset = offset;
+public class ReadOnlyFileChannel implements SeekableByteChannel {
+    private final static int TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    private final MappedRegion region;
+    private final boolean ownsRegion;
+    private final ContentLocator locator;
+    private final long size;
+    private long position;
+    private boolean open = true;
+
+    public ReadOnlyFileChannel(Path path, long offset, long size) throws IOException {
+        this(new MappedRegion(path, offset + size, MappedRegion.DEFAULT_SEGMENT_SIZE, true), size, true,
+                read -> read.read(offset));
+    }
+
+    /**
+     * Creates a channel on top of the already mapped content.
+     *
+     * @param  region
+     *         Mapping which contains the file content
+     *
+     * @param  size
+     *         Length of the file content
+     *
+     * @param  locator
+     *         Finds position of the first byte of the file content in the {@code region}
+     */
+    ReadOnlyFileChannel(MappedRegion region, long size, ContentLocator locator) {
+        this(region, size, false, locator);
+    }
+
+    private ReadOnlyFileChannel(MappedRegion region, long size, boolean ownsRegion, ContentLocator locator) {
+        this.region = region;
+        this.ownsRegion = ownsRegion;
+        this.locator = locator;
         this.size = size;
     }
 
     /**
      * Reads one byte. If end of the buffer is reached -1 is returned
+     *
+     * @throws  ClosedChannelException
+     *          If channel is closed
+     *
+     * @throws  IOException
+     *          If the file was removed or replaced
      */
-    public int read() {
-        if (!buffer.hasRemaining()) {
+    public int read() throws IOException {
+        checkOpen();
+        if (position >= size) {
             return -1;
         }
-        return buffer.get() & 0xFF;
+        int b = (int) locator.read(offset -> region.get(offset + position) & 0xFF);
+        position++;
+        return b;
     }
 
     /**
@@ -46,21 +92,273 @@ public class ReadOnlyFileChannel implements AutoCloseable {
      *
      * @param  len
      *         length
+     *
+     * @return  number of bytes read, or -1 if end of the content is reached
+     *
+     * @throws  ClosedChannelException
+     *          If channel is closed
+     *
+     * @throws  IOException
+     *          If the file was removed or replaced
+     */
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        checkOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int length = (int) Math.min(len, size - position);
+        locator.read(offset -> {
+            region.get(offset + position, bytes, off, length);
+            return length;
+        });
+        position += length;
+        return length;
+    }
+
+    /**
+     * Reads bytes to the {@code buffer} until it is full or the end of the content is reached.
+     *
+     * @return  number of bytes read, or -1 if end of the content is reached
+     *
+     * @throws  ClosedChannelException
+     *          If channel is closed
+     *
+     * @throws  IOException
+     *          If the file was removed or replaced
      */
-    public int read(byte[] bytes, int off, int len) {
-        if (buffer.position() == (size - offset)) {
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        int len = read(buffer, position);
+        if (len > 0) {
+            position += len;
+        }
+        return len;
+    }
+
+    /**
+     * Reads bytes starting from the given position to the {@code buffer} until it is full
+     * or the end of the content is reached. Position of the channel is not changed, so
+     * several threads may read different ranges of one channel.
+     *
+     * @param  buffer
+     *         Buffer to read into
+     *
+     * @param  position
+     *         Position within the file content
+     *
+     * @return  number of bytes read, or -1 if {@code position} is at or beyond the end of the content
+     *
+     * @throws  ClosedChannelException
+     *          If channel is closed
+     *
+     * @throws  IllegalArgumentException
+     *          If position is negative
+     *
+     * @throws  IOException
+     *          If the file was removed or replaced
+     */
+    public int read(ByteBuffer buffer, long position) throws IOException {
+        checkOpen();
+        if (position < 0) {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        if (position >= size) {
             return -1;
         }
-        len = Math.min(len, buffer.remaining());
-        buffer.get(bytes, off, len);
+        int len = (int) Math.min(buffer.remaining(), size - position);
+        ByteBuffer window = buffer.duplicate();
+        window.limit(window.position() + len);
+        locator.read(offset -> {
+            region.get(offset + position, window);
+            return len;
+        });
+        buffer.position(buffer.position() + len);
         return len;
     }
 
-    public int size() {
+    /**
+     * Reads at most {@code len} bytes starting from the given position to a byte array.
+     * Position of the channel is not changed.
+     *
+     * @param  position
+     *         Position within the file content
+     *
+     * @param  bytes
+     *         byte array to read into
+     *
+     * @param  off
+     *         offset
+     *
+     * @param  len
+     *         length
+     *
+     * @return  number of bytes read, or -1 if {@code position} is at or beyond the end of the content
+     *
+     * @throws  ClosedChannelException
+     *          If channel is closed
+     *
+     * @throws  IllegalArgumentException
+     *          If position is negative
+     *
+     * @throws  IOException
+     *          If the file was removed or replaced
+     */
+    public int read(long position, byte[] bytes, int off, int len) throws IOException {
+        return read(ByteBuffer.wrap(bytes, off, len), position);
+    }
+
+    /**
+     * Transfers the rest of the content, starting from the current position, to
+     * the {@code target} channel. Bytes are sent by the container file channel,
+     * so the operating system may copy them directly (e.g. with sendfile)
+     * without copying them to the java heap. Content is sent in chunks of
+     * {@link #TRANSFER_CHUNK_SIZE} bytes, so a slow target doesn't hold the read
+     * lock of the file system for the whole transfer.
+     *
+     * @param  target
+     *         Channel to write content to
+     *
+     * @return  number of bytes transferred
+     *
+     * @throws  ClosedChannelException
+     *          If channel is closed
+     *
+     * @throws  IOException
+     *          If the file was removed or replaced, or some other I/O error occurs
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        checkOpen();
+        long transferred = 0;
+        while (position < size) {
+            long count = Math.min(size - position, TRANSFER_CHUNK_SIZE);
+            long chunk = locator.read(offset -> region.transferTo(offset + position, count, target));
+            position += chunk;
+            transferred += chunk;
+            if (chunk < count) {
+                break;
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Creates an input stream which reads from the current position of this channel.
+     * Bulk reads of the stream are done directly from the mapping.
+     * Closing the stream closes the channel.
+     *
+     * @return  input stream on top of this channel
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return ReadOnlyFileChannel.this.read();
+            }
+
+            @Override
+            public int read(byte[] bytes, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return ReadOnlyFileChannel.this.read(bytes, off, len);
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, size - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.max(0, Math.min(Integer.MAX_VALUE, size - position));
+            }
+
+            @Override
+            public void close() throws IOException {
+                ReadOnlyFileChannel.this.close();
+            }
+        };
+    }
+
+    /**
+     * @throws  NonWritableChannelException
+     *          Always, because channel can be read only
+     */
+    @Override
+    public int write(ByteBuffer buffer) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Sets position within the file content. Position greater than size is
+     * allowed, reads then return -1.
+     *
+     * @param  newPosition
+     *         New position, relative to the start of the file content
+     */
+    @Override
+    public ReadOnlyFileChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
         return size;
     }
 
+    /**
+     * @throws  NonWritableChannelException
+     *          Always, because channel can be read only
+     */
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
     public void close() throws IOException {
-        fileChannel.close();
+        open = false;
+        if (ownsRegion) {
+            region.close();
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Finds the content of the file for every read of the channel.
+     */
+    interface ContentLocator {
+        /**
+         * Calls {@code read} with the current position of the first byte of the content
+         * in the region, while the content can't be moved or reused.
+         *
+         * @throws  IOException
+         *          If the file was removed, or replaced with content of another length
+         */
+        long read(ContentRead read) throws IOException;
+    }
+
+    interface ContentRead {
+        long read(long offset) throws IOException;
     }
 }
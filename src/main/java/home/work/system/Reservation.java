@@ -0,0 +1,50 @@
+package home.work.system;
+
+/**
+ * Space reserved in the container for a record which is being written
+ * without holding the {@link FileSystem} lock. Record header is written
+ * at reservation time with isRemoved flag set, so the record stays invisible
+ * (and is treated as removed after a crash) until it is published.
+ */
+class Reservation {
+    private final String filename;
+    private final long offset;
+    private final long contentPosition;
+    private final long contentLength;
+
+    Reservation(String filename, long offset, long contentPosition, long contentLength) {
+        this.filename = filename;
+        this.offset = offset;
+        this.contentPosition = contentPosition;
+        this.contentLength = contentLength;
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return  position of the record in the container
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return  position of the first content byte in the container
+     */
+    long getContentPosition() {
+        return contentPosition;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return  position right after the end of the record
+     */
+    long getEnd() {
+        return contentPosition + contentLength;
+    }
+}
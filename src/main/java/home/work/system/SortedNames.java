@@ -0,0 +1,289 @@
+package home.work.system;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Filenames in sorted order, which are stored without objects per file.
+ * <p>Names are UTF-8 bytes prefixed by their int length, packed into chunks of about
+ * {@link #CHUNK_SIZE} bytes. Chunks are kept in a skip list by their lower bound: the
+ * first chunk has the empty bound, and the bound of every other chunk is its first
+ * name at the time the chunk was split off. Order is the unsigned order of UTF-8 bytes,
+ * which is the order of code points, so names with the same prefix are neighbours.</p>
+ * <p>Chunks are never changed: a change replaces the chunk with a copy, and a split
+ * puts the upper half before the lower half replaces the full chunk. So iterators
+ * don't take any lock, they may return names changed after they were created, but
+ * never skip a name which existed during the whole iteration, and they drop names
+ * repeated by a split because names are returned in strictly increasing order.</p>
+ * <p>Changes must be made by one thread at a time, it is the {@link FileTree} write lock.
+ * An entry takes 4 bytes plus the name, chunks are half to fully filled.</p>
+ */
+class SortedNames {
+    private final static int CHUNK_SIZE = 4096;
+    private final static byte[] EMPTY = new byte[0];
+
+    private final ConcurrentSkipListMap<byte[], byte[]> chunks = new ConcurrentSkipListMap<>(SortedNames::compare);
+
+    private SortedNames() {
+    }
+
+    /**
+     * @return  index without names
+     */
+    static SortedNames empty() {
+        return new Builder().build();
+    }
+
+    /**
+     * Builds the index from names in sorted order without copying chunks. Chunks are
+     * filled to 3/4, so the first inserts don't split them.
+     */
+    static class Builder {
+        private final SortedNames sorted = new SortedNames();
+        private byte[] bound = EMPTY;
+        private byte[] chunk = new byte[64];
+        private int length;
+        private byte[] last;
+
+        /**
+         * @param  name
+         *         Name not less than the previous one, the same name is added once
+         */
+        void add(byte[] name) {
+            if (last != null && compare(last, name) == 0) {
+                return;
+            }
+            last = name;
+            int entryLength = Integer.BYTES + name.length;
+            if (length > 0 && length + entryLength > CHUNK_SIZE / 4 * 3) {
+                sorted.chunks.put(bound, Arrays.copyOf(chunk, length));
+                bound = name;
+                length = 0;
+            }
+            if (length + entryLength > chunk.length) {
+                //buffer grows from a small one, many builders may be open at once
+                chunk = Arrays.copyOf(chunk, Math.max(length + entryLength, Math.min(chunk.length * 2, CHUNK_SIZE)));
+            }
+            writeEntry(chunk, length, name);
+            length += entryLength;
+        }
+
+        SortedNames build() {
+            sorted.chunks.put(bound, Arrays.copyOf(chunk, length));
+            return sorted;
+        }
+    }
+
+    /**
+     * Adds the name if it is not there yet
+     */
+    void add(byte[] name) {
+        Map.Entry<byte[], byte[]> entry = chunks.floorEntry(name);
+        byte[] chunk = entry.getValue();
+        int position = position(chunk, name);
+        if (position < chunk.length && compare(chunk, position, name) == 0) {
+            return;
+        }
+        byte[] updated = new byte[chunk.length + Integer.BYTES + name.length];
+        System.arraycopy(chunk, 0, updated, 0, position);
+        writeEntry(updated, position, name);
+        System.arraycopy(chunk, position, updated, position + Integer.BYTES + name.length, chunk.length - position);
+        if (updated.length <= CHUNK_SIZE) {
+            chunks.put(entry.getKey(), updated);
+            return;
+        }
+        int middle = 0;
+        while (middle < updated.length / 2) {
+            middle = entryEnd(updated, middle);
+        }
+        if (middle == updated.length) {
+            //one long name, chunk can't be split
+            chunks.put(entry.getKey(), updated);
+            return;
+        }
+        byte[] upper = Arrays.copyOfRange(updated, middle, updated.length);
+        chunks.put(name(upper, 0), upper);
+        chunks.put(entry.getKey(), Arrays.copyOf(updated, middle));
+    }
+
+    void remove(byte[] name) {
+        Map.Entry<byte[], byte[]> entry = chunks.floorEntry(name);
+        byte[] chunk = entry.getValue();
+        int position = position(chunk, name);
+        if (position == chunk.length || compare(chunk, position, name) != 0) {
+            return;
+        }
+        int end = entryEnd(chunk, position);
+        if (end - position == chunk.length && entry.getKey().length > 0) {
+            chunks.remove(entry.getKey());
+            return;
+        }
+        byte[] updated = new byte[chunk.length - (end - position)];
+        System.arraycopy(chunk, 0, updated, 0, position);
+        System.arraycopy(chunk, end, updated, position, chunk.length - end);
+        chunks.put(entry.getKey(), updated);
+    }
+
+    boolean isEmpty() {
+        Map.Entry<byte[], byte[]> first = chunks.firstEntry();
+        return first.getValue().length == 0 && chunks.higherKey(first.getKey()) == null;
+    }
+
+    /**
+     * @return  number of bytes taken by the chunks
+     */
+    long memoryUsage() {
+        long total = 0;
+        for (byte[] chunk : chunks.values()) {
+            total += chunk.length;
+        }
+        return total;
+    }
+
+    /**
+     * @param  prefix
+     *         Only names starting with it are returned
+     *
+     * @param  startAfter
+     *         Only names greater than it are returned, null to start from the first name
+     *
+     * @return  iterator of names in sorted order, which doesn't hold any lock
+     */
+    Iterator<String> iterator(String prefix, String startAfter) {
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] after = startAfter == null ? null : startAfter.getBytes(StandardCharsets.UTF_8);
+        if (after != null && compare(after, prefixBytes) < 0) {
+            after = null;
+        }
+        return new NameIterator(prefixBytes, after);
+    }
+
+    private class NameIterator implements Iterator<String> {
+        private final byte[] prefix;
+        private final Iterator<byte[]> chunkIterator;
+        //last returned name, names up to it are skipped
+        private byte[] last;
+        private byte[] chunk = EMPTY;
+        private int position;
+        private byte[] next;
+        private boolean done;
+
+        NameIterator(byte[] prefix, byte[] after) {
+            this.prefix = prefix;
+            this.last = after;
+            byte[] from = after == null ? prefix : after;
+            this.chunkIterator = chunks.tailMap(chunks.floorKey(from), true).values().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !done) {
+                if (position == chunk.length) {
+                    if (!chunkIterator.hasNext()) {
+                        done = true;
+                        break;
+                    }
+                    chunk = chunkIterator.next();
+                    position = 0;
+                    continue;
+                }
+                int start = position;
+                position = entryEnd(chunk, position);
+                if (compare(chunk, start, prefix) < 0 || last != null && compare(chunk, start, last) <= 0) {
+                    continue;
+                }
+                byte[] name = name(chunk, start);
+                if (!startsWith(name, prefix)) {
+                    done = true;
+                    break;
+                }
+                next = name;
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = null;
+            return new String(last, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return  position of the first entry of the chunk not less than the name
+     */
+    private static int position(byte[] chunk, byte[] name) {
+        int position = 0;
+        while (position < chunk.length && compare(chunk, position, name) < 0) {
+            position = entryEnd(chunk, position);
+        }
+        return position;
+    }
+
+    private static int entryEnd(byte[] chunk, int position) {
+        return position + Integer.BYTES + readLength(chunk, position);
+    }
+
+    private static byte[] name(byte[] chunk, int position) {
+        int start = position + Integer.BYTES;
+        return Arrays.copyOfRange(chunk, start, start + readLength(chunk, position));
+    }
+
+    private static boolean startsWith(byte[] name, byte[] prefix) {
+        if (name.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (name[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the entry of the chunk at the {@code position} with the name
+     */
+    private static int compare(byte[] chunk, int position, byte[] name) {
+        int length = readLength(chunk, position);
+        int start = position + Integer.BYTES;
+        for (int i = 0; i < Math.min(length, name.length); i++) {
+            int difference = (chunk[start + i] & 0xFF) - (name[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - name.length;
+    }
+
+    static int compare(byte[] first, byte[] second) {
+        for (int i = 0; i < Math.min(first.length, second.length); i++) {
+            int difference = (first[i] & 0xFF) - (second[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return first.length - second.length;
+    }
+
+    private static void writeEntry(byte[] chunk, int position, byte[] name) {
+        chunk[position] = (byte) (name.length >>> 24);
+        chunk[position + 1] = (byte) (name.length >>> 16);
+        chunk[position + 2] = (byte) (name.length >>> 8);
+        chunk[position + 3] = (byte) name.length;
+        System.arraycopy(name, 0, chunk, position + Integer.BYTES, name.length);
+    }
+
+    private static int readLength(byte[] chunk, int position) {
+        return (chunk[position] & 0xFF) << 24 | (chunk[position + 1] & 0xFF) << 16
+                | (chunk[position + 2] & 0xFF) << 8 | (chunk[position + 3] & 0xFF);
+    }
+}
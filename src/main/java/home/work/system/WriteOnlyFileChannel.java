@@ -0,0 +1,146 @@
+package home.work.system;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel which streams content of a new file to the {@link FileSystem}, so the
+ * content doesn't have to be in the java heap at once. File appears in the file
+ * system only when the channel is closed; until then it is invisible, and
+ * {@link #cancel()} discards everything written.
+ * <p>Channels are created by {@link FileSystem#openForWrite(String)} for content of
+ * unknown length, and by {@link FileSystem#openForWrite(String, long)} for content
+ * of known length, which is written directly to the space reserved for it.</p>
+ * <p>Content can also be written as {@link OutputStream} returned by {@link #newOutputStream()}.
+ * Channel is not thread safe.</p>
+ */
+public abstract class WriteOnlyFileChannel implements WritableByteChannel {
+    private final String filename;
+    private long written;
+    private boolean open = true;
+
+    WriteOnlyFileChannel(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Writes all remaining bytes of the {@code buffer}
+     *
+     * @return  number of bytes written
+     *
+     * @throws  ClosedChannelException
+     *          If channel is closed
+     *
+     * @throws  IllegalArgumentException
+     *          If there is not enough space for the content
+     *
+     * @throws  IOException
+     *          If content is longer than declared, or if some other I/O error occurs
+     */
+    @Override
+    public int write(ByteBuffer buffer) throws IOException {
+        checkOpen();
+        int length = buffer.remaining();
+        writeContent(buffer, written);
+        written += length;
+        return length;
+    }
+
+    /**
+     * Creates an output stream which writes to this channel.
+     * Closing the stream closes the channel and publishes the file.
+     *
+     * @return  output stream on top of this channel
+     */
+    public OutputStream newOutputStream() {
+        return new OutputStream() {
+            private final byte[] single = new byte[1];
+
+            @Override
+            public void write(int b) throws IOException {
+                single[0] = (byte) b;
+                WriteOnlyFileChannel.this.write(ByteBuffer.wrap(single));
+            }
+
+            @Override
+            public void write(byte[] bytes, int off, int len) throws IOException {
+                WriteOnlyFileChannel.this.write(ByteBuffer.wrap(bytes, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                WriteOnlyFileChannel.this.close();
+            }
+        };
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return  number of bytes written so far
+     */
+    public long position() {
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the channel and publishes the file. If the file can't be published,
+     * written content is discarded.
+     *
+     * @throws  IllegalArgumentException
+     *          If file with the same name already exists, or there is not enough space
+     *
+     * @throws  IOException
+     *          If written content is shorter than declared, or if some other I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        publishContent(written);
+    }
+
+    /**
+     * Closes the channel and discards written content, file is not created
+     *
+     * @throws  IOException
+     *          If some I/O error occurs
+     */
+    public void cancel() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        discardContent();
+    }
+
+    /**
+     * Writes all remaining bytes of the {@code buffer} at the {@code position} of the content
+     */
+    abstract void writeContent(ByteBuffer buffer, long position) throws IOException;
+
+    /**
+     * Publishes the file with {@code length} bytes of content, or discards it on failure
+     */
+    abstract void publishContent(long length) throws IOException;
+
+    abstract void discardContent() throws IOException;
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package home.work;
 
+import home.work.system.AsyncFileSystemDriver;
+import home.work.system.AsyncOptions;
 import home.work.system.ContextConfig;
 import home.work.system.FileSystem;
 import home.work.system.FileSystemDriver;
@@ -8,11 +10,22 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import static io.qala.datagen.RandomShortApi.alphanumeric;
 import static org.junit.jupiter.api.Assertions.*;
@@ -24,6 +37,9 @@ public class FileSystemDriverTest {
     @Autowired
     private FileSystem fileSystem;
 
+    @Autowired
+    private AsyncFileSystemDriver asyncFileSystemDriver;
+
     private FileSystemDriver fileSystemDriver;
 
     @BeforeAll
@@ -36,6 +52,7 @@ public class FileSystemDriverTest {
     public void removeFile() {
         java.io.File fileSystem = new java.io.File("fileSystem");
         fileSystem.delete();
+        new java.io.File("fileSystem.index").delete();
     }
 
     @AfterEach
@@ -61,6 +78,92 @@ public class FileSystemDriverTest {
         assertEquals(randomContent, new String(result));
     }
 
+    @Test
+    public void shouldCreateSeveralFiles_andReportFailedOnes() throws IOException {
+        String existing = alphanumeric(10);
+        fileSystemDriver.createFile(existing);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(existing, new byte[1]);
+        for (int i = 0; i < 3; i++) {
+            files.put(alphanumeric(10), alphanumeric(10).getBytes());
+        }
+        Map<String, Exception> failures = fileSystemDriver.createFiles(files);
+        assertEquals(Collections.singleton(existing), failures.keySet());
+        files.remove(existing);
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getValue(), fileSystemDriver.readFromFile(file.getKey()));
+        }
+    }
+
+    @Test
+    public void shouldCreateAndReadFileAsynchronously() throws Exception {
+        String randomName = alphanumeric(10);
+        String randomContent = alphanumeric(10);
+        long completed = asyncFileSystemDriver.getCompletedCount();
+        byte[] result = asyncFileSystemDriver.createFileAsync(randomName, randomContent.getBytes())
+                .thenCompose(created -> asyncFileSystemDriver.readFromFileAsync(randomName))
+                .get();
+        assertEquals(randomContent, new String(result));
+        assertEquals(completed + 2, asyncFileSystemDriver.getCompletedCount());
+        assertTrue(asyncFileSystemDriver.getMaxLatencyNanos() > 0);
+    }
+
+    @Test
+    public void shouldCompleteExceptionally_ifAsynchronousOperationFails() throws IOException {
+        String randomName = alphanumeric(10);
+        fileSystemDriver.createFile(randomName);
+        long failed = asyncFileSystemDriver.getFailedCount();
+        ExecutionException thrown = assertThrows(ExecutionException.class,
+                () -> asyncFileSystemDriver.createFileAsync(randomName).get());
+        assertTrue(thrown.getCause() instanceof IllegalArgumentException);
+        assertEquals(failed + 1, asyncFileSystemDriver.getFailedCount());
+    }
+
+    @Test
+    public void shouldRejectOperation_ifQueueIsFull() throws Exception {
+        String randomName = alphanumeric(10);
+        fileSystemDriver.createFile(randomName, alphanumeric(10).getBytes());
+        CountDownLatch release = new CountDownLatch(1);
+        WritableByteChannel blocked = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                int written = src.remaining();
+                src.position(src.limit());
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try (AsyncFileSystemDriver driver = new AsyncFileSystemDriver(fileSystemDriver,
+                new AsyncOptions(1, 1, AsyncOptions.Rejection.ABORT))) {
+            CompletableFuture<Long> running = driver.transferFileAsync(randomName, blocked);
+            while (driver.getActiveCount() == 0) {
+                Thread.sleep(1);
+            }
+            CompletableFuture<byte[]> queued = driver.readFromFileAsync(randomName);
+            CompletableFuture<byte[]> rejected = driver.readFromFileAsync(randomName);
+            assertEquals(1, driver.getQueueDepth());
+            ExecutionException thrown = assertThrows(ExecutionException.class, rejected::get);
+            assertTrue(thrown.getCause() instanceof RejectedExecutionException);
+            assertEquals(1, driver.getRejectedCount());
+            release.countDown();
+            assertEquals(10L, (long) running.get());
+            assertEquals(10, queued.get().length);
+        }
+    }
+
     @Test
     public void shouldThrowException_whenTryToCreateFileWithExistingFilename() throws IOException {
         String randomName = alphanumeric(10);
@@ -80,6 +183,39 @@ public class FileSystemDriverTest {
         assertEquals(randomContent, new String(result));
     }
 
+    @Test
+    public void shouldTransferFileToWritableChannel() throws IOException {
+        String randomName = alphanumeric(10);
+        String randomContent = alphanumeric(10);
+        fileSystemDriver.createFile(randomName, randomContent.getBytes());
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        assertEquals(10, fileSystemDriver.transferFile(randomName, Channels.newChannel(actual)));
+        assertEquals(randomContent, actual.toString());
+    }
+
+    @Test
+    public void shouldThrowException_ifTargetAcceptsNoBytes_whenTransfer() throws IOException {
+        String randomName = alphanumeric(10);
+        fileSystemDriver.createFile(randomName, alphanumeric(10).getBytes());
+        //as a non-blocking channel which is full
+        WritableByteChannel full = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                return 0;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertThrows(IOException.class, () -> fileSystemDriver.transferFile(randomName, full));
+    }
+
     @Test
     public void shouldCopyExistingFile_GivenAbsolutePath() throws IOException {
         String path = getClass().getClassLoader().getResource("data/some_file.txt").getPath();
@@ -88,6 +224,23 @@ public class FileSystemDriverTest {
         assertEquals("file content 123", new String(result));
     }
 
+    @Test
+    public void shouldCopyExistingFiles_GivenPaths() throws IOException {
+        fileSystemDriver.copyExistingFiles(Arrays.asList(
+                Paths.get(getClass().getClassLoader().getResource("data/some_file.txt").getPath()),
+                Paths.get(getClass().getClassLoader().getResource("data/readme.md").getPath())));
+        assertEquals("file content 123", new String(fileSystemDriver.readFromFile("some_file.txt")));
+        assertArrayEquals(getBytesFromPath("data/readme.md"), fileSystemDriver.readFromFile("readme.md"));
+    }
+
+    @Test
+    public void shouldNotCopyAnyFile_ifOneOfThemDoesNotFit() {
+        assertThrows(IllegalArgumentException.class, () -> fileSystemDriver.copyExistingFiles(Arrays.asList(
+                Paths.get(getClass().getClassLoader().getResource("data/some_file.txt").getPath()),
+                Paths.get(getClass().getClassLoader().getResource("data/large_image.jpeg").getPath()))));
+        assertFalse(fileSystemDriver.fileExists("some_file.txt"));
+    }
+
     @Test
     public void shouldThrowException_ifFileNotFound_whenCopy() throws IOException {
         assertThrows(IllegalArgumentException.class,
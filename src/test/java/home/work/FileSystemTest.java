@@ -1,8 +1,17 @@
 package home.work;
 
+import home.work.system.CacheOptions;
+import home.work.system.Compaction;
+import home.work.system.CompactionOptions;
+import home.work.system.DurabilityOptions;
 import home.work.system.File;
 import home.work.system.FileSystem;
+import home.work.system.FileSystemRegistry;
+import home.work.system.GrowthOptions;
 import home.work.system.ReadOnlyFileChannel;
+import home.work.system.WriteOnlyFileChannel;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -10,20 +19,40 @@ import org.junit.jupiter.api.Test;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 import static io.qala.datagen.RandomShortApi.*;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class FileSystemTest {
     private final static int DEFAULT_FILE_SYSTEM_SIZE = 2048;
+    private final static int HEADER_SIZE = 24;
     private FileSystem fileSystem;
 
     @BeforeEach
@@ -35,6 +64,8 @@ public class FileSystemTest {
     public void cleanUp() {
         java.io.File fileSystem = new java.io.File("fileSystem");
         fileSystem.delete();
+        new java.io.File("fileSystem.index").delete();
+        new java.io.File("fileSystem.compaction").delete();
     }
 
     @Test
@@ -55,6 +86,35 @@ public class FileSystemTest {
         assertEquals(fileSystem1.getAvailableSpace(), fileSystem2.getAvailableSpace());
     }
 
+    @Test
+    public void shouldReadFilesCrossingSegmentBoundaries() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        FileSystem fileSystem = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE, 64);
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        assertAllFilesEqual(listOfFiles, readAllFiles(fileSystem, listOfFiles));
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE, 32);
+        assertAllFilesEqual(listOfFiles, readAllFiles(restored, listOfFiles));
+    }
+
+    @Test
+    public void shouldMigrateFileSystemOfPreviousFormat() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        cleanUp();
+        byte[] name = "file".getBytes();
+        byte[] content = alphanumeric(20).getBytes();
+        int recordLength = 1 + 2 * 4 + name.length + content.length;
+        ByteBuffer legacy = ByteBuffer.allocate(DEFAULT_FILE_SYSTEM_SIZE);
+        legacy.putInt(DEFAULT_FILE_SYSTEM_SIZE);
+        legacy.putInt(8 + 2 * recordLength);
+        //removed record
+        legacy.put((byte) 1).putInt(name.length).put(name).putInt(content.length).put(content);
+        //live record
+        legacy.put((byte) 0).putInt(name.length).put(name).putInt(content.length).put(content);
+        Files.write(Paths.get("fileSystem"), legacy.array());
+
+        FileSystem fileSystem = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertArrayEquals(content, fileSystem.readFileFromFileSystem("file").getContent());
+        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - 8 - recordLength, fileSystem.getAvailableSpace());
+    }
+
     @Test
     public void shouldReadFileWithSpecificName() throws IOException {
         List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
@@ -70,12 +130,73 @@ public class FileSystemTest {
         int randomFileNumber = integer(1, listOfFiles.size() - 1);
         byte[] expected = listOfFiles.get(randomFileNumber).getContent();
         ReadOnlyFileChannel fileChannel = fileSystem.getReadOnlyFileChannel("file-" + randomFileNumber);
-        byte[] actual = new byte[fileChannel.size()];
-        fileChannel.read(actual, 0, fileChannel.size());
+        byte[] actual = new byte[(int) fileChannel.size()];
+        fileChannel.read(actual, 0, actual.length);
         fileChannel.close();
         assertArrayEquals(expected, actual);
     }
 
+    @Test
+    public void shouldNotShareReadPositionBetweenChannels() throws IOException {
+        File original = getFileWithNameAndContent("file", alphanumeric(20));
+        fileSystem.writeFileToFileSystem(original);
+        ReadOnlyFileChannel first = fileSystem.getReadOnlyFileChannel("file");
+        ReadOnlyFileChannel second = fileSystem.getReadOnlyFileChannel("file");
+        byte[] firstHalf = new byte[10];
+        first.read(firstHalf, 0, firstHalf.length);
+        byte[] actual = new byte[(int) second.size()];
+        second.read(actual, 0, actual.length);
+        first.close();
+        second.close();
+        assertArrayEquals(original.getContent(), actual);
+    }
+
+    @Test
+    public void shouldThrowIOException_whenReadChannelOfRemovedFile() throws IOException {
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("file", alphanumeric(20)));
+        ReadOnlyFileChannel fileChannel = fileSystem.getReadOnlyFileChannel("file");
+        fileSystem.removeFileFromFileSystem("file");
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("other", alphanumeric(20)));
+        byte[] actual = new byte[(int) fileChannel.size()];
+        IOException e = assertThrows(IOException.class, () -> fileChannel.read(actual, 0, actual.length));
+        assertEquals("File file was removed or replaced after the channel was opened", e.getMessage());
+        assertThrows(IOException.class, fileChannel::read);
+        fileChannel.close();
+    }
+
+    @Test
+    public void shouldThrowIOException_whenReadChannelOfFileReplacedWithAnotherLength() throws IOException {
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("file", alphanumeric(20)));
+        ReadOnlyFileChannel fileChannel = fileSystem.getReadOnlyFileChannel("file");
+        fileSystem.removeFileFromFileSystem("file");
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("file", alphanumeric(10)));
+        assertThrows(IOException.class, () -> fileChannel.read(ByteBuffer.allocate(20)));
+        fileChannel.close();
+    }
+
+    @Test
+    public void shouldReadContentOfChannel_afterCompactionMovedIt() throws IOException {
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("first", alphanumeric(100)));
+        File original = getFileWithNameAndContent("file", alphanumeric(20));
+        fileSystem.writeFileToFileSystem(original);
+        ReadOnlyFileChannel fileChannel = fileSystem.getReadOnlyFileChannel("file");
+        fileSystem.removeFileFromFileSystem("first");
+        fileSystem.startCompaction(new CompactionOptions(1, 1)).await();
+        byte[] actual = new byte[(int) fileChannel.size()];
+        fileChannel.read(actual, 0, actual.length);
+        fileChannel.close();
+        assertArrayEquals(original.getContent(), actual);
+    }
+
+    @Test
+    public void shouldThrowClosedChannelException_whenReadClosedChannel() throws IOException {
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("file", alphanumeric(20)));
+        ReadOnlyFileChannel fileChannel = fileSystem.getReadOnlyFileChannel("file");
+        fileChannel.close();
+        assertThrows(ClosedChannelException.class, fileChannel::read);
+        assertThrows(ClosedChannelException.class, () -> fileChannel.read(new byte[20], 0, 20));
+    }
+
     @Test
     public void shouldThrowFileNotFoundException_whenTryToReadRemovedFile() throws IOException {
         List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
@@ -113,7 +234,7 @@ public class FileSystemTest {
 
     @Test
     public void shouldThrowIllegalArgumentException_andResetCurrentPosition_ifNotEnoughSpace() throws IOException {
-        int expectedAvailableSpace = fileSystem.getAvailableSpace();
+        long expectedAvailableSpace = fileSystem.getAvailableSpace();
         String url = "https://github.com/kynyan/2fsystem/blob/master/readme.md";
         HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
         assertThrows(IllegalArgumentException.class,
@@ -122,6 +243,117 @@ public class FileSystemTest {
         assertEquals(expectedAvailableSpace, fileSystem.getAvailableSpace());
     }
 
+    @Test
+    public void shouldDownloadFile_whenContentLengthIsKnown() throws IOException {
+        byte[] content = alphanumeric(100).getBytes();
+        HttpServer server = startServer(exchange -> {
+            exchange.sendResponseHeaders(200, content.length);
+            exchange.getResponseBody().write(content);
+            exchange.close();
+        });
+        try {
+            fileSystem.writeFileFromConnection(openConnection(server), "file");
+        } finally {
+            server.stop(0);
+        }
+        assertArrayEquals(content, fileSystem.readFileFromFileSystem("file").getContent());
+    }
+
+    @Test
+    public void shouldDownloadFile_whenContentLengthIsUnknown() throws IOException {
+        byte[] content = alphanumeric(100).getBytes();
+        HttpServer server = startServer(exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write(content);
+            exchange.close();
+        });
+        try {
+            fileSystem.writeFileFromConnection(openConnection(server), "file");
+        } finally {
+            server.stop(0);
+        }
+        assertArrayEquals(content, fileSystem.readFileFromFileSystem("file").getContent());
+    }
+
+    @Test
+    public void shouldReadAndWrite_whileDownloadIsInProgress() throws Exception {
+        File existing = getFileWithNameAndContent("existing", alphanumeric(20));
+        fileSystem.writeFileToFileSystem(existing);
+        byte[] content = alphanumeric(100).getBytes();
+        CountDownLatch halfSent = new CountDownLatch(1);
+        CountDownLatch sendRest = new CountDownLatch(1);
+        HttpServer server = startServer(exchange -> {
+            exchange.sendResponseHeaders(200, content.length);
+            exchange.getResponseBody().write(content, 0, 50);
+            exchange.getResponseBody().flush();
+            halfSent.countDown();
+            try {
+                sendRest.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getResponseBody().write(content, 50, 50);
+            exchange.close();
+        });
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            HttpURLConnection connection = openConnection(server);
+            Future<?> download = pool.submit(() -> {
+                fileSystem.writeFileFromConnection(connection, "downloaded");
+                return null;
+            });
+            halfSent.await();
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+                assertFilesEqual(existing, fileSystem.readFileFromFileSystem("existing"));
+                fileSystem.writeFileToFileSystem(getFileWithNameAndContent("written", alphanumeric(20)));
+            });
+            assertFalse(fileSystem.fileExists("downloaded"));
+            sendRest.countDown();
+            download.get();
+        } finally {
+            sendRest.countDown();
+            pool.shutdown();
+            server.stop(0);
+        }
+        assertArrayEquals(content, fileSystem.readFileFromFileSystem("downloaded").getContent());
+    }
+
+    @Test
+    public void shouldThrowIllegalArgumentException_whenDownloadOfUnknownLengthDoesNotFit() throws IOException {
+        long expectedAvailableSpace = fileSystem.getAvailableSpace();
+        HttpServer server = startServer(exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write(alphanumeric(2 * DEFAULT_FILE_SYSTEM_SIZE).getBytes());
+            exchange.close();
+        });
+        try {
+            HttpURLConnection connection = openConnection(server);
+            assertThrows(IllegalArgumentException.class, () -> fileSystem.writeFileFromConnection(connection, "file"));
+        } finally {
+            server.stop(0);
+        }
+        assertEquals(expectedAvailableSpace, fileSystem.getAvailableSpace());
+    }
+
+    @Test
+    public void shouldReleaseReservedSpace_whenDownloadIsAborted() throws IOException {
+        long expectedAvailableSpace = fileSystem.getAvailableSpace();
+        HttpServer server = startServer(exchange -> {
+            exchange.sendResponseHeaders(200, 100);
+            exchange.getResponseBody().write(alphanumeric(50).getBytes());
+            exchange.getResponseBody().flush();
+            exchange.getHttpContext().getServer().stop(0);
+        });
+        try {
+            HttpURLConnection connection = openConnection(server);
+            assertThrows(IOException.class, () -> fileSystem.writeFileFromConnection(connection, "file"));
+        } finally {
+            server.stop(0);
+        }
+        assertFalse(fileSystem.fileExists("file"));
+        assertEquals(expectedAvailableSpace, fileSystem.getAvailableSpace());
+    }
+
     @Test
     public void shouldDefragmentFileSystemAndReleaseSpace() throws IOException {
         List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
@@ -178,12 +410,474 @@ public class FileSystemTest {
         assertEquals(availableSpaceBeforeDefrag, availableSpaceAfterDefrag);
     }
 
+    @Test
+    public void shouldCompactInBackground_andReleaseSpaceOfRemovedFiles() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        long expectedSpace = fileSystem.getAvailableSpace();
+        for (int i = 0; i < listOfFiles.size(); i += 2) {
+            fileSystem.removeFileFromFileSystem(listOfFiles.get(i).getName());
+            expectedSpace += listOfFiles.get(i).getTotalLength();
+        }
+        List<File> remainingFiles = new ArrayList<>();
+        for (int i = 1; i < listOfFiles.size(); i += 2) {
+            remainingFiles.add(listOfFiles.get(i));
+        }
+        Compaction compaction = fileSystem.startCompaction(new CompactionOptions(1, 1));
+        compaction.await();
+        assertEquals(1, compaction.getProgress());
+        assertEquals(expectedSpace, fileSystem.getAvailableSpace());
+        assertAllFilesEqual(remainingFiles, readAllFiles(fileSystem, remainingFiles));
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(expectedSpace, restored.getAvailableSpace());
+        assertAllFilesEqual(remainingFiles, readAllFiles(restored, remainingFiles));
+    }
+
+    @Test
+    public void shouldReadAndWriteFiles_whileCompactionIsRunning() throws IOException {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        fileSystem.removeFileFromFileSystem(listOfFiles.get(0).getName());
+        listOfFiles.remove(0);
+        Compaction compaction = fileSystem.startCompaction(new CompactionOptions(1, 20));
+        File written = getFileWithNameAndContent("written-while-compaction", unicode(1, 40));
+        fileSystem.writeFileToFileSystem(written);
+        assertAllFilesEqual(listOfFiles, readAllFiles(fileSystem, listOfFiles));
+        compaction.await();
+        listOfFiles.add(written);
+        assertAllFilesEqual(listOfFiles, readAllFiles(fileSystem, listOfFiles));
+    }
+
+    @Test
+    public void shouldReturnRunningCompaction_andStopIt_whenCancelled() throws IOException {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        fileSystem.removeFileFromFileSystem(listOfFiles.get(0).getName());
+        listOfFiles.remove(0);
+        Compaction compaction = fileSystem.startCompaction(new CompactionOptions(1, 1000));
+        assertSame(compaction, fileSystem.startCompaction());
+        compaction.cancel();
+        compaction.await();
+        assertTrue(compaction.isCancelled());
+        assertAllFilesEqual(listOfFiles, readAllFiles(fileSystem, listOfFiles));
+    }
+
+    @Test
+    public void shouldStartNewCompaction_andReuseSpace_afterCompactionFailed() throws IOException {
+        File removed = getFileWithNameAndContent("removed", alphanumeric(100));
+        File moved = getFileWithNameAndContent("moved", alphanumeric(100));
+        fileSystem.writeFileToFileSystem(removed);
+        fileSystem.writeFileToFileSystem(moved);
+        fileSystem.removeFileFromFileSystem(removed.getName());
+        //marker of the move can't be written
+        Path marker = Files.createDirectory(Paths.get("fileSystem.compaction"));
+        Compaction failed = fileSystem.startCompaction(new CompactionOptions(1, 0));
+        assertThrows(IOException.class, failed::await);
+
+        //space removed after the failure is not skipped as not compacted yet
+        long availableSpace = fileSystem.getAvailableSpace();
+        File tail = getFileWithNameAndContent("tail", alphanumeric(100));
+        fileSystem.writeFileToFileSystem(tail);
+        fileSystem.removeFileFromFileSystem(tail.getName());
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("same", alphanumeric(100)));
+        assertEquals(availableSpace - tail.getTotalLength(), fileSystem.getAvailableSpace());
+
+        Files.delete(marker);
+        Compaction compaction = fileSystem.startCompaction(new CompactionOptions(1, 0));
+        assertNotSame(failed, compaction);
+        compaction.await();
+        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - HEADER_SIZE - moved.getTotalLength() - tail.getTotalLength(),
+                fileSystem.getAvailableSpace());
+        assertFilesEqual(moved, fileSystem.readFileFromFileSystem(moved.getName()));
+    }
+
+    @Test
+    public void shouldFinishCompactionBatch_andDeleteMarker_whenClosed() throws Exception {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        fileSystem.removeFileFromFileSystem(listOfFiles.get(0).getName());
+        listOfFiles.remove(0);
+        Compaction compaction = fileSystem.startCompaction(new CompactionOptions(1, 60_000));
+        fileSystem.close();
+
+        assertTrue(compaction.isDone());
+        assertFalse(Files.exists(Paths.get("fileSystem.compaction")));
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertAllFilesEqual(listOfFiles, readAllFiles(restored, listOfFiles));
+        restored.close();
+    }
+
+    @Test
+    public void shouldFinishInterruptedMove_andResumeCompaction_onRestore() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        File removed = getFileWithNameAndContent("removed", alphanumeric(20));
+        File moved = getFileWithNameAndContent("moved", alphanumeric(300));
+        fileSystem.writeFileToFileSystem(removed);
+        fileSystem.writeFileToFileSystem(moved);
+        fileSystem.removeFileFromFileSystem(removed.getName());
+        fileSystem.close();
+        //simulate crash after two steps of the move which overlaps its new place
+        long from = HEADER_SIZE + removed.getTotalLength();
+        long to = HEADER_SIZE;
+        long step = from - to;
+        long movedBytes = 2 * step;
+        try (RandomAccessFile container = new RandomAccessFile("fileSystem", "rw")) {
+            byte[] chunk = new byte[(int) step];
+            for (long position = 0; position < movedBytes; position += step) {
+                container.seek(from + position);
+                container.readFully(chunk);
+                container.seek(to + position);
+                container.write(chunk);
+            }
+        }
+        writeMoveMarker(from, to, moved.getTotalLength(), movedBytes);
+
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertFilesEqual(moved, restored.readFileFromFileSystem(moved.getName()));
+        assertFalse(restored.fileExists(removed.getName()));
+        restored.startCompaction().await();
+        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - HEADER_SIZE - moved.getTotalLength(), restored.getAvailableSpace());
+        assertFalse(Files.exists(Paths.get("fileSystem.compaction")));
+        FileSystem reopened = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertFilesEqual(moved, reopened.readFileFromFileSystem(moved.getName()));
+    }
+
+    @Test
+    public void shouldFindRecordsMovedAfterMarkedOne_atTheirSources_onRestore() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        File removed = getFileWithNameAndContent("removed", alphanumeric(200));
+        fileSystem.writeFileToFileSystem(removed);
+        List<File> moved = new ArrayList<>();
+        for (String name : Arrays.asList("a", "b", "c")) {
+            File file = getFileWithNameAndContent(name, alphanumeric(10));
+            fileSystem.writeFileToFileSystem(file);
+            moved.add(file);
+        }
+        fileSystem.removeFileFromFileSystem(removed.getName());
+        fileSystem.close();
+        //simulate crash after all records were copied to the gap, but only the first move was marked
+        long from = HEADER_SIZE + removed.getTotalLength();
+        long length = moved.stream().mapToLong(File::getTotalLength).sum();
+        try (RandomAccessFile container = new RandomAccessFile("fileSystem", "rw")) {
+            byte[] records = new byte[(int) length];
+            container.seek(from);
+            container.readFully(records);
+            container.seek(HEADER_SIZE);
+            container.write(records);
+        }
+        writeMoveMarker(from, HEADER_SIZE, moved.get(0).getTotalLength(), 0);
+
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertAllFilesEqual(moved, readAllFiles(restored, moved));
+        assertFalse(restored.fileExists(removed.getName()));
+        restored.startCompaction().await();
+        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - HEADER_SIZE - length, restored.getAvailableSpace());
+        FileSystem reopened = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertAllFilesEqual(moved, readAllFiles(reopened, moved));
+    }
+
+    /**
+     * Writes marker of the record move to the second slot of the marker file
+     */
+    private static void writeMoveMarker(long from, long to, long length, long moved) throws IOException {
+        ByteBuffer marker = ByteBuffer.allocate(48);
+        marker.putLong(1).putLong(from).putLong(to).putLong(length).putLong(moved);
+        CRC32 crc = new CRC32();
+        crc.update(marker.array(), 0, 40);
+        marker.putLong(crc.getValue());
+        ByteBuffer markerFile = ByteBuffer.allocate(96);
+        markerFile.position(48);
+        markerFile.put(marker.array());
+        Files.write(Paths.get("fileSystem.compaction"), markerFile.array());
+    }
+
+    @Test
+    public void shouldReuseSpaceOfRemovedFile_withoutDefragmentation() throws IOException {
+        File removed = getFileWithNameAndContent("removed", alphanumeric(100));
+        File kept = getFileWithNameAndContent("kept", alphanumeric(100));
+        fileSystem.writeFileToFileSystem(removed);
+        fileSystem.writeFileToFileSystem(kept);
+        fileSystem.removeFileFromFileSystem(removed.getName());
+        long availableSpace = fileSystem.getAvailableSpace();
+        File smaller = getFileWithNameAndContent("small", alphanumeric(50));
+        fileSystem.writeFileToFileSystem(smaller);
+        File rest = getFileWithNameAndContent("rest", alphanumeric((int) (removed.getTotalLength() - smaller.getTotalLength() - 17)));
+        fileSystem.writeFileToFileSystem(rest);
+        assertEquals(availableSpace, fileSystem.getAvailableSpace());
+        List<File> files = new ArrayList<>();
+        files.add(kept);
+        files.add(smaller);
+        files.add(rest);
+        assertAllFilesEqual(files, readAllFiles(fileSystem, files));
+    }
+
+    @Test
+    public void shouldRestoreFreeSpace_fromRemovedFiles() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        File removed = listOfFiles.remove(0);
+        fileSystem.removeFileFromFileSystem(removed.getName());
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        long availableSpace = restored.getAvailableSpace();
+        File reused = getFileWithNameAndContent("reused", new String(removed.getContent()));
+        restored.writeFileToFileSystem(reused);
+        assertEquals(availableSpace, restored.getAvailableSpace());
+        listOfFiles.add(reused);
+        assertAllFilesEqual(listOfFiles, readAllFiles(restored, listOfFiles));
+    }
+
+    @Test
+    public void shouldNotRunOutOfSpace_whenFilesAreRemovedAndWrittenAgain() throws IOException {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        for (int i = 0; i < 1000; i++) {
+            int number = integer(0, listOfFiles.size() - 1);
+            File original = listOfFiles.get(number);
+            fileSystem.removeFileFromFileSystem(original.getName());
+            File replacement = getFileWithNameAndContent(original.getName(), unicode(1, 40));
+            if (!fileSystem.isEnoughSpace(replacement.getTotalLength())) {
+                replacement = original;
+            }
+            fileSystem.writeFileToFileSystem(replacement);
+            listOfFiles.set(number, replacement);
+        }
+        assertAllFilesEqual(listOfFiles, readAllFiles(fileSystem, listOfFiles));
+    }
+
+    @Test
+    public void shouldLoadIndex_insteadOfScanningFileSystem() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        File removed = listOfFiles.remove(0);
+        fileSystem.removeFileFromFileSystem(removed.getName());
+        //index is trusted, so the name changed in the container is not noticed
+        try (RandomAccessFile container = new RandomAccessFile("fileSystem", "rw")) {
+            container.seek(HEADER_SIZE + removed.getTotalLength() + 1 + 4);
+            container.write('F');
+        }
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(fileSystem.getAvailableSpace(), restored.getAvailableSpace());
+        assertFalse(restored.fileExists(removed.getName()));
+        assertEquals(listOfFiles.size(), restored.listFiles().size());
+        assertTrue(restored.fileExists(listOfFiles.get(0).getName()));
+        File reused = getFileWithNameAndContent("reused", new String(removed.getContent()));
+        restored.writeFileToFileSystem(reused);
+        assertEquals(fileSystem.getAvailableSpace(), restored.getAvailableSpace());
+    }
+
+    @Test
+    public void shouldScanFileSystem_whenIndexIsCorrupted() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        fileSystem.removeFileFromFileSystem(listOfFiles.remove(0).getName());
+        try (RandomAccessFile index = new RandomAccessFile("fileSystem.index", "rw")) {
+            index.seek(index.length() - 1);
+            index.write(index.read() ^ 0xFF);
+        }
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(listOfFiles.size(), restored.listFiles().size());
+        assertAllFilesEqual(listOfFiles, readAllFiles(restored, listOfFiles));
+    }
+
+    @Test
+    public void shouldDropUncommittedChanges_whenJournalIsBehindFileSystem() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        fileSystem.removeFileFromFileSystem(listOfFiles.get(0).getName());
+        long availableSpace = fileSystem.getAvailableSpace();
+        byte[] staleJournal = Files.readAllBytes(Paths.get("fileSystem.index"));
+        File reused = getFileWithNameAndContent("reused", "r");
+        fileSystem.writeFileToFileSystem(reused);
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("added", unicode(1, 40)));
+        fileSystem.removeFileFromFileSystem(listOfFiles.get(1).getName());
+        Files.write(Paths.get("fileSystem.index"), staleJournal);
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(availableSpace, restored.getAvailableSpace());
+        assertFalse(restored.fileExists("reused"));
+        assertFalse(restored.fileExists("added"));
+        listOfFiles.remove(0);
+        assertAllFilesEqual(listOfFiles, readAllFiles(restored, listOfFiles));
+        //container matches the journal, so scan finds the same files
+        Files.delete(Paths.get("fileSystem.index"));
+        FileSystem scanned = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(availableSpace, scanned.getAvailableSpace());
+        assertEquals(listOfFiles.size(), scanned.listFiles().size());
+    }
+
+    @Test
+    public void shouldKeepChangesInMemoryUntilBackgroundFlush_whenDurabilityIsPeriodic() throws Exception {
+        cleanUp();
+        FileSystem fileSystem = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE,
+                new DurabilityOptions(DurabilityOptions.Mode.PERIODIC, 60_000, 100));
+        long journalSize = Files.size(Paths.get("fileSystem.index"));
+        File first = getFileWithNameAndContent("first", alphanumeric(1, 20));
+        fileSystem.writeFileToFileSystem(first);
+        //not flushed yet
+        assertEquals(journalSize, Files.size(Paths.get("fileSystem.index")));
+        //enough bytes start the flush before the interval is over
+        File second = getFileWithNameAndContent("second", unicode(100));
+        fileSystem.writeFileToFileSystem(second);
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (Files.size(Paths.get("fileSystem.index")) == journalSize && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        //container is opened again without closing, as after a crash
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertFilesEqual(first, restored.readFileFromFileSystem("first"));
+        assertFilesEqual(second, restored.readFileFromFileSystem("second"));
+        fileSystem.close();
+    }
+
+    @Test
+    public void shouldNotReuseSpaceOfRemovedFile_untilRemovalIsCommitted() throws Exception {
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("aaaa", "aaaa"));
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("tail", "tail"));
+        fileSystem.close();
+        FileSystem periodic = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE,
+                new DurabilityOptions(DurabilityOptions.Mode.PERIODIC, 60_000, 1_000_000));
+        periodic.removeFileFromFileSystem("aaaa");
+        periodic.writeFileToFileSystem(getFileWithNameAndContent("bbbb", "bbbb"));
+
+        //container is opened again without closing, as after a crash, so changes after the last flush are lost
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(Arrays.asList("aaaa", "tail"), restored.listFiles());
+        assertArrayEquals("aaaa".getBytes(), restored.readFileFromFileSystem("aaaa").getContent());
+        periodic.close();
+    }
+
+    @Test
+    public void shouldReuseSpaceOfRemovedFile_afterBackgroundFlush_whenDurabilityIsPeriodic() throws Exception {
+        cleanUp();
+        FileSystem periodic = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE,
+                new DurabilityOptions(DurabilityOptions.Mode.PERIODIC, 20, 1_000_000));
+        periodic.writeFileToFileSystem(getFileWithNameAndContent("aaaa", "aaaa"));
+        periodic.writeFileToFileSystem(getFileWithNameAndContent("tail", "tail"));
+        periodic.removeFileFromFileSystem("aaaa");
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!journalEndsWithRemoval("aaaa") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        //flusher takes the removal as committed right after the journal is forced
+        Thread.sleep(200);
+        long availableSpace = periodic.getAvailableSpace();
+
+        periodic.writeFileToFileSystem(getFileWithNameAndContent("bbbb", "bbbb"));
+        assertEquals(availableSpace, periodic.getAvailableSpace());
+        periodic.close();
+    }
+
+    @Test
+    public void shouldCommitRemoval_toReuseItsSpace_ifRecordDoesntFitOtherwise() throws Exception {
+        cleanUp();
+        File removed = getFileWithNameAndContent("aaaa", "aaaa");
+        File tail = getFileWithNameAndContent("tail", "tail");
+        FileSystem periodic = getNewFileSystem(HEADER_SIZE + removed.getTotalLength() + tail.getTotalLength(),
+                new DurabilityOptions(DurabilityOptions.Mode.PERIODIC, 60_000, 1_000_000));
+        periodic.writeFileToFileSystem(removed);
+        periodic.writeFileToFileSystem(tail);
+        periodic.removeFileFromFileSystem("aaaa");
+        periodic.writeFileToFileSystem(getFileWithNameAndContent("bbbb", "bbbb"));
+
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        //removal was committed before its space was reused, the new file wasn't
+        assertEquals(Collections.singletonList("tail"), restored.listFiles());
+        periodic.close();
+    }
+
+    @Test
+    public void shouldWriteJournalWithoutForcing_whenDurabilityIsNone() throws Exception {
+        cleanUp();
+        FileSystem fileSystem = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE, DurabilityOptions.NONE);
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertAllFilesEqual(listOfFiles, readAllFiles(restored, listOfFiles));
+    }
+
+    @Test
+    public void shouldGrowFileSystemByIncrements_upToMaxSize() throws Exception {
+        cleanUp();
+        FileSystem fileSystem = getNewFileSystem(1024, new GrowthOptions(1024, 4096));
+        File large = getFileWithNameAndContent("large", alphanumeric(1500));
+        fileSystem.writeFileToFileSystem(large);
+        assertEquals(2048, fileSystem.getFileSystemSize());
+        assertEquals(2048, Files.size(Paths.get("fileSystem")));
+        assertThrows(IllegalArgumentException.class,
+                () -> fileSystem.writeFileToFileSystem(getFileWithNameAndContent("too large", alphanumeric(3000))));
+        File last = getFileWithNameAndContent("last", alphanumeric(2000));
+        fileSystem.writeFileToFileSystem(last);
+        assertEquals(4096, fileSystem.getFileSystemSize());
+        FileSystem restored = getNewFileSystem(1024, new GrowthOptions(1024, 4096));
+        assertEquals(4096, restored.getFileSystemSize());
+        assertFilesEqual(large, restored.readFileFromFileSystem("large"));
+        assertFilesEqual(last, restored.readFileFromFileSystem("last"));
+    }
+
+    @Test
+    public void shouldTruncateTrailingFreeSpace_whenShrinking() throws Exception {
+        cleanUp();
+        FileSystem fileSystem = getNewFileSystem(1024, new GrowthOptions(1024, 0));
+        File kept = getFileWithNameAndContent("kept", alphanumeric(500));
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("removed", alphanumeric(3000)));
+        fileSystem.writeFileToFileSystem(kept);
+        assertEquals(4096, fileSystem.getFileSystemSize());
+        fileSystem.removeFileFromFileSystem("removed");
+        assertEquals(3072, fileSystem.shrinkFileSystem());
+        assertEquals(1024, fileSystem.getFileSystemSize());
+        assertEquals(1024, Files.size(Paths.get("fileSystem")));
+        assertFilesEqual(kept, fileSystem.readFileFromFileSystem("kept"));
+        FileSystem restored = getNewFileSystem(1024, new GrowthOptions(1024, 0));
+        assertEquals(1024, restored.getFileSystemSize());
+        assertFilesEqual(kept, restored.readFileFromFileSystem("kept"));
+        //file system grows again after shrinking
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("again", alphanumeric(1000)));
+        assertEquals(2048, fileSystem.getFileSystemSize());
+    }
+
+    @Test
+    public void shouldScanFileSystemInParallel_whenThereAreManyFiles() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        cleanUp();
+        FileSystem fileSystem = getNewFileSystem(1024 * 1024);
+        int files = 10_000;
+        for (int i = 0; i < files; i++) {
+            fileSystem.writeFileToFileSystem(getFileWithNameAndContent("file-" + i, "content-" + i));
+        }
+        for (int i = 0; i < files; i += 3) {
+            fileSystem.removeFileFromFileSystem("file-" + i);
+        }
+        Files.delete(Paths.get("fileSystem.index"));
+        FileSystem restored = getNewFileSystem(1024 * 1024);
+        assertEquals(fileSystem.getAvailableSpace(), restored.getAvailableSpace());
+        assertEquals(fileSystem.listFiles().size(), restored.listFiles().size());
+        int number = integer(0, files - 1);
+        assertEquals(number % 3 != 0, restored.fileExists("file-" + number));
+        assertEquals("content-1", new String(restored.readFileFromFileSystem("file-1").getContent()));
+        assertEquals("content-" + (files - 2), new String(restored.readFileFromFileSystem("file-" + (files - 2)).getContent()));
+    }
+
+    @Test
+    public void shouldDropTornRecord_whenScanningFileSystem() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        File first = getFileWithNameAndContent("first", unicode(1, 40));
+        File torn = getFileWithNameAndContent("torn", unicode(1, 40));
+        fileSystem.writeFileToFileSystem(first);
+        fileSystem.writeFileToFileSystem(torn);
+        //content length of the last record points past written data
+        try (RandomAccessFile container = new RandomAccessFile("fileSystem", "rw")) {
+            container.seek(HEADER_SIZE + first.getTotalLength() + 1 + 4 + torn.getName().length());
+            container.writeLong(DEFAULT_FILE_SYSTEM_SIZE);
+        }
+        Files.delete(Paths.get("fileSystem.index"));
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertFilesEqual(first, restored.readFileFromFileSystem(first.getName()));
+        assertFalse(restored.fileExists(torn.getName()));
+        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - HEADER_SIZE - first.getTotalLength(), restored.getAvailableSpace());
+    }
+
     @Test
     public void shouldFormatFileSystem() throws IOException {
         writeSomeFilesToFileSystem(fileSystem);
         fileSystem.formatFileSystem();
         long availableSpaceAfterFormat = fileSystem.getAvailableSpace();
-        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - 8, availableSpaceAfterFormat);
+        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - HEADER_SIZE, availableSpaceAfterFormat);
+    }
+
+    @Test
+    public void shouldGiveUpFormatting_ifChannelOpenedForWriteIsNotClosed() throws IOException {
+        List<File> listOfFiles = writeSomeFilesToFileSystem(fileSystem);
+        WriteOnlyFileChannel channel = fileSystem.openForWrite("pending", 10);
+        assertThrows(IllegalStateException.class, () -> fileSystem.formatFileSystem(50, TimeUnit.MILLISECONDS));
+        assertAllFilesEqual(listOfFiles, readAllFiles(fileSystem, listOfFiles));
+        channel.cancel();
+        fileSystem.formatFileSystem();
+        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - HEADER_SIZE, fileSystem.getAvailableSpace());
     }
 
     @Test
@@ -196,6 +890,253 @@ public class FileSystemTest {
         assertFilesEqual(expected, fileSystem.readFileFromFileSystem(original.getName()));
     }
 
+    @Test
+    public void shouldKeepOriginalFile_ifOverwritingFileDoesNotFit() throws IOException {
+        File original = getFileWithNameAndContent("original", alphanumeric(1000));
+        fileSystem.writeFileToFileSystem(original);
+        File tooLarge = getFileWithNameAndContent("original", alphanumeric(1500));
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.overwriteFile(tooLarge));
+        assertFilesEqual(original, fileSystem.readFileFromFileSystem("original"));
+    }
+
+    @Test
+    public void shouldOpenIndependentVolumes_byPath() throws IOException {
+        Path directory = Files.createTempDirectory("volumes");
+        try (FileSystemRegistry registry = new FileSystemRegistry()) {
+            FileSystem first = registry.open(directory.resolve("first"), DEFAULT_FILE_SYSTEM_SIZE,
+                    DurabilityOptions.SYNC, GrowthOptions.FIXED);
+            FileSystem second = registry.open(directory.resolve("second"), DEFAULT_FILE_SYSTEM_SIZE,
+                    DurabilityOptions.SYNC, GrowthOptions.FIXED);
+            assertSame(first, registry.open(directory.resolve("other/../first"), DEFAULT_FILE_SYSTEM_SIZE,
+                    DurabilityOptions.SYNC, GrowthOptions.FIXED));
+            File inFirst = getFileWithNameAndContent("file", "first");
+            File inSecond = getFileWithNameAndContent("file", "second volume");
+            first.writeFileToFileSystem(inFirst);
+            registry.getDriver(directory.resolve("second")).createFile("file", inSecond.getContent());
+            assertFilesEqual(inFirst, first.readFileFromFileSystem("file"));
+            assertFilesEqual(inSecond, second.readFileFromFileSystem("file"));
+            assertEquals(2, registry.getPaths().size());
+            registry.close(directory.resolve("second"));
+            assertThrows(IllegalArgumentException.class, () -> registry.get(directory.resolve("second")));
+            FileSystem reopened = registry.open(directory.resolve("second"), DEFAULT_FILE_SYSTEM_SIZE,
+                    DurabilityOptions.SYNC, GrowthOptions.FIXED);
+            assertFilesEqual(inSecond, reopened.readFileFromFileSystem("file"));
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void shouldWriteBatchContiguously_andReportFailedFiles() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        File existing = getFileWithNameAndContent("existing", "content");
+        fileSystem.writeFileToFileSystem(existing);
+        List<File> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            batch.add(getFileWithNameAndContent("file" + i, unicode(1, 40)));
+        }
+        batch.add(getFileWithNameAndContent("existing", "other"));
+        batch.add(getFileWithNameAndContent("file0", "twice"));
+        long availableSpace = fileSystem.getAvailableSpace();
+        Map<String, Exception> failures = fileSystem.writeFiles(batch, false);
+        assertEquals(2, failures.size());
+        assertTrue(failures.get("existing") instanceof IllegalArgumentException);
+        assertTrue(failures.get("file0") instanceof IllegalArgumentException);
+        assertFilesEqual(existing, fileSystem.readFileFromFileSystem("existing"));
+        List<File> written = batch.subList(0, 5);
+        assertAllFilesEqual(written, readAllFiles(fileSystem, written));
+        long writtenLength = written.stream().mapToLong(File::getTotalLength).sum();
+        assertEquals(availableSpace - writtenLength, fileSystem.getAvailableSpace());
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertAllFilesEqual(written, readAllFiles(restored, written));
+    }
+
+    @Test
+    public void shouldWriteNothing_ifAtomicBatchHasFailedFile() throws IOException {
+        List<File> batch = new ArrayList<>();
+        batch.add(getFileWithNameAndContent("first", "content"));
+        batch.add(getFileWithNameAndContent("too large", alphanumeric(DEFAULT_FILE_SYSTEM_SIZE)));
+        long availableSpace = fileSystem.getAvailableSpace();
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.writeFiles(batch, true));
+        assertFalse(fileSystem.fileExists("first"));
+        assertEquals(availableSpace, fileSystem.getAvailableSpace());
+        //without atomic mode the file which fits is written
+        Map<String, Exception> failures = fileSystem.writeFiles(batch, false);
+        assertEquals(Collections.singleton("too large"), failures.keySet());
+        assertTrue(fileSystem.fileExists("first"));
+    }
+
+    @Test
+    public void shouldReadSeveralFiles_inRequestedOrder() throws IOException {
+        List<File> files = writeSomeFilesToFileSystem(fileSystem);
+        List<String> filenames = new ArrayList<>();
+        for (int i = files.size() - 1; i >= 0; i--) {
+            filenames.add(files.get(i).getName());
+        }
+        filenames.add(1, "missing");
+        Map<String, File> read = fileSystem.readFiles(filenames);
+        filenames.remove("missing");
+        assertEquals(filenames, new ArrayList<>(read.keySet()));
+        for (File file : files) {
+            assertFilesEqual(file, read.get(file.getName()));
+        }
+    }
+
+    @Test
+    public void shouldStreamFileOfKnownLength_acrossSegmentBoundaries() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        FileSystem fileSystem = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE, 64);
+        byte[] content = alphanumeric(300).getBytes();
+        WriteOnlyFileChannel channel = fileSystem.openForWrite("file", content.length);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(70);
+        for (int position = 0; position < content.length; position += chunk.capacity()) {
+            chunk.clear();
+            chunk.put(content, position, Math.min(chunk.capacity(), content.length - position)).flip();
+            assertEquals(chunk.remaining(), channel.write(chunk));
+        }
+        assertFalse(fileSystem.fileExists("file"));
+        channel.close();
+        assertArrayEquals(content, fileSystem.readFileFromFileSystem("file").getContent());
+    }
+
+    @Test
+    public void shouldReleaseSpace_ifStreamedContentIsShorterThanDeclared() throws IOException {
+        long availableSpace = fileSystem.getAvailableSpace();
+        WriteOnlyFileChannel channel = fileSystem.openForWrite("file", 100);
+        channel.write(ByteBuffer.wrap(new byte[50]));
+        assertThrows(IOException.class, () -> channel.write(ByteBuffer.wrap(new byte[51])));
+        assertThrows(IOException.class, channel::close);
+        assertFalse(fileSystem.fileExists("file"));
+        assertEquals(availableSpace, fileSystem.getAvailableSpace());
+    }
+
+    @Test
+    public void shouldStreamFileOfUnknownLength_throughOutputStream() throws IOException {
+        byte[] content = alphanumeric(500).getBytes();
+        try (OutputStream outputStream = fileSystem.openForWrite("file").newOutputStream()) {
+            outputStream.write(content[0]);
+            outputStream.write(content, 1, content.length - 1);
+        }
+        assertArrayEquals(content, fileSystem.readFileFromFileSystem("file").getContent());
+    }
+
+    @Test
+    public void shouldNotCreateFile_ifStreamingIsCancelled() throws IOException {
+        WriteOnlyFileChannel known = fileSystem.openForWrite("known", 10);
+        WriteOnlyFileChannel unknown = fileSystem.openForWrite("unknown");
+        known.write(ByteBuffer.wrap(new byte[10]));
+        unknown.write(ByteBuffer.wrap(new byte[10]));
+        known.cancel();
+        unknown.cancel();
+        assertTrue(fileSystem.listFiles().isEmpty());
+        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - HEADER_SIZE, fileSystem.getAvailableSpace());
+        assertThrows(ClosedChannelException.class, () -> unknown.write(ByteBuffer.wrap(new byte[10])));
+    }
+
+    @Test
+    public void shouldThrowIllegalArgumentException_ifStreamedContentDoesNotFit() throws IOException {
+        WriteOnlyFileChannel channel = fileSystem.openForWrite("file");
+        assertThrows(IllegalArgumentException.class, () -> channel.write(ByteBuffer.wrap(new byte[DEFAULT_FILE_SYSTEM_SIZE])));
+        channel.cancel();
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.openForWrite("file", DEFAULT_FILE_SYSTEM_SIZE));
+    }
+
+    @Test
+    public void shouldThrowIllegalArgumentException_whenClosed_ifSmallStreamedWritesDoNotFit() throws IOException {
+        WriteOnlyFileChannel channel = fileSystem.openForWrite("file");
+        for (int i = 0; i < DEFAULT_FILE_SYSTEM_SIZE; i++) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) i}));
+        }
+        assertThrows(IllegalArgumentException.class, channel::close);
+        assertFalse(fileSystem.fileExists("file"));
+        assertEquals(DEFAULT_FILE_SYSTEM_SIZE - HEADER_SIZE, fileSystem.getAvailableSpace());
+    }
+
+    @Test
+    public void shouldReadRangeOfFileContent() throws IOException {
+        File file = new File(alphanumeric(10), "0123456789".getBytes());
+        fileSystem.writeFileToFileSystem(file);
+        byte[] bytes = new byte[4];
+        assertEquals(4, fileSystem.readRange(file.getName(), 3, bytes, 0, bytes.length));
+        assertEquals("3456", new String(bytes));
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        assertEquals(2, fileSystem.readRange(file.getName(), 8, buffer));
+        assertEquals("89", new String(buffer.array(), 0, buffer.position()));
+        assertEquals(-1, fileSystem.readRange(file.getName(), 10, buffer));
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.readRange(file.getName(), -1, buffer));
+        assertThrows(FileNotFoundException.class, () -> fileSystem.readRange("missing", 0, buffer));
+    }
+
+    @Test
+    public void shouldServeRepeatedReadsFromCache_untilFileIsReplacedOrRemoved() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        FileSystem fileSystem = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE, new CacheOptions(1024, 64));
+        File original = getFileWithNameAndContent("file", alphanumeric(20));
+        fileSystem.writeFileToFileSystem(original);
+        fileSystem.readFileFromFileSystem("file").getContent()[0] = 0;
+        assertFilesEqual(original, fileSystem.readFileFromFileSystem("file"));
+        assertEquals(1, fileSystem.getCache().getMissCount());
+        assertEquals(1, fileSystem.getCache().getHitCount());
+
+        File replacement = getFileWithNameAndContent("file", alphanumeric(30));
+        fileSystem.overwriteFile(replacement);
+        assertFilesEqual(replacement, fileSystem.readFileFromFileSystem("file"));
+        fileSystem.removeFileFromFileSystem("file");
+        assertThrows(FileNotFoundException.class, () -> fileSystem.readFileFromFileSystem("file"));
+        assertEquals(0, fileSystem.getCache().getSize());
+    }
+
+    @Test
+    public void shouldKeepHotFilesInCache_whileOtherFilesAreScanned() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        FileSystem fileSystem = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE, new CacheOptions(100, 20));
+        fileSystem.writeFileToFileSystem(getFileWithNameAndContent("hot", alphanumeric(20)));
+        fileSystem.readFileFromFileSystem("hot");
+        fileSystem.readFileFromFileSystem("hot");
+        for (int i = 0; i < 10; i++) {
+            fileSystem.writeFileToFileSystem(getFileWithNameAndContent("scanned" + i, alphanumeric(20)));
+            fileSystem.readFileFromFileSystem("scanned" + i);
+        }
+        long hits = fileSystem.getCache().getHitCount();
+        fileSystem.readFileFromFileSystem("hot");
+        assertEquals(hits + 1, fileSystem.getCache().getHitCount());
+        assertTrue(fileSystem.getCache().getEvictionCount() > 0);
+        assertTrue(fileSystem.getCache().getBytes() <= 100);
+        fileSystem.formatFileSystem();
+        assertEquals(0, fileSystem.getCache().getSize());
+    }
+
+    @Test
+    public void shouldFindRemainingFiles_afterManyFilesAreRemoved() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        cleanUp();
+        FileSystem fileSystem = getNewFileSystem(256 * 1024, DurabilityOptions.NONE);
+        int files = 5000;
+        for (int i = 0; i < files; i++) {
+            fileSystem.writeFileToFileSystem(new File("file-" + i, new byte[]{(byte) i}));
+        }
+        for (int i = 0; i < files; i++) {
+            if (i % 3 != 0) {
+                fileSystem.removeFileFromFileSystem("file-" + i);
+            }
+        }
+        fileSystem.close();
+
+        FileSystem reopened = getNewFileSystem(256 * 1024);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            assertEquals(i % 3 == 0, reopened.fileExists("file-" + i));
+            if (i % 3 == 0) {
+                expected.add("file-" + i);
+                assertEquals((byte) i, reopened.readFileFromFileSystem("file-" + i).getContent()[0]);
+            }
+        }
+        List<String> actual = reopened.listFiles();
+        actual.sort(new ComparatorOfFilenames());
+        assertEquals(expected, actual);
+        reopened.close();
+    }
+
     @Test
     public void shouldListAllFiles() throws IOException {
         List<File> files = writeSomeFilesToFileSystem(fileSystem);
@@ -206,6 +1147,193 @@ public class FileSystemTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void shouldListFilesByPrefix_inSortedPages() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        cleanUp();
+        FileSystem fileSystem = getNewFileSystem(512 * 1024, DurabilityOptions.NONE);
+        List<String> expected = new ArrayList<>();
+        //names are written in random order and span many chunks of the sorted index
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            numbers.add(i);
+        }
+        Collections.shuffle(numbers);
+        fileSystem.listFiles();
+        for (int i : numbers) {
+            fileSystem.writeFileToFileSystem(new File(String.format("logs/%05d", i), new byte[1]));
+            fileSystem.writeFileToFileSystem(new File(String.format("data/%05d", i), new byte[1]));
+        }
+        for (int i = 0; i < 3000; i++) {
+            if (i % 2 == 0) {
+                fileSystem.removeFileFromFileSystem(String.format("logs/%05d", i));
+            } else {
+                expected.add(String.format("logs/%05d", i));
+            }
+        }
+
+        assertEquals(expected, fileSystem.listFiles("logs/"));
+        List<String> paged = new ArrayList<>();
+        List<String> page = fileSystem.listFiles("logs/", null, 100);
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= 100);
+            paged.addAll(page);
+            page = fileSystem.listFiles("logs/", page.get(page.size() - 1), 100);
+        }
+        assertEquals(expected, paged);
+        assertEquals(expected.subList(0, 5), fileSystem.streamFiles("logs/").limit(5).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("logs/00991", "logs/00993", "logs/00995", "logs/00997", "logs/00999"),
+                fileSystem.listFilesMatching("logs/0099?"));
+        assertEquals(Arrays.asList("data/00010", "data/00011", "logs/00011"), fileSystem.listFilesMatching("*/0001[01]"));
+        assertEquals(Arrays.asList("data/00011", "logs/00011"), fileSystem.listFilesMatching("*/0001[01]", "data/00010", 10));
+        assertTrue(fileSystem.listFiles("none").isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.listFiles("", null, 0));
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.listFilesMatching("logs/[0"));
+        fileSystem.close();
+    }
+
+    @Test
+    public void shouldListDirectories_andRestoreThemOnStart() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        fileSystem.mkdir("empty");
+        fileSystem.writeFileToFileSystem(new File("docs/readme", new byte[]{1}));
+        fileSystem.writeFileToFileSystem(new File("docs/img/logo", new byte[]{2}));
+        fileSystem.writeFileToFileSystem(new File("top", new byte[]{3}));
+
+        assertEquals(Arrays.asList("docs/", "empty/", "top"), fileSystem.listDirectory(""));
+        assertEquals(Arrays.asList("docs/img/", "docs/readme"), fileSystem.listDirectory("docs"));
+        assertEquals(Collections.singletonList("docs/readme"), fileSystem.listDirectory("docs/", "docs/img/", 10));
+        assertTrue(fileSystem.listDirectory("empty/").isEmpty());
+        assertEquals(Arrays.asList("docs/img/logo", "docs/readme", "top"), fileSystem.listFiles());
+        assertFalse(fileSystem.fileExists("empty/"));
+        assertThrows(FileNotFoundException.class, () -> fileSystem.listDirectory("missing"));
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.mkdir("empty"));
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.writeFileToFileSystem(new File("dir/", new byte[0])));
+
+        fileSystem.removeFileFromFileSystem("docs/img/logo");
+        assertEquals(Collections.singletonList("docs/readme"), fileSystem.listDirectory("docs"));
+        fileSystem.close();
+
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(Arrays.asList("docs/", "empty/", "top"), restored.listDirectory("/"));
+        assertEquals(Collections.singletonList("docs/readme"), restored.listDirectory("docs"));
+        restored.close();
+    }
+
+    @Test
+    public void shouldNotReadDirectories_asFiles() throws IOException {
+        fileSystem.mkdir("a");
+        fileSystem.writeFileToFileSystem(new File("b/file", new byte[]{1}));
+
+        for (String directory : Arrays.asList("a/", "b/")) {
+            assertThrows(FileNotFoundException.class, () -> fileSystem.readFileFromFileSystem(directory));
+            assertThrows(FileNotFoundException.class, () -> fileSystem.readRange(directory, 0, new byte[1], 0, 1));
+            assertThrows(FileNotFoundException.class, () -> fileSystem.getReadOnlyFileChannel(directory));
+            assertThrows(FileNotFoundException.class, () -> fileSystem.removeFileFromFileSystem(directory));
+        }
+        assertEquals(Collections.singleton("b/file"), fileSystem.readFiles(Arrays.asList("a/", "b/file")).keySet());
+    }
+
+    @Test
+    public void shouldRemoveDirectoryRecursively() throws IOException {
+        fileSystem.mkdir("a/b");
+        fileSystem.writeFileToFileSystem(new File("a/one", new byte[]{1}));
+        fileSystem.writeFileToFileSystem(new File("a/b/two", new byte[]{2}));
+        fileSystem.writeFileToFileSystem(new File("a/b/c/three", new byte[]{3}));
+        fileSystem.writeFileToFileSystem(new File("ab", new byte[]{4}));
+
+        fileSystem.removeDirectory("a/b");
+        assertEquals(Collections.singletonList("a/one"), fileSystem.listDirectory("a"));
+        assertFalse(fileSystem.fileExists("a/b/c/three"));
+        assertThrows(FileNotFoundException.class, () -> fileSystem.listDirectory("a/b"));
+
+        fileSystem.removeDirectory("a");
+        assertEquals(Collections.singletonList("ab"), fileSystem.listDirectory(""));
+        assertEquals(Collections.singletonList("ab"), fileSystem.listFiles());
+        assertArrayEquals(new byte[]{4}, fileSystem.readFileFromFileSystem("ab").getContent());
+        assertThrows(FileNotFoundException.class, () -> fileSystem.removeDirectory("a"));
+    }
+
+    @Test
+    public void shouldMoveFilesAndDirectories() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        fileSystem.mkdir("src/empty");
+        fileSystem.writeFileToFileSystem(new File("src/one", new byte[]{1}));
+        fileSystem.writeFileToFileSystem(new File("src/sub/two", new byte[]{2, 2}));
+
+        fileSystem.move("src/one", "src/first");
+        assertArrayEquals(new byte[]{1}, fileSystem.readFileFromFileSystem("src/first").getContent());
+        assertFalse(fileSystem.fileExists("src/one"));
+
+        fileSystem.move("src", "dst/moved");
+        assertThrows(FileNotFoundException.class, () -> fileSystem.listDirectory("src"));
+        assertEquals(Collections.singletonList("dst/moved/"), fileSystem.listDirectory("dst"));
+        assertEquals(Arrays.asList("dst/moved/empty/", "dst/moved/first", "dst/moved/sub/"), fileSystem.listDirectory("dst/moved"));
+        assertArrayEquals(new byte[]{2, 2}, fileSystem.readFileFromFileSystem("dst/moved/sub/two").getContent());
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.move("dst", "dst/moved/inner"));
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.move("dst/moved/first", "dst/moved/sub/two"));
+        assertThrows(FileNotFoundException.class, () -> fileSystem.move("missing", "other"));
+        fileSystem.close();
+
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(Arrays.asList("dst/moved/empty/", "dst/moved/first", "dst/moved/sub/"), restored.listDirectory("dst/moved"));
+        assertArrayEquals(new byte[]{1}, restored.readFileFromFileSystem("dst/moved/first").getContent());
+        restored.close();
+    }
+
+    @Test
+    public void shouldRenameInPlace_whenNamesTakeSameBytes() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        fileSystem.writeFileToFileSystem(new File("old/one", new byte[]{1}));
+        fileSystem.writeFileToFileSystem(new File("old/two", new byte[]{2}));
+        fileSystem.writeFileToFileSystem(new File("file", new byte[]{3}));
+        long availableSpace = fileSystem.getAvailableSpace();
+
+        fileSystem.move("old", "new");
+        fileSystem.move("file", "next");
+        assertEquals(availableSpace, fileSystem.getAvailableSpace());
+        assertEquals(Arrays.asList("new/one", "new/two", "next"), fileSystem.listFiles());
+        assertThrows(FileNotFoundException.class, () -> fileSystem.listDirectory("old"));
+        fileSystem.close();
+
+        //names are rewritten in the container too, so the scan finds them without the journal
+        Files.delete(Paths.get("fileSystem.index"));
+        FileSystem scanned = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(Arrays.asList("new/one", "new/two", "next"), scanned.listFiles());
+        assertArrayEquals(new byte[]{2}, scanned.readFileFromFileSystem("new/two").getContent());
+        scanned.close();
+    }
+
+    @Test
+    public void shouldWriteBackCommittedName_ifRenameWasNotCommitted() throws IOException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+        File removed = getFileWithNameAndContent("removed", alphanumeric(20));
+        fileSystem.writeFileToFileSystem(removed);
+        fileSystem.writeFileToFileSystem(new File("name", new byte[]{1}));
+        fileSystem.removeFileFromFileSystem(removed.getName());
+        fileSystem.close();
+        //simulate crash after the name was rewritten in place, but before the journal was committed
+        try (RandomAccessFile container = new RandomAccessFile("fileSystem", "rw")) {
+            container.seek(HEADER_SIZE + removed.getTotalLength() + 1 + 4);
+            container.write("nome".getBytes());
+        }
+
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        //compaction takes names of moved records from the container
+        restored.defragmentFileSystem();
+        assertEquals(Collections.singletonList("name"), restored.listFiles());
+        assertArrayEquals(new byte[]{1}, restored.readFileFromFileSystem("name").getContent());
+        restored.close();
+    }
+
+    private HttpServer startServer(HttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/file", handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    private HttpURLConnection openConnection(HttpServer server) throws IOException {
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/file");
+        return (HttpURLConnection) url.openConnection();
+    }
+
     class ComparatorOfFilenames implements Comparator<String> {
         public int compare(String filename1, String filename2) {
             Integer first = Integer.valueOf(filename1.split("-")[1]);
@@ -225,6 +1353,16 @@ public class FileSystemTest {
         return listOfFiles;
     }
 
+    /**
+     * @return  true if the last entry of the journal is the removal of the file
+     */
+    private boolean journalEndsWithRemoval(String filename) throws IOException {
+        byte[] journal = Files.readAllBytes(Paths.get("fileSystem.index"));
+        //type, current position, offset, length, name length, name and checksum
+        int entryLength = 1 + 3 * 8 + 4 + filename.getBytes().length + 4;
+        return journal.length >= entryLength && journal[journal.length - entryLength] == 2;
+    }
+
     private File getFileWithNameAndContent(String name, String content) {
         return new File(name, content.getBytes());
     }
@@ -249,9 +1387,34 @@ public class FileSystemTest {
         }
     }
 
-    private FileSystem getNewFileSystem(int size) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
-        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(int.class);
+    private FileSystem getNewFileSystem(long size) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(long.class);
         constructor.setAccessible(true);
         return constructor.newInstance(size);
     }
+
+    private FileSystem getNewFileSystem(long size, int segmentSize) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(long.class, int.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(size, segmentSize);
+    }
+
+    private FileSystem getNewFileSystem(long size, DurabilityOptions durability) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(long.class, DurabilityOptions.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(size, durability);
+    }
+
+    private FileSystem getNewFileSystem(long size, GrowthOptions growth) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(long.class, DurabilityOptions.class, GrowthOptions.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(size, DurabilityOptions.SYNC, growth);
+    }
+
+    private FileSystem getNewFileSystem(long size, CacheOptions cache) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(Path.class, long.class,
+                DurabilityOptions.class, GrowthOptions.class, CacheOptions.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(Paths.get("fileSystem"), size, DurabilityOptions.SYNC, GrowthOptions.FIXED, cache);
+    }
 }
@@ -17,6 +17,7 @@ import static io.qala.datagen.RandomShortApi.alphanumeric;
 import static io.qala.datagen.RandomShortApi.unicode;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class FileSystemThreadSafetyTest {
     private final static int DEFAULT_FILE_SYSTEM_SIZE = 10*1024*1024; //10MB
@@ -31,6 +32,8 @@ public class FileSystemThreadSafetyTest {
     public void cleanUp() {
         java.io.File fileSystem = new java.io.File("fileSystem");
         fileSystem.delete();
+        new java.io.File("fileSystem.index").delete();
+        new java.io.File("fileSystem.compaction").delete();
     }
 
     @Test
@@ -49,6 +52,102 @@ public class FileSystemThreadSafetyTest {
         assertAllFilesEqual(expectedFiles, actualFiles);
     }
 
+    @Test
+    public void shouldCommitFilesWrittenInParallel() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Future<?>> writes = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++) {
+            String prefix = "thread" + thread + "-";
+            writes.add(pool.submit(() -> {
+                latch.await();
+                for (int i = 0; i < 50; i++) {
+                    fileSystem.writeFileToFileSystem(getFileWithNameAndContent(prefix + i, "content" + i));
+                }
+                return null;
+            }));
+        }
+        latch.countDown();
+        for (Future<?> write : writes) {
+            write.get();
+        }
+        pool.shutdown();
+        //container is opened again without closing, as after a crash
+        FileSystem restored = getNewFileSystem(DEFAULT_FILE_SYSTEM_SIZE);
+        assertEquals(8 * 50, restored.listFiles().size());
+        assertEquals("content49", new String(restored.readFileFromFileSystem("thread7-49").getContent()));
+    }
+
+    @Test
+    public void shouldQueryMetadataWhileFilesAreWritten() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        CountDownLatch latch = new CountDownLatch(1);
+        Future<?> writer = pool.submit(() -> {
+            latch.await();
+            for (int i = 0; i < 500; i++) {
+                fileSystem.writeFileToFileSystem(getFileWithNameAndContent("file" + i, "content"));
+            }
+            return null;
+        });
+        List<Future<?>> readers = new ArrayList<>();
+        for (int thread = 0; thread < 3; thread++) {
+            readers.add(pool.submit(() -> {
+                latch.await();
+                while (!writer.isDone()) {
+                    int listed = fileSystem.listFiles().size();
+                    //files are only added, so a later query never sees fewer of them
+                    assertTrue(fileSystem.listFiles().size() >= listed);
+                    assertTrue(fileSystem.getAvailableSpace() <= DEFAULT_FILE_SYSTEM_SIZE);
+                    fileSystem.fileExists("file" + listed);
+                }
+                return null;
+            }));
+        }
+        latch.countDown();
+        writer.get();
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        pool.shutdown();
+        assertEquals(500, fileSystem.listFiles().size());
+        assertTrue(fileSystem.fileExists("file499"));
+    }
+
+    @Test
+    public void shouldMoveDirectories_whileTheyAreCompacted() throws Exception {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            files.add(getFileWithNameAndContent("a/file" + i, alphanumeric(64 * 1024)));
+            fileSystem.writeFileToFileSystem(files.get(i));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        CountDownLatch latch = new CountDownLatch(1);
+        //names of different lengths, so records are copied, and their sources leave gaps to compact
+        Future<?> mover = pool.submit(() -> {
+            latch.await();
+            for (int i = 0; i < 200; i++) {
+                fileSystem.move("a", "bb");
+                fileSystem.move("bb", "a");
+            }
+            return null;
+        });
+        Future<?> compactor = pool.submit(() -> {
+            latch.await();
+            while (!mover.isDone()) {
+                fileSystem.defragmentFileSystem();
+            }
+            return null;
+        });
+        latch.countDown();
+        mover.get();
+        compactor.get();
+        pool.shutdown();
+        assertEquals(20, fileSystem.listFiles("a/").size());
+        for (File file : files) {
+            assertFilesEqual(file, fileSystem.readFileFromFileSystem(file.getName()));
+        }
+    }
+
     private List<File> readAndWriteFilesInParallel(List<File> expectedFiles, boolean readOnly) throws ExecutionException, InterruptedException {
         List<Future<File>> actualFutureFiles = new ArrayList<>();
         ExecutorService pool = Executors.newFixedThreadPool(10);
@@ -152,8 +251,8 @@ public class FileSystemThreadSafetyTest {
         return listOfFiles;
     }
 
-    private FileSystem getNewFileSystem(int size) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
-        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(int.class);
+    private FileSystem getNewFileSystem(long size) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(long.class);
         constructor.setAccessible(true);
         return constructor.newInstance(size);
     }
@@ -3,8 +3,12 @@ package home.work;
 import home.work.system.ReadOnlyFileChannel;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -15,8 +19,8 @@ public class ReadOnlyFileChannelTest {
         File file = new File(path);
         byte[] actual;
         try (ReadOnlyFileChannel channel = new ReadOnlyFileChannel(file.toPath(), 0, (int) file.length())) {
-            actual = new byte[channel.size()];
-            channel.read(actual, 0, channel.size());
+            actual = new byte[(int) channel.size()];
+            channel.read(actual, 0, actual.length);
         }
         assertEquals("file content 123", new String(actual));
     }
@@ -27,7 +31,7 @@ public class ReadOnlyFileChannelTest {
         File file = new File(path);
         byte[] actual;
         try (ReadOnlyFileChannel channel = new ReadOnlyFileChannel(file.toPath(), 0, (int) file.length())) {
-            actual = new byte[channel.size()];
+            actual = new byte[(int) channel.size()];
             int counter = 0;
             int byteRead;
             while ((byteRead = channel.read()) != -1) {
@@ -37,4 +41,71 @@ public class ReadOnlyFileChannelTest {
         }
         assertEquals("file content 123", new String(actual));
     }
+
+    @Test
+    public void shouldReturnEndOfContent_whenContentStartsFromOffset() throws IOException {
+        String path = getClass().getClassLoader().getResource("data/some_file.txt").getPath();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (ReadOnlyFileChannel channel = new ReadOnlyFileChannel(new File(path).toPath(), 5, 7)) {
+            byte[] bytes = new byte[3];
+            int bytesRead;
+            while ((bytesRead = channel.read(bytes, 0, bytes.length)) != -1) {
+                actual.write(bytes, 0, bytesRead);
+            }
+        }
+        assertEquals("content", actual.toString());
+    }
+
+    @Test
+    public void shouldReadToByteBufferFromPosition() throws IOException {
+        String path = getClass().getClassLoader().getResource("data/some_file.txt").getPath();
+        ByteBuffer actual = ByteBuffer.allocate(16);
+        try (ReadOnlyFileChannel channel = new ReadOnlyFileChannel(new File(path).toPath(), 0, new File(path).length())) {
+            channel.position(5);
+            assertEquals(11, channel.read(actual));
+            assertEquals(-1, channel.read(actual));
+        }
+        assertEquals("content 123", new String(actual.array(), 0, actual.position()));
+    }
+
+    @Test
+    public void shouldReadFromGivenPosition_withoutMovingChannelPosition() throws IOException {
+        String path = getClass().getClassLoader().getResource("data/some_file.txt").getPath();
+        ByteBuffer actual = ByteBuffer.allocate(7);
+        byte[] bytes = new byte[3];
+        try (ReadOnlyFileChannel channel = new ReadOnlyFileChannel(new File(path).toPath(), 0, new File(path).length())) {
+            assertEquals(7, channel.read(actual, 5));
+            assertEquals(3, channel.read(13, bytes, 0, bytes.length));
+            assertEquals(-1, channel.read(actual, 16));
+            assertEquals(0, channel.position());
+        }
+        assertEquals("content", new String(actual.array()));
+        assertEquals("123", new String(bytes));
+    }
+
+    @Test
+    public void shouldTransferContentToWritableChannel() throws IOException {
+        String path = getClass().getClassLoader().getResource("data/some_file.txt").getPath();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (ReadOnlyFileChannel channel = new ReadOnlyFileChannel(new File(path).toPath(), 5, 7)) {
+            assertEquals(7, channel.transferTo(Channels.newChannel(actual)));
+            assertEquals(0, channel.transferTo(Channels.newChannel(actual)));
+        }
+        assertEquals("content", actual.toString());
+    }
+
+    @Test
+    public void shouldReadContentAsInputStream() throws IOException {
+        String path = getClass().getClassLoader().getResource("data/some_file.txt").getPath();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (InputStream inputStream = new ReadOnlyFileChannel(new File(path).toPath(), 0, new File(path).length()).newInputStream()) {
+            assertEquals(5, inputStream.skip(5));
+            byte[] bytes = new byte[4];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(bytes)) != -1) {
+                actual.write(bytes, 0, bytesRead);
+            }
+        }
+        assertEquals("content 123", actual.toString());
+    }
 }
@@ -0,0 +1,54 @@
+package home.work.benchmark;
+
+import home.work.system.DurabilityOptions;
+import home.work.system.File;
+import home.work.system.FileSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares writing small files one by one with writing them in batches, where
+ * space is allocated, content is copied and the journal is committed once per batch.
+ * Both are measured with {@link DurabilityOptions#SYNC}, where every commit is forced.
+ * <p>Usage: BatchWriteBenchmark [number of files] [content size in bytes] [batch size]</p>
+ */
+public class BatchWriteBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int contentSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        byte[] content = new byte[contentSize];
+        long size = files * (contentSize + 64L);
+
+        Benchmarks.deleteFileSystem();
+        try (FileSystem fileSystem = Benchmarks.newFileSystem(size, DurabilityOptions.SYNC)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < files; i++) {
+                fileSystem.writeFileToFileSystem(new File("file-" + i, content));
+            }
+            report("one by one", files, System.nanoTime() - start);
+        } finally {
+            Benchmarks.deleteFileSystem();
+        }
+
+        try (FileSystem fileSystem = Benchmarks.newFileSystem(size, DurabilityOptions.SYNC)) {
+            long start = System.nanoTime();
+            for (int first = 0; first < files; first += batchSize) {
+                List<File> batch = new ArrayList<>(batchSize);
+                for (int i = first; i < Math.min(files, first + batchSize); i++) {
+                    batch.add(new File("file-" + i, content));
+                }
+                fileSystem.writeFiles(batch, false);
+            }
+            report("batches of " + batchSize, files, System.nanoTime() - start);
+        } finally {
+            Benchmarks.deleteFileSystem();
+        }
+    }
+
+    private static void report(String name, int files, long nanos) {
+        System.out.printf("%-40s %10.0f files/s (%d ms)%n", name, files / (nanos / 1e9), nanos / 1_000_000);
+    }
+}
@@ -0,0 +1,50 @@
+package home.work.benchmark;
+
+import home.work.system.CacheOptions;
+import home.work.system.DurabilityOptions;
+import home.work.system.FileSystem;
+import home.work.system.GrowthOptions;
+
+import java.lang.reflect.Constructor;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Helpers shared by benchmarks. Benchmarks are plain main classes, they are
+ * not run by the test phase. Each benchmark creates "fileSystem" file in the
+ * working directory and removes it at the end.
+ */
+class Benchmarks {
+    private Benchmarks() {
+    }
+
+    static FileSystem newFileSystem(long size) throws Exception {
+        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(long.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(size);
+    }
+
+    static FileSystem newFileSystem(long size, DurabilityOptions durability) throws Exception {
+        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(long.class, DurabilityOptions.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(size, durability);
+    }
+
+    static FileSystem newFileSystem(long size, DurabilityOptions durability, CacheOptions cache) throws Exception {
+        Constructor<FileSystem> constructor = FileSystem.class.getDeclaredConstructor(Path.class, long.class,
+                DurabilityOptions.class, GrowthOptions.class, CacheOptions.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(Paths.get("fileSystem"), size, durability, GrowthOptions.FIXED, cache);
+    }
+
+    static void deleteFileSystem() {
+        new java.io.File("fileSystem").delete();
+        new java.io.File("fileSystem.index").delete();
+        new java.io.File("fileSystem.compaction").delete();
+    }
+
+    static void reportThroughput(String name, long bytes, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-40s %10.1f MB/s (%d ms)%n", name, bytes / 1024.0 / 1024.0 / seconds, nanos / 1_000_000);
+    }
+}
@@ -0,0 +1,70 @@
+package home.work.benchmark;
+
+import home.work.system.CacheOptions;
+import home.work.system.DurabilityOptions;
+import home.work.system.File;
+import home.work.system.FileSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares skewed reads of small files without and with the content cache. Most reads
+ * go to a small hot set of files, the rest is spread over all files, so the cache
+ * also has to survive reads of files which are read only once.
+ * <p>Usage: CacheBenchmark [number of files] [content size in bytes] [reads] [cache size in MB]</p>
+ */
+public class CacheBenchmark {
+    private final static int RUNS = 3;
+    private final static int HOT_PERCENT = 90;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int contentSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+        long cacheSize = (args.length > 3 ? Long.parseLong(args[3]) : 16) * 1024 * 1024;
+        String[] requests = new String[reads];
+        int hotFiles = Math.max(1, files / 100);
+        for (int i = 0; i < reads; i++) {
+            boolean hot = ThreadLocalRandom.current().nextInt(100) < HOT_PERCENT;
+            requests[i] = "asset-" + ThreadLocalRandom.current().nextInt(hot ? hotFiles : files);
+        }
+        long bytes = (long) reads * contentSize;
+        run("without cache", CacheOptions.DISABLED, files, contentSize, requests, bytes);
+        run("with cache of " + cacheSize / 1024 / 1024 + " MB", new CacheOptions(cacheSize, contentSize),
+                files, contentSize, requests, bytes);
+    }
+
+    private static void run(String name, CacheOptions cache, int files, int contentSize, String[] requests,
+                            long bytes) throws Exception {
+        Benchmarks.deleteFileSystem();
+        try (FileSystem fileSystem = Benchmarks.newFileSystem(files * (contentSize + 64L), DurabilityOptions.NONE, cache)) {
+            List<File> batch = new ArrayList<>();
+            for (int i = 0; i < files; i++) {
+                batch.add(new File("asset-" + i, new byte[contentSize]));
+                if (batch.size() == 1000) {
+                    fileSystem.writeFiles(batch, true);
+                    batch.clear();
+                }
+            }
+            fileSystem.writeFiles(batch, true);
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                for (String filename : requests) {
+                    fileSystem.readFileFromFileSystem(filename);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            Benchmarks.reportThroughput(name, bytes, best);
+            long hits = fileSystem.getCache().getHitCount();
+            long lookups = hits + fileSystem.getCache().getMissCount();
+            if (lookups > 0) {
+                System.out.printf("%-40s %10.1f %%%n", "hit ratio", 100.0 * hits / lookups);
+            }
+        } finally {
+            Benchmarks.deleteFileSystem();
+        }
+    }
+}
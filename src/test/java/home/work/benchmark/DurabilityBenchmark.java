@@ -0,0 +1,79 @@
+package home.work.benchmark;
+
+import home.work.system.DurabilityOptions;
+import home.work.system.File;
+import home.work.system.FileSystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures latency and throughput of small writes in every durability mode:
+ * latency percentiles of a single writer, and throughput of the same number of
+ * writes done by several threads, whose commits are batched together.
+ * <p>Usage: DurabilityBenchmark [number of files] [content size in bytes] [threads]</p>
+ */
+public class DurabilityBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int contentSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        DurabilityOptions[] modes = {
+                DurabilityOptions.SYNC,
+                new DurabilityOptions(DurabilityOptions.Mode.PERIODIC, 100, 16 * 1024 * 1024),
+                DurabilityOptions.NONE
+        };
+        long size = files * (contentSize + 64L);
+        byte[] content = new byte[contentSize];
+        for (DurabilityOptions durability : modes) {
+            String mode = durability.getMode().toString();
+            Benchmarks.deleteFileSystem();
+            try (FileSystem fileSystem = Benchmarks.newFileSystem(size, durability)) {
+                long[] latencies = new long[files];
+                long start = System.nanoTime();
+                for (int i = 0; i < files; i++) {
+                    long writeStart = System.nanoTime();
+                    fileSystem.writeFileToFileSystem(new File("file-" + i, content));
+                    latencies[i] = System.nanoTime() - writeStart;
+                }
+                long nanos = System.nanoTime() - start;
+                Arrays.sort(latencies);
+                System.out.printf("%-40s p50 %8.1f us, p99 %8.1f us, max %8.1f us%n", mode + ", 1 thread",
+                        latencies[files / 2] / 1e3, latencies[files * 99 / 100] / 1e3, latencies[files - 1] / 1e3);
+                reportWrites(mode + ", 1 thread", files, nanos);
+            } finally {
+                Benchmarks.deleteFileSystem();
+            }
+            try (FileSystem fileSystem = Benchmarks.newFileSystem(size, durability)) {
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                List<Future<?>> writers = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int thread = 0; thread < threads; thread++) {
+                    int first = thread;
+                    writers.add(pool.submit(() -> {
+                        for (int i = first; i < files; i += threads) {
+                            fileSystem.writeFileToFileSystem(new File("file-" + i, content));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+                reportWrites(mode + ", " + threads + " threads", files, System.nanoTime() - start);
+                pool.shutdown();
+            } finally {
+                Benchmarks.deleteFileSystem();
+            }
+        }
+    }
+
+    private static void reportWrites(String name, int files, long nanos) {
+        System.out.printf("%-40s %10.0f writes/s (%d ms)%n", name, files / (nanos / 1e9), nanos / 1_000_000);
+    }
+}
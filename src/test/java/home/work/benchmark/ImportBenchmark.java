@@ -0,0 +1,98 @@
+package home.work.benchmark;
+
+import home.work.system.FileSystem;
+import home.work.system.FileSystemDriver;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Compares import of an ambient file byte by byte through InputStream
+ * (the way {@code copyExistingFile} worked before) with the channel transfer
+ * used by {@link FileSystemDriver#copyExistingFile(String)} and
+ * {@link FileSystemDriver#copyExistingFiles(java.util.Collection)}.
+ * <p>Usage: ImportBenchmark [file size in MB] [number of small files]</p>
+ */
+public class ImportBenchmark {
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int smallFiles = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long size = sizeMb * 1024L * 1024L;
+        Path source = Files.createTempFile("import", ".bin");
+        byte[] bytes = new byte[(int) size];
+        new Random(42).nextBytes(bytes);
+        Files.write(source, bytes);
+        try {
+            byteByByte(source, size);
+            channelTransfer(source, size);
+            batchTransfer(smallFiles);
+        } finally {
+            Files.delete(source);
+            Benchmarks.deleteFileSystem();
+        }
+    }
+
+    private static void byteByByte(Path source, long size) throws Exception {
+        Path target = Files.createTempFile("container", ".bin");
+        try (FileChannel fc = FileChannel.open(target, READ, WRITE);
+             InputStream inputStream = new FileInputStream(source.toFile())) {
+            long start = System.nanoTime();
+            MappedByteBuffer memory = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int byteRead;
+            while ((byteRead = inputStream.read()) != -1) {
+                memory.put((byte) byteRead);
+            }
+            Benchmarks.reportThroughput("byte by byte (before)", size, System.nanoTime() - start);
+        } finally {
+            Files.delete(target);
+        }
+    }
+
+    private static void channelTransfer(Path source, long size) throws Exception {
+        Benchmarks.deleteFileSystem();
+        FileSystem fileSystem = Benchmarks.newFileSystem(size + 1024);
+        FileSystemDriver driver = new FileSystemDriver(fileSystem);
+        long start = System.nanoTime();
+        driver.copyExistingFile(source.toString());
+        Benchmarks.reportThroughput("channel transfer (after)", size, System.nanoTime() - start);
+        fileSystem.close();
+    }
+
+    private static void batchTransfer(int count) throws Exception {
+        Path directory = Files.createTempDirectory("import");
+        List<Path> paths = new ArrayList<>();
+        byte[] content = new byte[4096];
+        for (int i = 0; i < count; i++) {
+            paths.add(Files.write(directory.resolve("file-" + i), content));
+        }
+        try {
+            Benchmarks.deleteFileSystem();
+            FileSystem fileSystem = Benchmarks.newFileSystem(2L * count * (content.length + 64) + 1024);
+            FileSystemDriver driver = new FileSystemDriver(fileSystem);
+            long start = System.nanoTime();
+            for (Path path : paths) {
+                driver.copyExistingFile(path.toString());
+            }
+            Benchmarks.reportThroughput(count + " files one by one", (long) count * content.length, System.nanoTime() - start);
+            driver.formatFileSystem();
+            start = System.nanoTime();
+            driver.copyExistingFiles(paths);
+            Benchmarks.reportThroughput(count + " files in one pass", (long) count * content.length, System.nanoTime() - start);
+            fileSystem.close();
+        } finally {
+            for (Path path : paths) {
+                Files.delete(path);
+            }
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package home.work.benchmark;
+
+import home.work.system.DurabilityOptions;
+import home.work.system.File;
+import home.work.system.FileSystem;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures heap taken by the filename index of a file system with many small files,
+ * compared with a {@code HashMap<String, Long>} of the same names, and throughput
+ * of {@code fileExists} lookups. Heap is measured as used memory after GC, so run it
+ * with a fixed heap (e.g. -Xms4g -Xmx4g) and nothing else in the JVM.
+ * <p>Usage: IndexMemoryBenchmark [number of files]</p>
+ */
+public class IndexMemoryBenchmark {
+    private final static int LOOKUPS = 10_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Benchmarks.deleteFileSystem();
+        try {
+            long size = files * 48L;
+            FileSystem writer = Benchmarks.newFileSystem(size, DurabilityOptions.NONE);
+            byte[] content = new byte[1];
+            for (int i = 0; i < files; i++) {
+                writer.writeFileToFileSystem(new File("file-" + i, content));
+            }
+            writer.close();
+
+            //index is loaded on start, so the difference is the tree and the few objects of the instance
+            long before = usedMemory();
+            FileSystem fileSystem = Benchmarks.newFileSystem(size);
+            report("file system tree", files, usedMemory() - before);
+
+            before = usedMemory();
+            Map<String, Long> map = new HashMap<>();
+            for (int i = 0; i < files; i++) {
+                map.put("file-" + i, (long) i);
+            }
+            report("HashMap<String, Long>", files, usedMemory() - before);
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (fileSystem.fileExists("file-" + random.nextInt(files * 2))) {
+                    found++;
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%-40s %12.0f lookups/s (%d found)%n", "fileExists",
+                    LOOKUPS / (nanos / 1e9), found);
+            fileSystem.close();
+            map.clear();
+        } finally {
+            Benchmarks.deleteFileSystem();
+        }
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, int files, long bytes) {
+        System.out.printf("%-40s %10d MB, %6.1f bytes per file%n", name, bytes / 1024 / 1024, bytes / (double) files);
+    }
+}
@@ -0,0 +1,79 @@
+package home.work.benchmark;
+
+import home.work.system.DurabilityOptions;
+import home.work.system.File;
+import home.work.system.FileSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures throughput of metadata queries ({@code fileExists}, {@code getAvailableSpace}
+ * and {@code isEnoughSpace}) done by 1, 8 and 32 threads, while one more thread keeps
+ * writing and removing files. Throughput of the writer is reported too, to see whether
+ * readers starve it.
+ * <p>Usage: MetadataBenchmark [number of files] [seconds per run]</p>
+ */
+public class MetadataBenchmark {
+    private final static int[] THREADS = {1, 8, 32};
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Benchmarks.deleteFileSystem();
+        try (FileSystem fileSystem = Benchmarks.newFileSystem(files * 128L, DurabilityOptions.NONE)) {
+            for (int i = 0; i < files; i++) {
+                fileSystem.writeFileToFileSystem(new File("file-" + i, new byte[16]));
+            }
+            for (int threads : THREADS) {
+                run(fileSystem, files, threads, seconds);
+            }
+        } finally {
+            Benchmarks.deleteFileSystem();
+        }
+    }
+
+    private static void run(FileSystem fileSystem, int files, int threads, int seconds) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<Long>> readers = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            readers.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long queries = 0;
+                while (running.get()) {
+                    fileSystem.fileExists("file-" + random.nextInt(files));
+                    fileSystem.getAvailableSpace();
+                    fileSystem.isEnoughSpace(16);
+                    queries += 3;
+                }
+                return queries;
+            }));
+        }
+        Future<Long> writer = pool.submit(() -> {
+            long writes = 0;
+            while (running.get()) {
+                fileSystem.writeFileToFileSystem(new File("written", new byte[16]));
+                fileSystem.removeFileFromFileSystem("written");
+                writes++;
+            }
+            return writes;
+        });
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        long queries = 0;
+        for (Future<Long> reader : readers) {
+            queries += reader.get();
+        }
+        long writes = writer.get();
+        pool.shutdown();
+        System.out.printf("%-40s %12.0f queries/s %10.0f writes/s%n", threads + " reader threads",
+                queries / (double) seconds, writes / (double) seconds);
+    }
+}
@@ -0,0 +1,66 @@
+package home.work.benchmark;
+
+import home.work.system.DurabilityOptions;
+import home.work.system.File;
+import home.work.system.FileSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares reading groups of random small files one by one with reading every
+ * group by one multi-get call, which takes the lock once and reads in the order of offsets.
+ * <p>Usage: MultiGetBenchmark [number of files] [content size in bytes] [files per group] [groups]</p>
+ */
+public class MultiGetBenchmark {
+    private final static int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int contentSize = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        int groupSize = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int groups = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        Benchmarks.deleteFileSystem();
+        try (FileSystem fileSystem = Benchmarks.newFileSystem(files * (contentSize + 64L), DurabilityOptions.NONE)) {
+            List<File> batch = new ArrayList<>();
+            for (int i = 0; i < files; i++) {
+                batch.add(new File("asset-" + i, new byte[contentSize]));
+                if (batch.size() == 1000) {
+                    fileSystem.writeFiles(batch, true);
+                    batch.clear();
+                }
+            }
+            fileSystem.writeFiles(batch, true);
+            List<List<String>> requests = new ArrayList<>(groups);
+            for (int i = 0; i < groups; i++) {
+                List<String> group = new ArrayList<>(groupSize);
+                for (int j = 0; j < groupSize; j++) {
+                    group.add("asset-" + ThreadLocalRandom.current().nextInt(files));
+                }
+                requests.add(group);
+            }
+            long bytes = (long) groups * groupSize * contentSize;
+            long oneByOne = Long.MAX_VALUE;
+            long multiGet = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                for (List<String> group : requests) {
+                    for (String filename : group) {
+                        fileSystem.readFileFromFileSystem(filename);
+                    }
+                }
+                oneByOne = Math.min(oneByOne, System.nanoTime() - start);
+                start = System.nanoTime();
+                for (List<String> group : requests) {
+                    fileSystem.readFiles(group);
+                }
+                multiGet = Math.min(multiGet, System.nanoTime() - start);
+            }
+            Benchmarks.reportThroughput("one by one", bytes, oneByOne);
+            Benchmarks.reportThroughput("multi-get of " + groupSize, bytes, multiGet);
+        } finally {
+            Benchmarks.deleteFileSystem();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package home.work.benchmark;
+
+import home.work.system.DurabilityOptions;
+import home.work.system.File;
+import home.work.system.FileSystem;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures start of a file system with many small files: loading the persisted
+ * index, and the recovery scan of the container when the index is missing, both
+ * with the common fork/join pool and with a single thread. Every start is repeated
+ * and the best time is reported.
+ * <p>Usage: StartupBenchmark [number of files] [content size in bytes]</p>
+ */
+public class StartupBenchmark {
+    private final static int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int contentSize = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        Benchmarks.deleteFileSystem();
+        try {
+            long size = files * (contentSize + 48L);
+            //files are written without forcing, start is measured with a closed file system anyway
+            FileSystem fileSystem = Benchmarks.newFileSystem(size, DurabilityOptions.NONE);
+            byte[] content = new byte[contentSize];
+            for (int i = 0; i < files; i++) {
+                fileSystem.writeFileToFileSystem(new File("file-" + i, content));
+            }
+            for (int i = 0; i < files; i += 10) {
+                fileSystem.removeFileFromFileSystem("file-" + i);
+            }
+            fileSystem.close();
+
+            ForkJoinPool single = new ForkJoinPool(1);
+            report("index", files, measure(size, false, ForkJoinPool.commonPool()));
+            report("scan, " + ForkJoinPool.getCommonPoolParallelism() + " threads", files,
+                    measure(size, true, ForkJoinPool.commonPool()));
+            report("scan, 1 thread", files, measure(size, true, single));
+            single.shutdown();
+        } finally {
+            Benchmarks.deleteFileSystem();
+        }
+    }
+
+    /**
+     * Starts the file system in the {@code pool}, so the recovery scan runs its tasks there
+     */
+    private static long measure(long size, boolean scan, ForkJoinPool pool) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            if (scan) {
+                Files.delete(Paths.get("fileSystem.index"));
+            }
+            long start = System.nanoTime();
+            pool.submit(() -> {
+                Benchmarks.newFileSystem(size).close();
+                return null;
+            }).get();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void report(String name, int files, long nanos) {
+        System.out.printf("%-40s %10d ms for %d files%n", name, nanos / 1_000_000, files);
+    }
+}
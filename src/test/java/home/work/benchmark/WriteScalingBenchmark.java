@@ -0,0 +1,54 @@
+package home.work.benchmark;
+
+import home.work.system.DurabilityOptions;
+import home.work.system.File;
+import home.work.system.FileSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures ingest throughput of in-memory files written by 1, 2, 4 and 8 threads.
+ * Content is copied outside of the file system lock, so throughput should grow
+ * with the number of writers up to the number of cores. Nothing is forced, so
+ * the copy, not the storage device, is measured.
+ * <p>Usage: WriteScalingBenchmark [number of files] [content size in bytes]</p>
+ */
+public class WriteScalingBenchmark {
+    private final static int[] THREADS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 4_000;
+        int contentSize = args.length > 1 ? Integer.parseInt(args[1]) : 256 * 1024;
+        byte[] content = new byte[contentSize];
+        long size = files * (contentSize + 64L);
+        for (int threads : THREADS) {
+            Benchmarks.deleteFileSystem();
+            try (FileSystem fileSystem = Benchmarks.newFileSystem(size, DurabilityOptions.NONE)) {
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                List<Future<?>> writers = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int thread = 0; thread < threads; thread++) {
+                    int first = thread;
+                    writers.add(pool.submit(() -> {
+                        for (int i = first; i < files; i += threads) {
+                            fileSystem.writeFileToFileSystem(new File("file-" + i, content));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+                Benchmarks.reportThroughput(threads + " writer threads", (long) files * contentSize,
+                        System.nanoTime() - start);
+                pool.shutdown();
+            } finally {
+                Benchmarks.deleteFileSystem();
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package home.work.system;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DirectoryIndexTest {
+    private final static long FILE_SYSTEM_SIZE = 4096;
+    private final static long HEADER_SIZE = 24;
+    private final static long RECORD_LENGTH = 10;
+
+    @TempDir
+    Path directory;
+    private Path container;
+    private CountingRegion region;
+    private FileTree tree;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        container = Files.createFile(directory.resolve("fileSystem"));
+        region = new CountingRegion(container);
+        tree = new FileTree();
+        tree.put("first", HEADER_SIZE);
+        tree.put("second", HEADER_SIZE + RECORD_LENGTH);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        region.close();
+    }
+
+    @Test
+    public void shouldNotForce_inNoneMode() throws IOException {
+        DirectoryIndex index = new DirectoryIndex(container);
+        rewrite(index, DurabilityOptions.Mode.NONE);
+        tree.remove("second");
+        index.commit(index.remove("second", currentPosition()), region, false);
+        rewrite(index, DurabilityOptions.Mode.NONE);
+        index.close();
+
+        assertEquals(0, region.forces);
+        assertEquals(1, loadedFiles());
+    }
+
+    @Test
+    public void shouldForceSnapshot_onNextFlush_inPeriodicMode() throws IOException {
+        DirectoryIndex index = new DirectoryIndex(container);
+        rewrite(index, DurabilityOptions.Mode.SYNC);
+        assertEquals(1, region.forces);
+
+        tree.remove("second");
+        rewrite(index, DurabilityOptions.Mode.PERIODIC);
+        assertEquals(1, region.forces);
+        //log still describes the last forced state
+        assertEquals(2, loadedFiles());
+
+        index.commit(index.lastSequence(), region, true);
+        index.close();
+        assertEquals(2, region.forces);
+        assertEquals(1, loadedFiles());
+    }
+
+    @Test
+    public void shouldLoadRecordsPutAfterSnapshot_toReusedSpace() throws IOException {
+        DirectoryIndex index = new DirectoryIndex(container);
+        rewrite(index, DurabilityOptions.Mode.NONE);
+        tree.remove("first");
+        index.remove("first", currentPosition());
+        tree.put("third", HEADER_SIZE);
+        index.commit(index.put("third", HEADER_SIZE, RECORD_LENGTH, currentPosition()), region, false);
+        index.close();
+
+        assertEquals(2, loadedFiles());
+    }
+
+    private void rewrite(DirectoryIndex index, DurabilityOptions.Mode mode) {
+        index.rewrite(FILE_SYSTEM_SIZE, currentPosition(), tree, offset -> RECORD_LENGTH, region, mode);
+    }
+
+    private long currentPosition() {
+        return HEADER_SIZE + 2 * RECORD_LENGTH;
+    }
+
+    private int loadedFiles() {
+        FileTree loaded = new FileTree();
+        long position = new DirectoryIndex(container).load(FILE_SYSTEM_SIZE, HEADER_SIZE, currentPosition(),
+                loaded, new FreeExtents(0));
+        assertEquals(currentPosition(), position);
+        return loaded.size();
+    }
+
+    /**
+     * Counts forces of the whole mapping
+     */
+    private static class CountingRegion extends MappedRegion {
+        private int forces;
+
+        CountingRegion(Path path) throws IOException {
+            super(path, FILE_SYSTEM_SIZE, MappedRegion.DEFAULT_SEGMENT_SIZE);
+        }
+
+        @Override
+        void force() {
+            forces++;
+            super.force();
+        }
+    }
+}
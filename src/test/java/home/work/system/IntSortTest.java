@@ -0,0 +1,41 @@
+package home.work.system;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class IntSortTest {
+    @Test
+    public void shouldSortLikeArraysSort_andKeepOrderOfEqualValues() {
+        Random random = new Random(42);
+        for (int length : new int[]{0, 1, 2, 15, 16, 17, 100, 10_000}) {
+            long[] keys = new long[length];
+            for (int i = 0; i < length; i++) {
+                keys[i] = random.nextInt(length / 4 + 1);
+            }
+            int[] actual = new int[length + 2];
+            Integer[] expected = new Integer[length];
+            for (int i = 0; i < length; i++) {
+                actual[i + 1] = i;
+                expected[i] = i;
+            }
+            //values out of the range stay in place
+            actual[0] = -1;
+            actual[length + 1] = -1;
+            IntSort.sort(actual, 1, length + 1, (first, second) -> Long.compare(keys[first], keys[second]));
+            Arrays.sort(expected, Comparator.comparingLong(i -> keys[i]));
+
+            int[] sorted = new int[length + 2];
+            sorted[0] = -1;
+            sorted[length + 1] = -1;
+            for (int i = 0; i < length; i++) {
+                sorted[i + 1] = expected[i];
+            }
+            assertArrayEquals(sorted, actual);
+        }
+    }
+}